@@ -1,6 +1,8 @@
 #!/bin/bash
 
-PIDFILE=/root/rowbot.pid
+# Each worker of a distributed job, started with --worker=<name>, has its own PID file
+WORKER=$(printf '%s\n' "$@" | sed -n 's/^--worker=//p' | tr -c 'A-Za-z0-9._\n-' '-')
+PIDFILE=/root/rowbot${WORKER:+-$WORKER}.pid
 if [ -f $PIDFILE ]
 then
   PID=$(cat $PIDFILE)
@@ -28,12 +30,13 @@ else
 fi
 
 jobfile=$1
-if [ $# -ne 1 ]; then
+if [ $# -lt 1 ]; then
 	echo $0: "You must specify a job file!"
 	rm $PIDFILE
 	exit 1
 fi
 
-java -jar rowbot-all.jar $jobfile
+# Any further arguments, such as --resume=<timestamp> or --worker=<name>, are passed through to RowBot
+java -jar rowbot-all.jar "$@"
 
 rm $PIDFILE
\ No newline at end of file
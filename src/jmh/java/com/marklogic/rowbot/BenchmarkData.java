@@ -0,0 +1,180 @@
+/**
+ * Deterministic in-memory result sets for the benchmarks. The same seed
+ * always produces the same rows, so runs on different machines or commits
+ * convert exactly the same data.
+ */
+package com.marklogic.rowbot;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Properties;
+import java.util.Random;
+
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetMetaDataImpl;
+import javax.sql.rowset.RowSetProvider;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+class BenchmarkData {
+	static final long SEED = 20170531L;
+	static final int NULL_EVERY = 10;
+	static final int[] STRING_TYPES = {Types.VARCHAR};
+	static final int[] NUMBER_TYPES = {Types.BIGINT, Types.DECIMAL, Types.DOUBLE};
+	static final int[] MIXED_TYPES = {Types.BIGINT, Types.VARCHAR, Types.DECIMAL, Types.TIMESTAMP, Types.DOUBLE, Types.VARCHAR, Types.BOOLEAN, Types.DATE};
+	
+	/**
+	 * @param types one of "strings", "numbers" or "mixed"
+	 */
+	static CachedRowSet rows(int rows, int columns, String types) throws SQLException {
+		int[] columnTypes = columnTypes(columns, types);
+		RowSetMetaDataImpl meta = new RowSetMetaDataImpl();
+		meta.setColumnCount(columns);
+		for (int c = 1; c <= columns; c++) {
+			meta.setColumnName(c, "COLUMN_" + c);
+			meta.setColumnLabel(c, "COLUMN_" + c);
+			meta.setColumnType(c, columnTypes[c - 1]);
+			meta.setNullable(c, ResultSetMetaData.columnNullable);
+		}
+		
+		CachedRowSet rowSet = RowSetProvider.newFactory().createCachedRowSet();
+		rowSet.setMetaData(meta);
+		Random random = new Random(SEED);
+		for (int r = 0; r < rows; r++) {
+			rowSet.moveToInsertRow();
+			for (int c = 1; c <= columns; c++) {
+				if ((r + c) % NULL_EVERY == 0) {
+					rowSet.updateNull(c);
+					continue;
+				}
+				switch (columnTypes[c - 1]) {
+					case Types.BIGINT:
+						rowSet.updateLong(c, random.nextInt(100000000));
+						break;
+					case Types.DECIMAL:
+						rowSet.updateBigDecimal(c, BigDecimal.valueOf(random.nextInt(10000000), 2));
+						break;
+					case Types.DOUBLE:
+						rowSet.updateDouble(c, random.nextDouble() * 1000);
+						break;
+					case Types.BOOLEAN:
+						rowSet.updateBoolean(c, random.nextBoolean());
+						break;
+					case Types.TIMESTAMP:
+						rowSet.updateTimestamp(c, new Timestamp(1496243575972L - random.nextInt(1000000000)));
+						break;
+					case Types.DATE:
+						rowSet.updateDate(c, new java.sql.Date(1496243575972L - random.nextInt(1000000000)));
+						break;
+					default:
+						rowSet.updateString(c, randomString(random));
+				}
+			}
+			rowSet.insertRow();
+			rowSet.moveToCurrentRow();
+		}
+		rowSet.beforeFirst();
+		return rowSet;
+	}
+	
+	/**
+	 * @return a RowBot job with a single query against a BenchmarkDriver table
+	 */
+	static JSONObject job(int rows, int columns, String types, int insertThreads, int insertBatchSize) {
+		Properties tableProperties = BenchmarkDriver.properties(rows, columns, types);
+		JSONObject properties = new JSONObject();
+		for (String name : tableProperties.stringPropertyNames()) {
+			properties.put(name, tableProperties.getProperty(name));
+		}
+		JSONObject connection = new JSONObject();
+		connection.put("key", "benchmark");
+		connection.put("connectionString", BenchmarkDriver.URL_PREFIX);
+		connection.put("driver", BenchmarkDriver.class.getName());
+		connection.put("properties", properties);
+		
+		JSONObject query = new JSONObject();
+		query.put("query", "SELECT * FROM BENCHMARK");
+		query.put("database", "benchmark");
+		query.put("collections", new JSONArray().put("benchmark"));
+		
+		JSONObject marklogic = new JSONObject();
+		marklogic.put("hostname", "localhost");
+		marklogic.put("port", "8000");
+		marklogic.put("username", "rowbot");
+		marklogic.put("password", "rowbot");
+		
+		JSONObject job = new JSONObject();
+		job.put("jobName", "benchmark");
+		job.put("queryThreads", 1);
+		job.put("insertThreads", insertThreads);
+		job.put("insertBatchSize", insertBatchSize);
+		job.put("marklogic", marklogic);
+		job.put("queries", new JSONArray().put(query));
+		job.put("connections", new JSONArray().put(connection));
+		return job;
+	}
+	
+	/**
+	 * @return a new cursor over the same rows, positioned before the first one.
+	 * Closing a shared rowset empties the rows it shares, so the cursor
+	 * ignores close and the rows stay there for the next one.
+	 */
+	static ResultSet cursor(CachedRowSet rows) throws SQLException {
+		final ResultSet cursor = (ResultSet) rows.createShared();
+		cursor.beforeFirst();
+		return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] {ResultSet.class}, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getName().equals("close")) {
+					return null;
+				}
+				try {
+					return method.invoke(cursor, args);
+				} catch (InvocationTargetException e) {
+					throw e.getCause();
+				}
+			}
+		});
+	}
+	
+	private static int[] columnTypes(int columns, String types) {
+		int[] pattern;
+		switch (types) {
+			case "strings":
+				pattern = STRING_TYPES;
+				break;
+			case "numbers":
+				pattern = NUMBER_TYPES;
+				break;
+			case "mixed":
+				pattern = MIXED_TYPES;
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown column types: " + types);
+		}
+		int[] columnTypes = new int[columns];
+		for (int c = 0; c < columns; c++) {
+			columnTypes[c] = pattern[c % pattern.length];
+		}
+		return columnTypes;
+	}
+	
+	private static String randomString(Random random) {
+		// Mostly ASCII with the odd character that needs escaping or is multi-byte
+		char[] chars = new char[8 + random.nextInt(40)];
+		for (int i = 0; i < chars.length; i++) {
+			int n = random.nextInt(100);
+			chars[i] = (n == 0) ? '"' : (n == 1) ? '\u00e9' : (char) ('a' + random.nextInt(26));
+		}
+		return new String(chars);
+	}
+}
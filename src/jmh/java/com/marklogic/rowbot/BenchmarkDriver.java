@@ -0,0 +1,154 @@
+/**
+ * JDBC driver for the jdbc:rowbot-bench: url, serving an in-memory table from
+ * BenchmarkData for any query. The table's size and shape come from the
+ * connection's "rows", "columns" and "types" properties, and each statement
+ * execution gets its own cursor over the same rows.
+ */
+package com.marklogic.rowbot;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import javax.sql.rowset.CachedRowSet;
+
+public class BenchmarkDriver implements Driver {
+	static final String URL_PREFIX = "jdbc:rowbot-bench:";
+	private static final ConcurrentHashMap<String, CachedRowSet> tables = new ConcurrentHashMap<>();
+	
+	static {
+		try {
+			DriverManager.registerDriver(new BenchmarkDriver());
+		} catch (SQLException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+	
+	static Properties properties(int rows, int columns, String types) {
+		Properties props = new Properties();
+		props.put("rows", String.valueOf(rows));
+		props.put("columns", String.valueOf(columns));
+		props.put("types", types);
+		return props;
+	}
+	
+	static CachedRowSet table(Properties info) throws SQLException {
+		String key = info.getProperty("rows") + "/" + info.getProperty("columns") + "/" + info.getProperty("types");
+		CachedRowSet table = tables.get(key);
+		if (table == null) {
+			table = BenchmarkData.rows(Integer.parseInt(info.getProperty("rows")), Integer.parseInt(info.getProperty("columns")), info.getProperty("types"));
+			CachedRowSet existing = tables.putIfAbsent(key, table);
+			if (existing != null) {
+				table = existing;
+			}
+		}
+		return table;
+	}
+
+	@Override
+	public Connection connect(String url, Properties info) throws SQLException {
+		if (!acceptsURL(url)) {
+			return null;
+		}
+		final CachedRowSet table = table(info);
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {Connection.class}, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				switch (method.getName()) {
+					case "prepareStatement":
+						return statement(table);
+					case "isValid":
+						return true;
+					case "isClosed":
+						return false;
+					default:
+						return StubContentSource.objectMethod(proxy, method, args);
+				}
+			}
+		});
+	}
+	
+	private static PreparedStatement statement(final CachedRowSet table) {
+		return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(), new Class<?>[] {PreparedStatement.class}, new InvocationHandler() {
+			private int fetchSize = 10;
+			
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				switch (method.getName()) {
+					case "executeQuery":
+						return BenchmarkData.cursor(table);
+					case "setFetchSize":
+						this.fetchSize = (Integer) args[0];
+						return null;
+					case "getFetchSize":
+						return this.fetchSize;
+					case "isClosed":
+						return false;
+					default:
+						return StubContentSource.objectMethod(proxy, method, args);
+				}
+			}
+		});
+	}
+	
+	static Object defaultValue(Class<?> type) {
+		if (type == boolean.class) {
+			return false;
+		} else if (type == int.class) {
+			return 0;
+		} else if (type == long.class) {
+			return 0L;
+		} else if (type == double.class) {
+			return 0.0;
+		} else if (type == float.class) {
+			return 0.0f;
+		} else if (type == short.class) {
+			return (short) 0;
+		} else if (type == byte.class) {
+			return (byte) 0;
+		} else if (type == char.class) {
+			return (char) 0;
+		}
+		return null;
+	}
+
+	@Override
+	public boolean acceptsURL(String url) throws SQLException {
+		return url != null && url.startsWith(URL_PREFIX);
+	}
+
+	@Override
+	public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) throws SQLException {
+		return new DriverPropertyInfo[0];
+	}
+
+	@Override
+	public int getMajorVersion() {
+		return 1;
+	}
+
+	@Override
+	public int getMinorVersion() {
+		return 0;
+	}
+
+	@Override
+	public boolean jdbcCompliant() {
+		return false;
+	}
+
+	@Override
+	public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException();
+	}
+}
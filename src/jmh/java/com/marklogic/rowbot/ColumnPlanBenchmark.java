@@ -0,0 +1,59 @@
+/**
+ * ResultSet row to JSON document conversion, across column counts and
+ * column types. Scores are rows per second.
+ */
+package com.marklogic.rowbot;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.rowset.CachedRowSet;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class ColumnPlanBenchmark {
+	static final int ROWS = 1000;
+	
+	@Param({"5", "20", "100"})
+	public int columns;
+	
+	@Param({"strings", "numbers", "mixed"})
+	public String types;
+	
+	private CachedRowSet rows;
+	private ColumnPlan plan;
+	
+	@Setup
+	public void setup() throws SQLException {
+		this.rows = BenchmarkData.rows(ROWS, this.columns, this.types);
+		this.plan = new ColumnPlan(this.rows.getMetaData(), null, RowBot.DEFAULT_LOB_MEMORY_THRESHOLD, null);
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public void readRow(Blackhole blackhole) throws SQLException, IOException {
+		this.rows.beforeFirst();
+		while (this.rows.next()) {
+			blackhole.consume(this.plan.readRow(this.rows));
+		}
+	}
+}
@@ -0,0 +1,72 @@
+/**
+ * RowBot.insertComplete with several insert threads reporting at once,
+ * either all for the same query or spread over many. Run with -t to change
+ * the number of contending threads. Report documents are written to a stub
+ * ContentSource with no latency.
+ */
+package com.marklogic.rowbot;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@Threads(8)
+@State(Scope.Benchmark)
+public class InsertCompleteBenchmark {
+	static final int BATCH_SIZE = 100;
+	
+	@Param({"1", "16"})
+	public int queries;
+	
+	private RowBot rowBot;
+	private String[] queryIds;
+	
+	@State(Scope.Thread)
+	public static class Batches {
+		int next = 0;
+	}
+	
+	@Setup
+	public void setup() {
+		this.rowBot = new RowBot(BenchmarkData.job(1, 1, "strings", 1, BATCH_SIZE).toString());
+		this.rowBot.hosts = new StubContentSource(0).newHostPool(1);
+		this.queryIds = new String[this.queries];
+		for (int i = 0; i < this.queries; i++) {
+			this.queryIds[i] = "query-" + i;
+		}
+	}
+	
+	@TearDown
+	public void tearDown() throws InterruptedException {
+		this.rowBot.insertReporter.close();
+	}
+	
+	@Benchmark
+	public void insertComplete(Batches batches) {
+		int batch = batches.next++;
+		JSONObject batchResult = new JSONObject();
+		batchResult.put("uriPrefix", "/rowbot/benchmark/");
+		batchResult.put("first", batch * BATCH_SIZE + 1);
+		batchResult.put("last", (batch + 1) * BATCH_SIZE);
+		batchResult.put("inserted", BATCH_SIZE);
+		this.rowBot.insertComplete(this.queryIds[batch % this.queries], batchResult, BATCH_SIZE);
+	}
+}
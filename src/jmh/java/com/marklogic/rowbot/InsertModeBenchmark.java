@@ -0,0 +1,74 @@
+/**
+ * Insert throughput of a fixed pool of platform insert threads against a
+ * virtual thread per batch, when inserts spend nearly all their time waiting
+ * on MarkLogic. Each invocation runs a whole job against a stub ContentSource
+ * whose calls take latencyMicros, allowing inFlight inserts at once: as
+ * insertThreads, or as the virtual threads' maxInFlight, and as the host's
+ * maxInFlightPerHost. Scores are rows per second. The virtual mode needs
+ * Java 21 or later.
+ */
+package com.marklogic.rowbot;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InsertModeBenchmark {
+	static final int ROWS = 20000;
+	static final int COLUMNS = 8;
+	static final String TYPES = "mixed";
+	
+	@Param({"threads", "virtual"})
+	public String mode;
+	
+	@Param({"64", "1024"})
+	public int inFlight;
+	
+	@Param({"5000"})
+	public long latencyMicros;
+	
+	@Setup
+	public void setup() throws SQLException {
+		if (this.mode.equals("virtual") && InsertScheduler.virtualThreadFactory("rowbot-insert-") == null) {
+			throw new IllegalStateException("Virtual threads need Java 21 or later");
+		}
+		BenchmarkDriver.table(BenchmarkDriver.properties(ROWS, COLUMNS, TYPES));
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public long insert() throws Exception {
+		boolean virtual = this.mode.equals("virtual");
+		JSONObject job = BenchmarkData.job(ROWS, COLUMNS, TYPES, virtual ? 1 : this.inFlight, 1);
+		if (virtual) {
+			job.put("virtualThreads", new JSONObject().put("maxInFlight", this.inFlight));
+		}
+		StubContentSource stub = new StubContentSource(this.latencyMicros);
+		RowBot rowBot = new RowBot(job.toString());
+		rowBot.hosts = stub.newHostPool(1, this.inFlight);
+		rowBot.runRowBotJob();
+		if (rowBot.metrics.getDocsInserted() != ROWS) {
+			throw new IllegalStateException("Inserted " + rowBot.metrics.getDocsInserted() + " of " + ROWS + " rows");
+		}
+		return stub.docsInserted.get();
+	}
+}
@@ -0,0 +1,67 @@
+/**
+ * End to end throughput of a RowBot job, from an in-memory JDBC table through
+ * conversion and batching to a stub ContentSource that takes latencyMicros
+ * per insert call. Each invocation runs a whole job, including its start up
+ * and reports, and scores are rows per second.
+ */
+package com.marklogic.rowbot;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PipelineBenchmark {
+	static final int ROWS = 20000;
+	
+	@Param({"20"})
+	public int columns;
+	
+	@Param({"mixed"})
+	public String types;
+	
+	@Param({"1", "4"})
+	public int insertThreads;
+	
+	@Param({"1", "100"})
+	public int insertBatchSize;
+	
+	@Param({"0", "500"})
+	public long latencyMicros;
+	
+	@Setup
+	public void setup() throws SQLException {
+		// Build the table up front rather than in the first invocation
+		BenchmarkDriver.table(BenchmarkDriver.properties(ROWS, this.columns, this.types));
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public long pipeline() throws Exception {
+		StubContentSource stub = new StubContentSource(this.latencyMicros);
+		RowBot rowBot = new RowBot(BenchmarkData.job(ROWS, this.columns, this.types, this.insertThreads, this.insertBatchSize).toString());
+		rowBot.hosts = stub.newHostPool(1);
+		rowBot.runRowBotJob();
+		if (rowBot.metrics.getDocsInserted() != ROWS) {
+			throw new IllegalStateException("Inserted " + rowBot.metrics.getDocsInserted() + " of " + ROWS + " rows");
+		}
+		return stub.docsInserted.get();
+	}
+}
@@ -0,0 +1,106 @@
+/**
+ * ContentSource whose sessions accept every insert after a configurable
+ * delay instead of talking to MarkLogic, so the benchmarks measure RowBot
+ * rather than the network or the server.
+ */
+package com.marklogic.rowbot;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.marklogic.xcc.Content;
+import com.marklogic.xcc.ContentSource;
+import com.marklogic.xcc.Session;
+
+class StubContentSource {
+	private final long latencyNanos;
+	final AtomicLong insertCalls = new AtomicLong(0);
+	final AtomicLong docsInserted = new AtomicLong(0);
+	final AtomicLong bytesInserted = new AtomicLong(0);
+	
+	/**
+	 * @param latencyMicros how long each insertContent call takes
+	 */
+	StubContentSource(long latencyMicros) {
+		this.latencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+	}
+	
+	ContentSource newContentSource() {
+		return (ContentSource) Proxy.newProxyInstance(ContentSource.class.getClassLoader(), new Class<?>[] {ContentSource.class}, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getName().equals("newSession")) {
+					return newSession((ContentSource) proxy);
+				}
+				return objectMethod(proxy, method, args);
+			}
+		});
+	}
+	
+	/**
+	 * @return a pool of stub hosts named stub-0, stub-1 and so on
+	 */
+	HostPool newHostPool(int hosts) {
+		return this.newHostPool(hosts, HostPool.DEFAULT_MAX_IN_FLIGHT_PER_HOST);
+	}
+	
+	/**
+	 * @return a pool of stub hosts that each take up to maxInFlight calls at once
+	 */
+	HostPool newHostPool(int hosts, int maxInFlight) {
+		Map<String, ContentSource> contentSources = new LinkedHashMap<>();
+		for (int i = 0; i < hosts; i++) {
+			contentSources.put("stub-" + i, this.newContentSource());
+		}
+		return new HostPool(contentSources, maxInFlight, HostPool.DEFAULT_UNHEALTHY_INTERVAL_MILLIS);
+	}
+	
+	private Session newSession(final ContentSource contentSource) {
+		return (Session) Proxy.newProxyInstance(Session.class.getClassLoader(), new Class<?>[] {Session.class}, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				switch (method.getName()) {
+					case "insertContent":
+						insert((args[0] instanceof Content[]) ? (Content[]) args[0] : new Content[] {(Content) args[0]});
+						return null;
+					case "getContentSource":
+						return contentSource;
+					default:
+						return objectMethod(proxy, method, args);
+				}
+			}
+		});
+	}
+	
+	private void insert(Content[] contents) {
+		long bytes = 0;
+		for (Content content : contents) {
+			bytes += content.size();
+		}
+		if (this.latencyNanos > 0) {
+			LockSupport.parkNanos(this.latencyNanos);
+		}
+		this.insertCalls.incrementAndGet();
+		this.docsInserted.addAndGet(contents.length);
+		this.bytesInserted.addAndGet(bytes);
+	}
+	
+	static Object objectMethod(Object proxy, Method method, Object[] args) {
+		switch (method.getName()) {
+			case "equals":
+				return proxy == args[0];
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "toString":
+				return proxy.getClass().getName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+			default:
+				return BenchmarkDriver.defaultValue(method.getReturnType());
+		}
+	}
+}
@@ -0,0 +1,124 @@
+/**
+ * AIMD limit on the number of insert calls in flight across the job. At the
+ * end of each window the average insert latency and the number of overload
+ * errors are checked. After an overload error, or when latency has grown past
+ * "latencyTolerance" times its baseline, the limit is multiplied by
+ * "backoffRatio". Otherwise, if the limit was reached during the window, it
+ * grows by one. The limit always stays between "min" and "max". Callers
+ * wait on a lock rather than a monitor, so that virtual threads don't hold
+ * their carrier threads while they wait.
+ */
+package com.marklogic.rowbot;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.json.JSONObject;
+
+class AdaptiveConcurrency {
+	static final int DEFAULT_MIN = 1;
+	static final int DEFAULT_MAX = 64;
+	static final long DEFAULT_WINDOW_MILLIS = 1000;
+	static final int MIN_WINDOW_SAMPLES = 10;
+	static final double DEFAULT_LATENCY_TOLERANCE = 2.0;
+	static final double DEFAULT_BACKOFF_RATIO = 0.75;
+	// How quickly the baseline follows latency upwards, e.g. as documents get bigger
+	static final double BASELINE_DRIFT = 0.05;
+	private final int min;
+	private final int max;
+	private final long windowNanos;
+	private final double latencyTolerance;
+	private final double backoffRatio;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition released = this.lock.newCondition();
+	// Guarded by the lock
+	private int limit;
+	private int inFlight = 0;
+	private int peakInFlight = 0;
+	private long windowStart = System.nanoTime();
+	private int windowSamples = 0;
+	private long windowLatencyNanos = 0;
+	private int windowOverloads = 0;
+	private double baselineNanos = 0;
+	
+	/**
+	 * @param initial the starting limit, unless "initial" is given
+	 */
+	public AdaptiveConcurrency(JSONObject concurrencyObj, int initial) {
+		this.min = Math.max(1, concurrencyObj.optInt("min", DEFAULT_MIN));
+		this.max = Math.max(this.min, concurrencyObj.optInt("max", DEFAULT_MAX));
+		this.windowNanos = concurrencyObj.optLong("window", DEFAULT_WINDOW_MILLIS) * 1000000L;
+		this.latencyTolerance = concurrencyObj.optDouble("latencyTolerance", DEFAULT_LATENCY_TOLERANCE);
+		this.backoffRatio = concurrencyObj.optDouble("backoffRatio", DEFAULT_BACKOFF_RATIO);
+		this.limit = Math.min(this.max, Math.max(this.min, concurrencyObj.optInt("initial", initial)));
+	}
+	
+	public void acquire() throws InterruptedException {
+		this.lock.lockInterruptibly();
+		try {
+			while (this.inFlight >= this.limit) {
+				this.released.await();
+			}
+			this.inFlight++;
+			this.peakInFlight = Math.max(this.peakInFlight, this.inFlight);
+		} finally {
+			this.lock.unlock();
+		}
+	}
+	
+	/**
+	 * @param overloaded whether the call failed in a way that suggests the
+	 *                   cluster is struggling, rather than the document being bad
+	 */
+	public void release(long latencyNanos, boolean overloaded) {
+		this.lock.lock();
+		try {
+			this.inFlight--;
+			this.windowSamples++;
+			this.windowLatencyNanos += latencyNanos;
+			if (overloaded) {
+				this.windowOverloads++;
+			}
+			
+			long now = System.nanoTime();
+			if (now - this.windowStart >= this.windowNanos && (this.windowSamples >= MIN_WINDOW_SAMPLES || this.windowOverloads > 0)) {
+				this.adjust((double) this.windowLatencyNanos / this.windowSamples);
+				this.windowStart = now;
+				this.windowSamples = 0;
+				this.windowLatencyNanos = 0;
+				this.windowOverloads = 0;
+				this.peakInFlight = this.inFlight;
+			}
+			this.released.signalAll();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+	
+	private void adjust(double averageNanos) {
+		if (this.windowOverloads > 0 || (this.baselineNanos > 0 && averageNanos > this.baselineNanos * this.latencyTolerance)) {
+			this.limit = Math.max(this.min, (int) (this.limit * this.backoffRatio));
+		} else if (this.peakInFlight >= this.limit) {
+			this.limit = Math.min(this.max, this.limit + 1);
+		}
+		
+		if (this.baselineNanos == 0 || averageNanos < this.baselineNanos) {
+			this.baselineNanos = averageNanos;
+		} else {
+			this.baselineNanos += (averageNanos - this.baselineNanos) * BASELINE_DRIFT;
+		}
+	}
+	
+	public int getLimit() {
+		this.lock.lock();
+		try {
+			return this.limit;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+	
+	public int getMax() {
+		return this.max;
+	}
+}
@@ -0,0 +1,377 @@
+/**
+ * Skips the rows of a query that haven't changed since its last run. Each
+ * row gets a stable URI from its "changes" key columns, and a hash of its
+ * JSON and LOB values that is looked up in the query's hash index from the
+ * last successful run. Unchanged rows are carried over into the new index
+ * without being inserted, and new or changed rows are added to it once they
+ * are inserted, so a row that failed is inserted again on the next run.
+ *
+ * Rows that disappear from the source are not deleted from MarkLogic.
+ */
+package com.marklogic.rowbot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+class ChangeDetector implements AutoCloseable {
+	static final String DEFAULT_DIRECTORY = "rowbot-change-index";
+	static final byte[] BINARY_REFERENCE = "\"BINARY:".getBytes(StandardCharsets.US_ASCII);
+	static final int UUID_LENGTH = 36;
+	private final String[] keyColumns;
+	private final String uriBase;
+	private final File indexFile;
+	private final File runsDirectory;
+	private final HashIndex previous;
+	private final HashIndex.Builder next;
+	private final AtomicLong newRows = new AtomicLong();
+	private final AtomicLong changedRows = new AtomicLong();
+	private final AtomicLong unchangedRows = new AtomicLong();
+	private final AtomicLong untrackedRows = new AtomicLong();
+	private volatile IOException recordFailure;
+	private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+	
+	/**
+	 * Opens the query's index from its last successful run. The entries of this
+	 * run are collected under the run's timestamp, so a resumed run adds to
+	 * the ones it already has.
+	 */
+	public ChangeDetector(JSONObject queryObject, RowBot rowBot) throws IOException {
+		JSONObject changesObject = queryObject.getJSONObject("changes");
+		JSONArray key = changesObject.getJSONArray("key");
+		if (key.length() == 0) {
+			throw new IllegalArgumentException("\"changes\" needs at least one key column");
+		}
+		this.keyColumns = new String[key.length()];
+		for (int i = 0; i < key.length(); i++) {
+			this.keyColumns[i] = key.getString(i);
+		}
+		String queryId = queryObject.getString("queryId");
+		this.uriBase = rowBot.uriPrefix + queryId + "/";
+		File directory = new File(changesObject.has("directory") ? changesObject.getString("directory") : DEFAULT_DIRECTORY);
+		String safeQueryId = queryId.replaceAll("[^A-Za-z0-9._-]", "_");
+		this.indexFile = new File(directory, safeQueryId + ".idx");
+		this.previous = new HashIndex(this.indexFile);
+		this.runsDirectory = new File(directory, safeQueryId + ".runs");
+		this.next = new HashIndex.Builder(new File(this.runsDirectory, rowBot.timestamp.replaceAll("[^A-Za-z0-9._-]", "_")));
+	}
+	
+	/**
+	 * Compares a row against the previous run, and gives it its stable URI if
+	 * it has to be inserted. Its LOB values are given ids from the URI too, so
+	 * that they hash the same from run to run and replace their earlier
+	 * versions when a row changes.
+	 *
+	 * @return the row to insert, or null if it is unchanged
+	 */
+	public RowDocument check(RowDocument row) throws IOException {
+		byte[] json = row.getJson();
+		String[] values = memberValues(json, this.keyColumns);
+		StringBuilder path = new StringBuilder();
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] == null) {
+				// Without a key there's nothing to compare the row with, so it is always inserted
+				this.untrackedRows.incrementAndGet();
+				return row;
+			}
+			if (i > 0) {
+				path.append('/');
+			}
+			encodePathSegment(values[i], path);
+		}
+		String uri = this.uriBase + path + ".json";
+		
+		Map<String, LobValue> binaries = row.getBinaries();
+		Map<String, LobValue> stableBinaries = null;
+		List<LobValue> orderedBinaries = null;
+		if (binaries != null && !binaries.isEmpty()) {
+			json = Arrays.copyOf(json, json.length);
+			stableBinaries = new HashMap<>();
+			orderedBinaries = new ArrayList<>();
+			int ordinal = 0;
+			for (int i = indexOf(json, BINARY_REFERENCE, 0); i != -1; i = indexOf(json, BINARY_REFERENCE, i + 1)) {
+				int idStart = i + BINARY_REFERENCE.length;
+				if (idStart + UUID_LENGTH > json.length) {
+					break;
+				}
+				LobValue lob = binaries.get(new String(json, idStart, UUID_LENGTH, StandardCharsets.US_ASCII));
+				if (lob != null) {
+					byte[] id = UUID.nameUUIDFromBytes((uri + "#" + ordinal++).getBytes(StandardCharsets.UTF_8)).toString().getBytes(StandardCharsets.US_ASCII);
+					System.arraycopy(id, 0, json, idStart, UUID_LENGTH);
+					stableBinaries.put(new String(id, StandardCharsets.US_ASCII), lob);
+					orderedBinaries.add(lob);
+				}
+			}
+		}
+		
+		MessageDigest digest = DIGEST.get();
+		long keyHash = hash(digest.digest(uri.getBytes(StandardCharsets.UTF_8)));
+		digest.update(json);
+		if (orderedBinaries != null) {
+			byte[] chunk = new byte[LobValue.CHUNK_SIZE];
+			for (LobValue lob : orderedBinaries) {
+				try (InputStream in = lob.newInputStream()) {
+					int read;
+					while ((read = in.read(chunk)) != -1) {
+						digest.update(chunk, 0, read);
+					}
+				}
+			}
+		}
+		long contentHash = hash(digest.digest());
+		
+		long index = this.previous.find(keyHash);
+		if (index == -1) {
+			this.newRows.incrementAndGet();
+		} else if (this.previous.contentHashAt(index) != contentHash) {
+			this.changedRows.incrementAndGet();
+		} else {
+			this.unchangedRows.incrementAndGet();
+			this.next.add(keyHash, contentHash);
+			return null;
+		}
+		return new RowDocument(json, stableBinaries, row.getKey(), uri, keyHash, contentHash);
+	}
+	
+	/**
+	 * Adds an inserted row to the new index.
+	 */
+	public void inserted(RowDocument row) {
+		if (row.getUri() == null) {
+			return;
+		}
+		try {
+			this.next.add(row.getKeyHash(), row.getContentHash());
+		} catch (IOException e) {
+			this.recordFailure = e;
+		}
+	}
+	
+	/**
+	 * @return where the stable URIs of the query's rows start
+	 */
+	public String getUriBase() {
+		return this.uriBase;
+	}
+	
+	/**
+	 * Replaces the previous index with the one built by this run. Only a query
+	 * that succeeded is committed, otherwise the rows it didn't get to would
+	 * look new on the next run and be inserted again.
+	 */
+	public void commit() throws IOException {
+		this.previous.close();
+		if (this.recordFailure != null) {
+			this.next.delete();
+			throw this.recordFailure;
+		}
+		this.next.build(this.indexFile);
+		
+		// Whatever is left was collected by runs that failed and were never resumed
+		File[] runs = this.runsDirectory.listFiles();
+		if (runs != null) {
+			for (File run : runs) {
+				new HashIndex.Builder(run).delete();
+			}
+		}
+		this.runsDirectory.delete();
+	}
+	
+	public void close() throws IOException {
+		try {
+			this.next.close();
+		} finally {
+			this.previous.close();
+		}
+	}
+	
+	public JSONObject toJSON() {
+		JSONObject json = new JSONObject();
+		json.put("new", this.newRows.get());
+		json.put("changed", this.changedRows.get());
+		json.put("skipped", this.unchangedRows.get());
+		if (this.untrackedRows.get() > 0) {
+			json.put("untracked", this.untrackedRows.get());
+		}
+		json.put("previousRows", this.previous.size());
+		return json;
+	}
+	
+	private static long hash(byte[] digest) {
+		long h = 0;
+		for (int i = 0; i < 8; i++) {
+			h = (h << 8) | (digest[i] & 0xff);
+		}
+		return h;
+	}
+	
+	private static int indexOf(byte[] bytes, byte[] target, int from) {
+		outer:
+		for (int i = from; i <= bytes.length - target.length; i++) {
+			for (int j = 0; j < target.length; j++) {
+				if (bytes[i + j] != target[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Percent-encodes everything but unreserved URI characters.
+	 */
+	static void encodePathSegment(String value, StringBuilder path) {
+		for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+			int c = b & 0xff;
+			if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '.' || c == '_' || c == '~') {
+				path.append((char) c);
+			} else {
+				path.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16))).append(Character.toUpperCase(Character.forDigit(c & 0xf, 16)));
+			}
+		}
+	}
+	
+	/**
+	 * Finds the values of the named members of a JSON object, without parsing
+	 * the rest of it. Strings are unescaped and other scalars are kept as they
+	 * are written.
+	 *
+	 * @return the value of each name, null for a missing, null or non-scalar member
+	 */
+	static String[] memberValues(byte[] json, String[] names) {
+		String[] values = new String[names.length];
+		int[] pos = {skipSpace(json, 0)};
+		if (pos[0] >= json.length || json[pos[0]] != '{') {
+			return values;
+		}
+		pos[0]++;
+		while (true) {
+			pos[0] = skipSpace(json, pos[0]);
+			if (pos[0] >= json.length || json[pos[0]] != '"') {
+				return values;
+			}
+			String name = readString(json, pos);
+			pos[0] = skipSpace(json, pos[0]);
+			if (pos[0] >= json.length || json[pos[0]] != ':') {
+				return values;
+			}
+			pos[0] = skipSpace(json, pos[0] + 1);
+			int member = -1;
+			for (int i = 0; i < names.length; i++) {
+				if (names[i].equals(name)) {
+					member = i;
+				}
+			}
+			if (pos[0] >= json.length) {
+				return values;
+			}
+			byte b = json[pos[0]];
+			if (b == '"') {
+				String value = readString(json, pos);
+				if (member != -1) {
+					values[member] = value;
+				}
+			} else if (b == '{' || b == '[') {
+				pos[0] = skipNested(json, pos[0]);
+			} else {
+				int start = pos[0];
+				while (pos[0] < json.length && json[pos[0]] != ',' && json[pos[0]] != '}' && json[pos[0]] > ' ') {
+					pos[0]++;
+				}
+				String value = new String(json, start, pos[0] - start, StandardCharsets.UTF_8);
+				if (member != -1 && !value.equals("null")) {
+					values[member] = value;
+				}
+			}
+			pos[0] = skipSpace(json, pos[0]);
+			if (pos[0] >= json.length || json[pos[0]] != ',') {
+				return values;
+			}
+			pos[0]++;
+		}
+	}
+	
+	private static int skipSpace(byte[] json, int i) {
+		while (i < json.length && (json[i] == ' ' || json[i] == '\t' || json[i] == '\r' || json[i] == '\n')) {
+			i++;
+		}
+		return i;
+	}
+	
+	private static int skipNested(byte[] json, int i) {
+		int depth = 0;
+		while (i < json.length) {
+			byte b = json[i++];
+			if (b == '"') {
+				while (i < json.length && json[i] != '"') {
+					i += (json[i] == '\\') ? 2 : 1;
+				}
+				i++;
+			} else if (b == '{' || b == '[') {
+				depth++;
+			} else if ((b == '}' || b == ']') && --depth == 0) {
+				break;
+			}
+		}
+		return i;
+	}
+	
+	/**
+	 * Reads the string starting at the quote at pos[0], leaving pos[0] after
+	 * its closing quote.
+	 */
+	private static String readString(byte[] json, int[] pos) {
+		StringBuilder value = new StringBuilder();
+		int i = pos[0] + 1;
+		int run = i;
+		while (i < json.length && json[i] != '"') {
+			if (json[i] != '\\') {
+				i++;
+				continue;
+			}
+			value.append(new String(json, run, i - run, StandardCharsets.UTF_8));
+			char e = (i + 1 < json.length) ? (char) json[i + 1] : '\\';
+			i += 2;
+			switch (e) {
+				case 'b': value.append('\b'); break;
+				case 'f': value.append('\f'); break;
+				case 'n': value.append('\n'); break;
+				case 'r': value.append('\r'); break;
+				case 't': value.append('\t'); break;
+				case 'u':
+					if (i + 4 <= json.length) {
+						value.append((char) Integer.parseInt(new String(json, i, 4, StandardCharsets.US_ASCII), 16));
+						i += 4;
+					}
+					break;
+				default: value.append(e);
+			}
+			run = i;
+		}
+		value.append(new String(json, run, Math.min(i, json.length) - run, StandardCharsets.UTF_8));
+		pos[0] = i + 1;
+		return value.toString();
+	}
+}
@@ -0,0 +1,307 @@
+/**
+ * Per-query plan for turning ResultSet rows into JSON documents. Built once
+ * from the ResultSetMetaData, it holds each column's escaped field name and
+ * the kind of extractor to use, and writes every row straight into a reusable
+ * buffer with native JSON numbers, booleans and nulls.
+ */
+package com.marklogic.rowbot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+class ColumnPlan {
+	static final int KIND_SKIP = 0;
+	static final int KIND_STRING = 1;
+	static final int KIND_INTEGER = 2;
+	static final int KIND_DECIMAL = 3;
+	static final int KIND_DOUBLE = 4;
+	static final int KIND_BOOLEAN = 5;
+	static final int KIND_TIMESTAMP = 6;
+	static final int KIND_DATE = 7;
+	static final int KIND_TIME = 8;
+	static final int KIND_NULL = 9;
+	static final int KIND_BLOB = 10;
+	static final int KIND_CLOB = 11;
+	// MarkLogic stores JSON numbers as doubles, so longer numbers are kept as strings
+	static final int MAX_EXACT_DIGITS = 15;
+	static final long MAX_EXACT_LONG = 1000000000000000L;
+	static final int INITIAL_BUFFER_SIZE = 8192;
+	// Types.TIMESTAMP_WITH_TIMEZONE is only in Java 8, and Oracle has its own codes for TIMESTAMP WITH (LOCAL) TIME ZONE
+	static final int TYPE_TIMESTAMP_WITH_TIMEZONE = 2014;
+	static final int TYPE_ORACLE_TIMESTAMPTZ = -101;
+	static final int TYPE_ORACLE_TIMESTAMPLTZ = -102;
+	private final int numColumns;
+	private final int[] kinds;
+	private final byte[][] fieldPrefixes;
+	private final int keyIndex;
+	private final boolean timestampKey;
+	private final int lobMemoryThreshold;
+	private final File lobSpillDirectory;
+	private final JsonRowWriter writer = new JsonRowWriter(INITIAL_BUFFER_SIZE);
+	
+	public ColumnPlan(ResultSetMetaData rsm, String keyColumn, int lobMemoryThreshold, File lobSpillDirectory) throws SQLException {
+		this.numColumns = rsm.getColumnCount();
+		this.kinds = new int[numColumns + 1];
+		this.fieldPrefixes = new byte[numColumns + 1][];
+		this.lobMemoryThreshold = lobMemoryThreshold;
+		this.lobSpillDirectory = lobSpillDirectory;
+		
+		// A repeated column name keeps its last value, as it did when rows were maps
+		Set<String> seen = new HashSet<>();
+		int keyIndex = 0;
+		for (int i = numColumns; i >= 1; i--) {
+			String name = rsm.getColumnName(i);
+			this.kinds[i] = seen.add(name) ? kindOf(rsm.getColumnType(i)) : KIND_SKIP;
+			if (keyIndex == 0 && name.equalsIgnoreCase(keyColumn)) {
+				keyIndex = i;
+			}
+		}
+		if (keyColumn != null && keyIndex == 0) {
+			throw new SQLException("Key column " + keyColumn + " is not in the query results");
+		}
+		this.keyIndex = keyIndex;
+		this.timestampKey = keyIndex > 0 && isTimestampType(rsm.getColumnType(keyIndex));
+		
+		boolean first = true;
+		for (int i = 1; i <= numColumns; i++) {
+			if (this.kinds[i] == KIND_SKIP) {
+				continue;
+			}
+			this.writer.reset();
+			if (!first) {
+				this.writer.write((byte) ',');
+			}
+			this.writer.writeString(rsm.getColumnName(i));
+			this.writer.write((byte) ':');
+			this.fieldPrefixes[i] = this.writer.toByteArray();
+			first = false;
+		}
+	}
+	
+	private static int kindOf(int columnType) {
+		switch (columnType) {
+			case Types.TINYINT:
+			case Types.SMALLINT:
+			case Types.INTEGER:
+			case Types.BIGINT:
+				return KIND_INTEGER;
+			case Types.NUMERIC:
+			case Types.DECIMAL:
+				return KIND_DECIMAL;
+			case Types.REAL:
+			case Types.FLOAT:
+			case Types.DOUBLE:
+				return KIND_DOUBLE;
+			case Types.BIT:
+			case Types.BOOLEAN:
+				return KIND_BOOLEAN;
+			case Types.TIMESTAMP:
+				return KIND_TIMESTAMP;
+			case Types.DATE:
+				return KIND_DATE;
+			case Types.TIME:
+				return KIND_TIME;
+			case Types.NULL:
+				return KIND_NULL;
+			case Types.BLOB:
+				return KIND_BLOB;
+			case Types.CLOB:
+			case Types.NCLOB:
+				return KIND_CLOB;
+			default:
+				return KIND_STRING;
+		}
+	}
+	
+	/**
+	 * Whether a column holds a point in time, which is read with getTimestamp
+	 * rather than as the driver's own object, such as an oracle.sql.TIMESTAMP.
+	 */
+	static boolean isTimestampType(int columnType) {
+		switch (columnType) {
+			case Types.DATE:
+			case Types.TIMESTAMP:
+			case TYPE_TIMESTAMP_WITH_TIMEZONE:
+			case TYPE_ORACLE_TIMESTAMPTZ:
+			case TYPE_ORACLE_TIMESTAMPLTZ:
+				return true;
+			default:
+				return false;
+		}
+	}
+	
+	/**
+	 * Reads a checkpoint or join key. Timestamp keys are java.sql.Timestamps, so
+	 * they are saved and bound again as timestamps rather than as the text of
+	 * the driver's own object.
+	 */
+	static Object readKey(ResultSet rs, int index, boolean timestamp) throws SQLException {
+		return timestamp ? rs.getTimestamp(index) : rs.getObject(index);
+	}
+	
+	/**
+	 * Serializes the current row. Must be called while the row is current, since
+	 * LOB columns are read from the ResultSet here.
+	 */
+	public RowDocument readRow(ResultSet rs) throws SQLException, IOException {
+		JsonRowWriter w = this.writer;
+		Map<String, LobValue> binaries = null;
+		w.reset();
+		w.write((byte) '{');
+		for (int i = 1; i <= this.numColumns; i++) {
+			int kind = this.kinds[i];
+			if (kind == KIND_SKIP) {
+				continue;
+			}
+			w.write(this.fieldPrefixes[i]);
+			switch (kind) {
+				case KIND_INTEGER: {
+					long value = rs.getLong(i);
+					if (rs.wasNull()) {
+						w.writeAscii("null");
+					} else if (value > -MAX_EXACT_LONG && value < MAX_EXACT_LONG) {
+						w.writeAscii(Long.toString(value));
+					} else {
+						w.writeString(Long.toString(value));
+					}
+					break;
+				}
+				case KIND_DECIMAL: {
+					BigDecimal value = rs.getBigDecimal(i);
+					if (value == null) {
+						w.writeAscii("null");
+					} else if (value.precision() <= MAX_EXACT_DIGITS) {
+						w.writeAscii(value.toString());
+					} else {
+						w.writeString(value.toPlainString());
+					}
+					break;
+				}
+				case KIND_DOUBLE: {
+					double value = rs.getDouble(i);
+					if (rs.wasNull()) {
+						w.writeAscii("null");
+					} else if (Double.isNaN(value) || Double.isInfinite(value)) {
+						w.writeString(Double.toString(value));
+					} else {
+						w.writeAscii(Double.toString(value));
+					}
+					break;
+				}
+				case KIND_BOOLEAN: {
+					boolean value = rs.getBoolean(i);
+					w.writeAscii(rs.wasNull() ? "null" : (value ? "true" : "false"));
+					break;
+				}
+				case KIND_TIMESTAMP: {
+					Timestamp value = rs.getTimestamp(i);
+					if (value == null) {
+						w.writeAscii("null");
+					} else {
+						w.writeString(formatTimestamp(value));
+					}
+					break;
+				}
+				case KIND_DATE: {
+					java.sql.Date value = rs.getDate(i);
+					if (value == null) {
+						w.writeAscii("null");
+					} else {
+						w.writeString(value.toString());
+					}
+					break;
+				}
+				case KIND_TIME: {
+					java.sql.Time value = rs.getTime(i);
+					if (value == null) {
+						w.writeAscii("null");
+					} else {
+						w.writeString(value.toString());
+					}
+					break;
+				}
+				case KIND_BLOB: {
+					InputStream value = rs.getBinaryStream(i);
+					if (value == null) {
+						w.writeAscii("null");
+					} else {
+						binaries = addBinary(binaries, LobValue.fromStream(value, this.lobMemoryThreshold, this.lobSpillDirectory));
+					}
+					break;
+				}
+				case KIND_CLOB: {
+					Reader value = rs.getCharacterStream(i);
+					if (value == null) {
+						w.writeAscii("null");
+					} else {
+						LobValue clob = LobValue.fromReader(value, this.lobMemoryThreshold, this.lobSpillDirectory);
+						// CLOBs that fit in memory stay inline, larger ones become binary documents
+						if (clob.isSpilled()) {
+							binaries = addBinary(binaries, clob);
+						} else {
+							w.writeString(clob.asString());
+						}
+					}
+					break;
+				}
+				case KIND_NULL:
+					w.writeAscii("null");
+					break;
+				default: {
+					String value = rs.getString(i);
+					if (value == null) {
+						w.writeAscii("null");
+					} else {
+						w.writeString(value);
+					}
+				}
+			}
+		}
+		w.write((byte) '}');
+		
+		Object key = (this.keyIndex > 0) ? readKey(rs, this.keyIndex, this.timestampKey) : null;
+		return new RowDocument(w.toByteArray(), binaries, key);
+	}
+	
+	/**
+	 * Registers a LOB with the row and writes its "BINARY:uuid" reference.
+	 */
+	private Map<String, LobValue> addBinary(Map<String, LobValue> binaries, LobValue lob) {
+		if (binaries == null) {
+			binaries = new HashMap<>();
+		}
+		String binaryUUID = UUID.randomUUID().toString();
+		binaries.put(binaryUUID, lob);
+		this.writer.writeString("BINARY:" + binaryUUID);
+		return binaries;
+	}
+	
+	/**
+	 * ISO 8601 local date time, with the fractional seconds trimmed.
+	 */
+	static String formatTimestamp(Timestamp value) {
+		// Timestamp.toString is yyyy-mm-dd hh:mm:ss.fffffffff
+		String text = value.toString();
+		int end = text.length();
+		while (text.charAt(end - 1) == '0') {
+			end--;
+		}
+		if (text.charAt(end - 1) == '.') {
+			end--;
+		}
+		return text.substring(0, 10) + 'T' + text.substring(11, end);
+	}
+}
@@ -0,0 +1,178 @@
+/**
+ * Pool of JDBC connections for one entry of the job's "connections" array.
+ * The pool is filled to "minSize" when the job starts, and further connections
+ * are created on demand up to "maxSize". They are reused most recently used
+ * first, and validated before reuse when they have sat idle. Idle connections
+ * beyond "minSize" are closed once they pass the idle timeout.
+ */
+package com.marklogic.rowbot;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Properties;
+
+import org.json.JSONObject;
+
+class ConnectionPool {
+	static final int DEFAULT_MIN_SIZE = 0;
+	static final int DEFAULT_MAX_SIZE = Integer.MAX_VALUE;
+	static final int DEFAULT_STATEMENT_CACHE_SIZE = 20;
+	static final int DEFAULT_VALIDATION_TIMEOUT = 4;
+	static final long DEFAULT_VALIDATION_INTERVAL_MILLIS = 30000;
+	static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 60000;
+	private final String key;
+	private final String connectionString;
+	private final Properties props;
+	private final int minSize;
+	private final int maxSize;
+	private final int statementCacheSize;
+	private final int validationTimeout;
+	private final long validationIntervalMillis;
+	private final long idleTimeoutMillis;
+	private final LinkedList<PooledConnection> idle = new LinkedList<>();
+	private int total = 0;
+	private boolean closed = false;
+	
+	public ConnectionPool(JSONObject connectionObj) {
+		this.key = connectionObj.getString("key");
+		this.connectionString = connectionObj.getString("connectionString");
+		this.props = new Properties();
+		JSONObject propsObj = connectionObj.getJSONObject("properties");
+		Iterator<String> itr = propsObj.keys();
+		while (itr.hasNext()) {
+			String propKey = itr.next();
+			this.props.put(propKey, propsObj.getString(propKey));
+		}
+		
+		JSONObject poolObj = connectionObj.has("pool") ? connectionObj.getJSONObject("pool") : new JSONObject();
+		this.minSize = poolObj.optInt("minSize", DEFAULT_MIN_SIZE);
+		this.maxSize = Math.max(1, poolObj.optInt("maxSize", DEFAULT_MAX_SIZE));
+		this.statementCacheSize = Math.max(1, poolObj.optInt("statementCacheSize", DEFAULT_STATEMENT_CACHE_SIZE));
+		this.validationTimeout = poolObj.optInt("validationTimeout", DEFAULT_VALIDATION_TIMEOUT);
+		this.validationIntervalMillis = poolObj.optLong("validationInterval", DEFAULT_VALIDATION_INTERVAL_MILLIS / 1000) * 1000;
+		this.idleTimeoutMillis = poolObj.optLong("idleTimeout", DEFAULT_IDLE_TIMEOUT_MILLIS / 1000) * 1000;
+	}
+	
+	public String getKey() {
+		return this.key;
+	}
+	
+	/**
+	 * Takes a healthy connection from the pool, opening a new one if none are
+	 * idle and the pool is below its maximum size, otherwise waiting for one
+	 * to be released.
+	 */
+	public PooledConnection borrow() throws SQLException, InterruptedException {
+		while (true) {
+			PooledConnection candidate = null;
+			List<PooledConnection> expired;
+			synchronized (this) {
+				if (this.closed) {
+					throw new SQLException("Connection pool " + this.key + " is closed");
+				}
+				expired = this.removeExpired();
+				if (!this.idle.isEmpty()) {
+					candidate = this.idle.removeFirst();
+				} else if (this.total < this.maxSize) {
+					this.total++;
+				} else {
+					this.wait();
+					continue;
+				}
+			}
+			for (PooledConnection connection : expired) {
+				connection.close();
+			}
+			
+			if (candidate == null) {
+				return this.open();
+			}
+			if (candidate.isHealthy(this.validationTimeout, this.validationIntervalMillis)) {
+				return candidate;
+			}
+			this.invalidate(candidate);
+		}
+	}
+	
+	/**
+	 * Opens connections until the pool holds "minSize" of them, so the first
+	 * queries don't each wait for a connection to be made.
+	 */
+	public void fill() throws SQLException {
+		while (true) {
+			synchronized (this) {
+				if (this.closed || this.total >= Math.min(this.minSize, this.maxSize)) {
+					return;
+				}
+				this.total++;
+			}
+			this.release(this.open());
+		}
+	}
+	
+	/**
+	 * Opens a connection that has already been counted in the pool's total.
+	 */
+	private PooledConnection open() throws SQLException {
+		try {
+			return new PooledConnection(DriverManager.getConnection(this.connectionString, this.props), this.statementCacheSize);
+		} catch (SQLException e) {
+			this.discarded();
+			throw e;
+		}
+	}
+	
+	public void release(PooledConnection connection) {
+		synchronized (this) {
+			if (!this.closed) {
+				connection.markIdle();
+				this.idle.addFirst(connection);
+				this.notifyAll();
+				return;
+			}
+		}
+		this.invalidate(connection);
+	}
+	
+	/**
+	 * Closes a connection that is broken or in an unknown state instead of
+	 * returning it to the pool.
+	 */
+	public void invalidate(PooledConnection connection) {
+		connection.close();
+		this.discarded();
+	}
+	
+	private synchronized void discarded() {
+		this.total--;
+		this.notifyAll();
+	}
+	
+	private List<PooledConnection> removeExpired() {
+		List<PooledConnection> expired = new ArrayList<>();
+		// The least recently used connections are at the end
+		while (this.idle.size() > this.minSize && this.idle.getLast().idleMillis() > this.idleTimeoutMillis) {
+			expired.add(this.idle.removeLast());
+			this.total--;
+		}
+		return expired;
+	}
+	
+	public void close() {
+		List<PooledConnection> connections;
+		synchronized (this) {
+			this.closed = true;
+			connections = new ArrayList<>(this.idle);
+			this.total -= this.idle.size();
+			this.idle.clear();
+			this.notifyAll();
+		}
+		for (PooledConnection connection : connections) {
+			connection.close();
+		}
+	}
+}
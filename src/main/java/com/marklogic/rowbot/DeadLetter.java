@@ -0,0 +1,100 @@
+/**
+ * Documents that could not be inserted even after retries. They are appended
+ * to a newline delimited JSON file, one line per document with its uri,
+ * collections, error message and JSON. Binary documents are copied to files
+ * beside it. A later run can insert them again with --replay. Nothing is
+ * written until the first failure.
+ */
+package com.marklogic.rowbot;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+class DeadLetter {
+	static final String DEFAULT_DIRECTORY = "rowbot-dead-letter";
+	private final File file;
+	private final File binaryDirectory;
+	private Writer writer;
+	private int count = 0;
+	
+	/**
+	 * @param name distinguishes this run's file from others in the directory
+	 */
+	public DeadLetter(File directory, String name) {
+		// Timestamps contain colons, which aren't allowed in file names everywhere
+		String safeName = name.replaceAll("[^A-Za-z0-9._-]", "-");
+		this.file = new File(directory, "rowbot-dead-letter-" + safeName + ".ndjson");
+		this.binaryDirectory = new File(directory, "rowbot-dead-letter-" + safeName + "-binaries");
+	}
+	
+	public synchronized void add(String uri, String[] collections, byte[] json, String message) {
+		JSONObject entry = this.entry(uri, collections, message);
+		entry.put("json", new String(json, StandardCharsets.UTF_8));
+		this.write(entry);
+	}
+	
+	public synchronized void addBinary(String uri, String[] collections, LobValue binary, String message) {
+		JSONObject entry = this.entry(uri, collections, message);
+		try {
+			this.binaryDirectory.mkdirs();
+			File copy = new File(this.binaryDirectory, (this.count + 1) + ".bin");
+			binary.copyTo(copy);
+			entry.put("file", this.binaryDirectory.getName() + "/" + copy.getName());
+		} catch (IOException e) {
+			System.out.println("Unable to copy binary document " + uri + " to the dead letter directory: " + e.getMessage());
+		}
+		this.write(entry);
+	}
+	
+	private JSONObject entry(String uri, String[] collections, String message) {
+		JSONObject entry = new JSONObject();
+		entry.put("uri", uri);
+		entry.put("collections", new JSONArray(collections));
+		entry.put("message", message);
+		return entry;
+	}
+	
+	private void write(JSONObject entry) {
+		try {
+			if (this.writer == null) {
+				this.file.getAbsoluteFile().getParentFile().mkdirs();
+				this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(this.file, true), StandardCharsets.UTF_8));
+				System.out.println("Writing documents that could not be inserted to " + this.file.getPath());
+			}
+			this.writer.write(entry.toString());
+			this.writer.write('\n');
+			// Failures should be rare, and the file is only useful if it survives a crash
+			this.writer.flush();
+			this.count++;
+		} catch (IOException e) {
+			System.out.println("Unable to write " + entry.getString("uri") + " to the dead letter file: " + e.getMessage());
+		}
+	}
+	
+	public synchronized int getCount() {
+		return this.count;
+	}
+	
+	public File getFile() {
+		return this.file;
+	}
+	
+	public synchronized void close() {
+		if (this.writer != null) {
+			try {
+				this.writer.close();
+			} catch (IOException e) {
+				System.out.println("Unable to close the dead letter file: " + e.getMessage());
+			}
+			this.writer = null;
+		}
+	}
+}
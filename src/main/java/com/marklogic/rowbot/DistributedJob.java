@@ -0,0 +1,498 @@
+/**
+ * Runs one job across several RowBot processes, on one host or many, that
+ * share a "directory". The first process to arrive writes the job's manifest:
+ * its timestamp, its query ids and its work units, which are the queries and
+ * the slices of partitioned ones. Every process then claims units through
+ * leases in the directory, so the same job file can be started as many times
+ * as there are machines to run it.
+ *
+ * A lease is a file per unit and epoch, created with a hard link so only one
+ * process can create it. Its holder rewrites it every "heartbeatInterval"
+ * seconds, and a lease nobody has seen change for "leaseTimeout" seconds is
+ * taken over by creating the next epoch, which tells the old holder it has
+ * lost the unit: it stops reading the unit and leaves its checkpoint and
+ * report to the new holder. Expiry is judged by each process's own clock, so
+ * the hosts' clocks don't have to agree. A unit taken over resumes from its
+ * checkpoint.
+ *
+ * Each process writes a summary of its part of the job when every unit is
+ * done, and merges the summaries into the job's rowbot-report under a lock,
+ * so the last one to finish leaves a report that covers them all.
+ */
+package com.marklogic.rowbot;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+class DistributedJob {
+	static final long DEFAULT_LEASE_TIMEOUT = 60;
+	static final long DEFAULT_HEARTBEAT_INTERVAL = 10;
+	static final String MANIFEST = "job.json";
+	static final String REPORT_LOCK = "report.lock";
+	static final String LEASE_SUFFIX = ".lease";
+	static final String DONE_SUFFIX = ".done";
+	static final String[] SUMMED_METRICS = {"rowsRead", "docsInserted", "bytesSent", "bytesSentToHosts", "insertRetries"};
+	private final File directory;
+	private final File unitDirectory;
+	private final File workerDirectory;
+	private final long leaseTimeoutNanos;
+	private final long heartbeatMillis;
+	private final String worker;
+	private final JSONObject manifest;
+	private final boolean created;
+	// The leases this process holds, by unit
+	private final Map<Integer, Lease> held = new HashMap<>();
+	// The epoch and heartbeat last seen on each unit's lease, and when they were first seen
+	private final Map<Integer, long[]> observed = new HashMap<>();
+	private final JSONArray unitsRun = new JSONArray();
+	private final ScheduledExecutorService heartbeat;
+	
+	/**
+	 * A unit this process has claimed.
+	 */
+	static class Lease {
+		final int unit;
+		final int epoch;
+		final JSONObject unitObject;
+		long heartbeat = 0;
+		volatile boolean lost = false;
+		
+		Lease(int unit, int epoch, JSONObject unitObject) {
+			this.unit = unit;
+			this.epoch = epoch;
+			this.unitObject = unitObject;
+		}
+		
+		int getQuery() {
+			return this.unitObject.getInt("query");
+		}
+		
+		/**
+		 * @return the slice of the query to read, or -1 for all of them
+		 */
+		int getSlice() {
+			return this.unitObject.optInt("slice", -1);
+		}
+		
+		/**
+		 * @return whether another process has taken the unit over
+		 */
+		boolean isLost() {
+			return this.lost;
+		}
+	}
+	
+	/**
+	 * Thrown to stop running a unit whose lease another process took over.
+	 */
+	static class LeaseLostException extends Exception {
+		private static final long serialVersionUID = 1L;
+		
+		LeaseLostException(Lease lease) {
+			super("Lost the lease on unit " + lease.unit + " to another worker");
+		}
+	}
+	
+	/**
+	 * Joins the job in the directory, writing its manifest if this is the
+	 * first process to get there.
+	 *
+	 * @param spooled   whether the job has a spool, which keeps its queries whole
+	 * @param timestamp the timestamp to give the job if this process starts it
+	 * @param worker    the name of this process, or null for its pid and host
+	 */
+	public DistributedJob(JSONObject config, JSONArray queries, boolean spooled, String timestamp, String worker) throws IOException {
+		this.directory = new File(config.getString("directory"));
+		this.unitDirectory = new File(this.directory, "units");
+		this.workerDirectory = new File(this.directory, "workers");
+		this.leaseTimeoutNanos = (config.has("leaseTimeout") ? config.getLong("leaseTimeout") : DEFAULT_LEASE_TIMEOUT) * 1000000000L;
+		this.heartbeatMillis = Math.max(1, (config.has("heartbeatInterval") ? config.getLong("heartbeatInterval") : DEFAULT_HEARTBEAT_INTERVAL) * 1000);
+		this.worker = (worker != null) ? worker : ManagementFactory.getRuntimeMXBean().getName();
+		this.unitDirectory.mkdirs();
+		this.workerDirectory.mkdirs();
+		
+		File manifestFile = new File(this.directory, MANIFEST);
+		boolean published = false;
+		if (!manifestFile.isFile()) {
+			published = publish(manifestFile, newManifest(queries, spooled, timestamp).toString());
+		}
+		this.created = published;
+		this.manifest = readJSON(manifestFile);
+		if (this.manifest.getJSONArray("queryIds").length() != queries.length()) {
+			throw new IllegalArgumentException("The job in " + this.directory.getPath() + " has " + this.manifest.getJSONArray("queryIds").length()
+				+ " queries, but the job file has " + queries.length());
+		}
+		
+		this.heartbeat = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "rowbot-lease-heartbeat");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.heartbeat.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				renewLeases();
+			}
+		}, this.heartbeatMillis, this.heartbeatMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * A query is split into a unit per slice when it is partitioned, unless
+	 * something about it has to be finished by one process: change detection,
+	 * a spool, or an incremental query's last run.
+	 */
+	private JSONObject newManifest(JSONArray queries, boolean spooled, String timestamp) {
+		JSONObject json = new JSONObject();
+		json.put("timestamp", timestamp);
+		json.put("createdBy", this.worker);
+		JSONArray queryIds = new JSONArray();
+		JSONArray units = new JSONArray();
+		for (int i = 0; i < queries.length(); i++) {
+			JSONObject queryObject = queries.getJSONObject(i);
+			queryIds.put(queryObject.has("queryId") ? queryObject.getString("queryId") : UUID.randomUUID().toString());
+			int slices = queryObject.has("partition") ? queryObject.getJSONObject("partition").optInt("slices", 1) : 1;
+			boolean whole = spooled || queryObject.has("changes") || queryObject.has("file") || queryObject.has("children")
+				|| queryObject.optString("query").contains(QueryBot.LAST_RUN_PARAM);
+			if (slices < 2 || whole) {
+				units.put(new JSONObject().put("query", i));
+			} else {
+				for (int s = 0; s < slices; s++) {
+					units.put(new JSONObject().put("query", i).put("slice", s));
+				}
+			}
+		}
+		json.put("queryIds", queryIds);
+		json.put("units", units);
+		return json;
+	}
+	
+	public String getTimestamp() {
+		return this.manifest.getString("timestamp");
+	}
+	
+	public JSONArray getQueryIds() {
+		return this.manifest.getJSONArray("queryIds");
+	}
+	
+	public String getWorker() {
+		return this.worker;
+	}
+	
+	/**
+	 * @return whether this process wrote the manifest, and so starts the job's report
+	 */
+	public boolean isCreated() {
+		return this.created;
+	}
+	
+	/**
+	 * Claims the next unit that is neither done nor leased, or whose lease has
+	 * expired, waiting for one while other processes hold the rest.
+	 *
+	 * @return the claimed unit, or null once every unit is done
+	 */
+	public Lease claim() throws IOException, InterruptedException {
+		JSONArray units = this.manifest.getJSONArray("units");
+		while (true) {
+			Map<Integer, Integer> epochs = new HashMap<>();
+			Set<Integer> done = new LinkedHashSet<>();
+			scan(epochs, done);
+			if (done.size() == units.length()) {
+				return null;
+			}
+			for (int u = 0; u < units.length(); u++) {
+				if (done.contains(u)) {
+					continue;
+				}
+				Integer epoch = epochs.get(u);
+				if (epoch != null && !this.expired(u, epoch)) {
+					continue;
+				}
+				int nextEpoch = (epoch == null) ? 0 : epoch + 1;
+				Lease lease = new Lease(u, nextEpoch, units.getJSONObject(u));
+				if (publish(leaseFile(u, nextEpoch), leaseJSON(lease).toString())) {
+					if (epoch != null) {
+						System.out.println("Took over unit " + u + " from an expired lease.");
+					}
+					synchronized (this.held) {
+						this.held.put(u, lease);
+					}
+					return lease;
+				}
+			}
+			Thread.sleep(this.heartbeatMillis);
+		}
+	}
+	
+	/**
+	 * Lists the latest epoch of each unit's lease, and the units that are done.
+	 */
+	private void scan(Map<Integer, Integer> epochs, Set<Integer> done) {
+		String[] names = this.unitDirectory.list();
+		if (names == null) {
+			return;
+		}
+		for (String name : names) {
+			try {
+				if (name.endsWith(DONE_SUFFIX)) {
+					done.add(Integer.parseInt(name.substring(0, name.length() - DONE_SUFFIX.length())));
+				} else if (name.endsWith(LEASE_SUFFIX)) {
+					String[] parts = name.substring(0, name.length() - LEASE_SUFFIX.length()).split("\\.");
+					int unit = Integer.parseInt(parts[0]);
+					int epoch = Integer.parseInt(parts[1]);
+					Integer latest = epochs.get(unit);
+					if (latest == null || epoch > latest) {
+						epochs.put(unit, epoch);
+					}
+				}
+			} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+				// Not one of ours
+			}
+		}
+	}
+	
+	/**
+	 * A lease has expired when its heartbeat hasn't changed for the lease
+	 * timeout, as timed from when this process first saw it.
+	 */
+	private boolean expired(int unit, int epoch) {
+		synchronized (this.held) {
+			if (this.held.containsKey(unit)) {
+				return false;
+			}
+		}
+		long heartbeat;
+		try {
+			heartbeat = readJSON(leaseFile(unit, epoch)).getLong("heartbeat");
+		} catch (IOException | JSONException e) {
+			// Gone or being replaced, look again next time
+			return false;
+		}
+		long now = System.nanoTime();
+		synchronized (this.observed) {
+			long[] seen = this.observed.get(unit);
+			if (seen == null || seen[0] != epoch || seen[1] != heartbeat) {
+				this.observed.put(unit, new long[] {epoch, heartbeat, now});
+				return false;
+			}
+			return now - seen[2] > this.leaseTimeoutNanos;
+		}
+	}
+	
+	/**
+	 * Rewrites the leases this process holds, or marks them lost once another
+	 * process has taken them over.
+	 */
+	void renewLeases() {
+		List<Lease> leases;
+		synchronized (this.held) {
+			leases = new ArrayList<>(this.held.values());
+		}
+		for (Lease lease : leases) {
+			try {
+				if (leaseFile(lease.unit, lease.epoch + 1).exists()) {
+					if (!lease.lost) {
+						System.out.println("Lost the lease on unit " + lease.unit + " to another worker.");
+					}
+					lease.lost = true;
+					continue;
+				}
+				lease.heartbeat++;
+				write(leaseFile(lease.unit, lease.epoch), leaseJSON(lease).toString());
+			} catch (IOException e) {
+				System.out.println("Unable to renew the lease on unit " + lease.unit + ": " + e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Marks a unit done, unless its lease was lost, in which case the process
+	 * that took it over finishes it. The unit's leases are left in place, so a
+	 * process working from an older listing of the directory can't claim it
+	 * again, and an earlier holder still finds out it lost the unit.
+	 */
+	public void complete(Lease lease, boolean success) throws IOException {
+		synchronized (this.held) {
+			this.held.remove(lease.unit);
+		}
+		synchronized (this.unitsRun) {
+			this.unitsRun.put(new JSONObject(lease.unitObject.toString()).put("success", success).put("leaseLost", lease.lost));
+		}
+		if (lease.lost || leaseFile(lease.unit, lease.epoch + 1).exists()) {
+			return;
+		}
+		JSONObject json = new JSONObject();
+		json.put("worker", this.worker);
+		json.put("success", success);
+		write(new File(this.unitDirectory, lease.unit + DONE_SUFFIX), json.toString());
+	}
+	
+	/**
+	 * Writes this process's summary of the job and merges it with the other
+	 * processes' into the job's report.
+	 *
+	 * @param summary this process's part of the report
+	 * @return the merged report, to be written before {@link #unlockReport()}
+	 */
+	public JSONObject mergeReport(JSONObject summary) throws IOException, InterruptedException {
+		this.heartbeat.shutdownNow();
+		summary.put("worker", this.worker);
+		synchronized (this.unitsRun) {
+			summary.put("units", this.unitsRun);
+		}
+		write(new File(this.workerDirectory, safeName(this.worker) + ".json"), summary.toString());
+		lockReport();
+		try {
+			return merge(summary);
+		} catch (IOException | RuntimeException e) {
+			unlockReport();
+			throw e;
+		}
+	}
+	
+	private JSONObject merge(JSONObject summary) throws IOException {
+		JSONObject report = new JSONObject();
+		JSONObject workers = new JSONObject();
+		Set<String> insertReportUris = new LinkedHashSet<>();
+		Set<String> queryReportUris = new LinkedHashSet<>();
+		JSONObject metrics = new JSONObject();
+		double totalRuntime = 0;
+		int deadLetterCount = 0;
+		File[] files = this.workerDirectory.listFiles();
+		for (File file : (files != null) ? files : new File[0]) {
+			if (!file.getName().endsWith(".json")) {
+				continue;
+			}
+			JSONObject workerSummary = readJSON(file);
+			totalRuntime = Math.max(totalRuntime, workerSummary.getDouble("totalRuntime"));
+			for (Object uri : workerSummary.getJSONArray("insertReportUris")) {
+				insertReportUris.add(uri.toString());
+			}
+			for (Object uri : workerSummary.getJSONArray("queryReportUris")) {
+				queryReportUris.add(uri.toString());
+			}
+			JSONObject workerMetrics = workerSummary.getJSONObject("metrics");
+			for (String name : SUMMED_METRICS) {
+				metrics.put(name, metrics.optLong(name) + workerMetrics.optLong(name));
+			}
+			deadLetterCount += workerSummary.optInt("deadLetterCount");
+			workerSummary.remove("insertReportUris");
+			workerSummary.remove("queryReportUris");
+			workerSummary.remove("timestamp");
+			workerSummary.remove("jobName");
+			workerSummary.remove("type");
+			workers.put(workerSummary.getString("worker"), workerSummary);
+		}
+		double seconds = Math.max(totalRuntime, 1e-9);
+		metrics.put("rowsPerSecond", metrics.optLong("rowsRead") / seconds);
+		metrics.put("docsPerSecond", metrics.optLong("docsInserted") / seconds);
+		metrics.put("mbPerSecond", metrics.optLong("bytesSent") / Throughput.BYTES_PER_MB / seconds);
+		
+		if (summary.has("jobName")) {
+			report.put("jobName", summary.getString("jobName"));
+		}
+		report.put("timestamp", getTimestamp());
+		report.put("totalRuntime", totalRuntime);
+		report.put("insertReportUris", insertReportUris);
+		report.put("queryReportUris", queryReportUris);
+		report.put("metrics", metrics);
+		report.put("workers", workers);
+		if (deadLetterCount > 0) {
+			report.put("deadLetterCount", deadLetterCount);
+		}
+		if (summary.has("type")) {
+			report.put("type", summary.getString("type"));
+		}
+		report.put("status", "complete");
+		return report;
+	}
+	
+	/**
+	 * Waits for the report lock. A lock left by a process that died while
+	 * holding it is broken after the lease timeout.
+	 */
+	private void lockReport() throws IOException, InterruptedException {
+		File lock = new File(this.directory, REPORT_LOCK);
+		long start = System.nanoTime();
+		while (!publish(lock, this.worker)) {
+			if (System.nanoTime() - start > this.leaseTimeoutNanos) {
+				System.out.println("Breaking the report lock held by " + new String(Files.readAllBytes(lock.toPath()), StandardCharsets.UTF_8) + ".");
+				Files.deleteIfExists(lock.toPath());
+				start = System.nanoTime();
+			}
+			Thread.sleep(100);
+		}
+	}
+	
+	public void unlockReport() throws IOException {
+		Files.deleteIfExists(new File(this.directory, REPORT_LOCK).toPath());
+	}
+	
+	private File leaseFile(int unit, int epoch) {
+		return new File(this.unitDirectory, unit + "." + epoch + LEASE_SUFFIX);
+	}
+	
+	private JSONObject leaseJSON(Lease lease) {
+		JSONObject json = new JSONObject();
+		json.put("worker", this.worker);
+		json.put("unit", lease.unit);
+		json.put("epoch", lease.epoch);
+		json.put("heartbeat", lease.heartbeat);
+		return json;
+	}
+	
+	/**
+	 * Creates a file with the given content, only if it doesn't exist yet.
+	 * The content is written first and hard linked into place, so the file is
+	 * never seen half written and only one process can create it.
+	 *
+	 * @return false if the file already exists
+	 */
+	private boolean publish(File file, String content) throws IOException {
+		File tmp = new File(file.getPath() + "." + UUID.randomUUID() + ".tmp");
+		Files.write(tmp.toPath(), content.getBytes(StandardCharsets.UTF_8));
+		try {
+			Files.createLink(file.toPath(), tmp.toPath());
+			return true;
+		} catch (FileAlreadyExistsException e) {
+			return false;
+		} finally {
+			Files.deleteIfExists(tmp.toPath());
+		}
+	}
+	
+	private static void write(File file, String content) throws IOException {
+		File tmp = new File(file.getPath() + "." + UUID.randomUUID() + ".tmp");
+		Files.write(tmp.toPath(), content.getBytes(StandardCharsets.UTF_8));
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	private static JSONObject readJSON(File file) throws IOException {
+		return new JSONObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+	}
+	
+	private static String safeName(String name) {
+		return name.replaceAll("[^A-Za-z0-9._-]", "-");
+	}
+}
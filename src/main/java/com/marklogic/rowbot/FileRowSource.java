@@ -0,0 +1,366 @@
+/**
+ * Rows of CSV or newline delimited JSON files. Each file is split into
+ * ranges of about "splitBytes" at record boundaries, and the splits are
+ * memory-mapped and parsed in parallel as the slices of the query.
+ *
+ * NDJSON lines are inserted as they are. CSV records become JSON objects
+ * with a string field per column, named from the file's header row or the
+ * "columns" option, and null for an empty unquoted value.
+ */
+package com.marklogic.rowbot;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+class FileRowSource implements RowSource {
+	static final long DEFAULT_SPLIT_BYTES = 67108864;
+	static final int FETCH_ROWS = 1000;
+	static final int SAMPLE_BYTES = 1048576;
+	static final String FORMAT_CSV = "csv";
+	static final String FORMAT_NDJSON = "ndjson";
+	private final JSONObject queryObject;
+	private final JSONObject fileObject;
+	private final long splitBytes;
+	private final byte delimiter;
+	private final Map<String, byte[][]> fieldPrefixes = new HashMap<>();
+	
+	public FileRowSource(JSONObject queryObject) {
+		this.queryObject = queryObject;
+		this.fileObject = queryObject.getJSONObject("file");
+		this.splitBytes = this.fileObject.has("splitBytes") ? this.fileObject.getLong("splitBytes") : DEFAULT_SPLIT_BYTES;
+		String delimiter = this.fileObject.has("delimiter") ? this.fileObject.getString("delimiter") : ",";
+		if (delimiter.length() != 1 || delimiter.charAt(0) > 0x7f) {
+			throw new IllegalArgumentException("The delimiter of a CSV file must be a single ASCII character");
+		}
+		this.delimiter = (byte) delimiter.charAt(0);
+	}
+	
+	/**
+	 * Splits every file of the source, a single file or the files of a
+	 * directory in name order. Slices are numbered across all of them, so the
+	 * files and their sizes mustn't change for a resumed run.
+	 */
+	public List<QuerySlice> plan() throws Exception {
+		if (this.queryObject.has("checkpointKey") || this.queryObject.has("children") || this.queryObject.has("partition")) {
+			throw new IllegalArgumentException("checkpointKey, children and partition are only supported for SQL queries");
+		}
+		File path = new File(this.fileObject.getString("path"));
+		File[] files;
+		if (path.isDirectory()) {
+			files = path.listFiles();
+			Arrays.sort(files);
+		} else if (path.isFile()) {
+			files = new File[] {path};
+		} else {
+			throw new IOException(path.getPath() + " does not exist");
+		}
+		
+		List<QuerySlice> slices = new ArrayList<>();
+		for (File file : files) {
+			if (!file.isFile() || file.isHidden()) {
+				continue;
+			}
+			String format = formatOf(file);
+			if (format.equals(FORMAT_CSV)) {
+				this.fieldPrefixes.put(file.getPath(), fieldPrefixes(columnNames(file)));
+			}
+			long size = file.length();
+			// Quoted CSV values may contain newlines, which would make a split boundary ambiguous
+			long step = (this.splitBytes > 0) ? this.splitBytes : Math.max(1, size);
+			for (long start = 0; start < size || start == 0; start += step) {
+				long end = Math.min(size, start + step);
+				List<Object> params = new ArrayList<>();
+				params.add(file.getPath());
+				params.add(start);
+				params.add(end);
+				slices.add(new QuerySlice(slices.size(), file.getPath() + " [" + start + ", " + end + ")", params));
+				if (end == size) {
+					break;
+				}
+			}
+		}
+		return slices;
+	}
+	
+	/**
+	 * Counts the lines at the start of each file and scales them up to the
+	 * file's size, whatever the method.
+	 */
+	public long estimateRows(String method) throws Exception {
+		File path = new File(this.fileObject.getString("path"));
+		File[] files = path.isDirectory() ? path.listFiles() : new File[] {path};
+		if (files == null) {
+			return -1;
+		}
+		double rows = 0;
+		byte[] sample = new byte[SAMPLE_BYTES];
+		for (File file : files) {
+			if (!file.isFile() || file.isHidden()) {
+				continue;
+			}
+			int sampled = 0;
+			try (FileInputStream in = new FileInputStream(file)) {
+				int read;
+				while (sampled < sample.length && (read = in.read(sample, sampled, sample.length - sampled)) != -1) {
+					sampled += read;
+				}
+			}
+			int lines = 0;
+			for (int i = 0; i < sampled; i++) {
+				if (sample[i] == '\n') {
+					lines++;
+				}
+			}
+			if (sampled > 0 && sample[sampled - 1] != '\n' && sampled == file.length()) {
+				lines++;
+			}
+			if (formatOf(file).equals(FORMAT_CSV) && hasHeader() && lines > 0) {
+				lines--;
+			}
+			rows += (sampled == 0) ? 0 : (double) lines * file.length() / sampled;
+		}
+		return Math.round(rows);
+	}
+	
+	private String formatOf(File file) {
+		if (this.fileObject.has("format")) {
+			return this.fileObject.getString("format");
+		}
+		String name = file.getName().toLowerCase();
+		if (name.endsWith(".csv")) {
+			return FORMAT_CSV;
+		} else if (name.endsWith(".ndjson") || name.endsWith(".jsonl") || name.endsWith(".json")) {
+			return FORMAT_NDJSON;
+		}
+		throw new IllegalArgumentException("Can't tell the format of " + file.getPath() + ", set \"format\" to \"csv\" or \"ndjson\"");
+	}
+	
+	private boolean hasHeader() {
+		return this.fileObject.has("header") ? this.fileObject.getBoolean("header") : !this.fileObject.has("columns");
+	}
+	
+	private List<String> columnNames(File file) throws IOException {
+		if (this.fileObject.has("columns")) {
+			List<String> names = new ArrayList<>();
+			JSONArray columns = this.fileObject.getJSONArray("columns");
+			for (int i = 0; i < columns.length(); i++) {
+				names.add(columns.getString(i));
+			}
+			return names;
+		}
+		List<String> names = new ArrayList<>();
+		try (MappedSplit split = new MappedSplit(file, 0, file.length(), true)) {
+			if (split.next()) {
+				byte[] record = new byte[split.getRecordLength()];
+				split.getRecord(record);
+				splitFields(record, record.length, this.delimiter, names, new byte[record.length]);
+			}
+		}
+		return names;
+	}
+	
+	/**
+	 * Writes each field name with its quotes and colon. A repeated name keeps
+	 * its last value, as a repeated column does for a SQL query.
+	 */
+	private static byte[][] fieldPrefixes(List<String> names) {
+		byte[][] prefixes = new byte[names.size()][];
+		Set<String> seen = new HashSet<>();
+		JsonRowWriter writer = new JsonRowWriter(64);
+		for (int i = names.size() - 1; i >= 0; i--) {
+			String name = (names.get(i) == null) ? "COLUMN_" + (i + 1) : names.get(i);
+			if (seen.add(name)) {
+				writer.reset();
+				writer.writeString(name);
+				writer.write((byte) ':');
+				prefixes[i] = writer.toByteArray();
+			}
+		}
+		return prefixes;
+	}
+	
+	/**
+	 * Splits a CSV record into its values, unquoting quoted ones. An empty
+	 * unquoted value is null.
+	 *
+	 * @param scratch at least as long as the record
+	 */
+	static void splitFields(byte[] record, int length, byte delimiter, List<String> fields, byte[] scratch) {
+		fields.clear();
+		int i = 0;
+		while (true) {
+			if (i < length && record[i] == '"') {
+				int n = 0;
+				i++;
+				while (i < length) {
+					byte b = record[i++];
+					if (b == '"') {
+						if (i < length && record[i] == '"') {
+							i++;
+						} else {
+							break;
+						}
+					}
+					scratch[n++] = b;
+				}
+				// Anything between the closing quote and the delimiter is dropped
+				while (i < length && record[i] != delimiter) {
+					i++;
+				}
+				fields.add(new String(scratch, 0, n, StandardCharsets.UTF_8));
+			} else {
+				int start = i;
+				while (i < length && record[i] != delimiter) {
+					i++;
+				}
+				fields.add((i == start) ? null : new String(record, start, i - start, StandardCharsets.UTF_8));
+			}
+			if (i >= length) {
+				return;
+			}
+			i++;
+		}
+	}
+	
+	public int getThreads(int slices) {
+		return this.fileObject.has("threads") ? this.fileObject.getInt("threads") : Runtime.getRuntime().availableProcessors();
+	}
+	
+	public boolean resumesByKey() {
+		return false;
+	}
+	
+	public RowSource.Cursor open(QuerySlice slice, SliceProgress progress) throws Exception {
+		File file = new File((String) slice.getParams().get(0));
+		long start = ((Number) slice.getParams().get(1)).longValue();
+		long end = ((Number) slice.getParams().get(2)).longValue();
+		boolean csv = formatOf(file).equals(FORMAT_CSV);
+		MappedSplit split = new MappedSplit(file, start, end, csv);
+		try {
+			if (csv && start == 0 && hasHeader()) {
+				split.next();
+			}
+		} catch (IOException e) {
+			split.close();
+			throw e;
+		}
+		return csv ? new CsvCursor(split, this.fieldPrefixes.get(file.getPath())) : new NdjsonCursor(split);
+	}
+	
+	public void report(JSONObject results) {
+		results.put("format", this.fileObject.has("format") ? this.fileObject.getString("format") : "auto");
+	}
+	
+	public void close() {
+	}
+	
+	private abstract static class LineCursor implements RowSource.Cursor {
+		protected final MappedSplit split;
+		protected byte[] record = new byte[8192];
+		protected int length;
+		
+		LineCursor(MappedSplit split) {
+			this.split = split;
+		}
+		
+		/**
+		 * Moves to the next record that isn't blank.
+		 */
+		public boolean next() throws IOException {
+			while (this.split.next()) {
+				this.length = this.split.getRecordLength();
+				if (this.length > this.record.length) {
+					this.record = new byte[Math.max(this.length, this.record.length * 2)];
+				}
+				this.split.getRecord(this.record);
+				for (int i = 0; i < this.length; i++) {
+					if (this.record[i] != ' ' && this.record[i] != '\t') {
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+		
+		public int getFetchSize() {
+			return FETCH_ROWS;
+		}
+		
+		public void close() throws IOException {
+			this.split.close();
+		}
+	}
+	
+	private static class NdjsonCursor extends LineCursor {
+		NdjsonCursor(MappedSplit split) {
+			super(split);
+		}
+		
+		public RowDocument read() {
+			return new RowDocument(Arrays.copyOf(this.record, this.length), null, null);
+		}
+	}
+	
+	private class CsvCursor extends LineCursor {
+		private final byte[][] prefixes;
+		private final List<String> fields = new ArrayList<>();
+		private final JsonRowWriter writer = new JsonRowWriter(ColumnPlan.INITIAL_BUFFER_SIZE);
+		private byte[] scratch = new byte[8192];
+		
+		CsvCursor(MappedSplit split, byte[][] prefixes) {
+			super(split);
+			this.prefixes = prefixes;
+		}
+		
+		public RowDocument read() {
+			if (this.scratch.length < this.length) {
+				this.scratch = new byte[this.record.length];
+			}
+			splitFields(this.record, this.length, delimiter, this.fields, this.scratch);
+			JsonRowWriter w = this.writer;
+			w.reset();
+			w.write((byte) '{');
+			boolean first = true;
+			for (int i = 0; i < this.fields.size(); i++) {
+				byte[] prefix;
+				if (i < this.prefixes.length) {
+					prefix = this.prefixes[i];
+					if (prefix == null) {
+						continue;
+					}
+				} else {
+					// Values past the named columns are kept under positional names
+					JsonRowWriter name = new JsonRowWriter(16);
+					name.writeString("COLUMN_" + (i + 1));
+					name.write((byte) ':');
+					prefix = name.toByteArray();
+				}
+				if (!first) {
+					w.write((byte) ',');
+				}
+				first = false;
+				w.write(prefix);
+				String value = this.fields.get(i);
+				if (value == null) {
+					w.writeAscii("null");
+				} else {
+					w.writeString(value);
+				}
+			}
+			w.write((byte) '}');
+			return new RowDocument(w.toByteArray(), null, null);
+		}
+	}
+}
@@ -0,0 +1,294 @@
+/**
+ * Disk-backed map from a row's key hash to its content hash, kept between
+ * runs for change detection. The file holds the entries sorted by key hash
+ * after a fanout table of where each 16 bit key prefix starts, and is
+ * memory-mapped, so a probe reads a few entries of the page cache and the
+ * heap only holds the fanout table.
+ *
+ * A Builder collects the entries of a run in bucket files by the key's top
+ * bits, which are sorted one at a time when the index is built.
+ */
+package com.marklogic.rowbot;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+class HashIndex implements AutoCloseable {
+	static final int MAGIC = 0x52424849; // "RBHI"
+	static final int VERSION = 1;
+	static final int FANOUT_BITS = 16;
+	static final int FANOUT_SIZE = (1 << FANOUT_BITS) + 1;
+	static final int HEADER_BYTES = 16 + FANOUT_SIZE * 8;
+	static final int ENTRY_BYTES = 16;
+	static final int CHUNK_ENTRIES = 1 << 26;
+	static final int BUCKET_BITS = 8;
+	static final int BUCKET_BUFFER_SIZE = 4096;
+	private final FileChannel channel;
+	private final long count;
+	private final long[] fanout = new long[FANOUT_SIZE];
+	private final MappedByteBuffer[] chunks;
+	
+	/**
+	 * Opens the index in the file, or an empty one if there is no file.
+	 */
+	public HashIndex(File file) throws IOException {
+		if (!file.isFile()) {
+			this.channel = null;
+			this.count = 0;
+			this.chunks = new MappedByteBuffer[0];
+			return;
+		}
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		while (header.hasRemaining()) {
+			if (this.channel.read(header) == -1) {
+				this.channel.close();
+				throw new EOFException(file.getPath() + " is truncated");
+			}
+		}
+		header.flip();
+		if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+			this.channel.close();
+			throw new IOException(file.getPath() + " is not a RowBot hash index");
+		}
+		this.count = header.getLong();
+		for (int i = 0; i < FANOUT_SIZE; i++) {
+			this.fanout[i] = header.getLong();
+		}
+		int numChunks = (int) ((this.count + CHUNK_ENTRIES - 1) / CHUNK_ENTRIES);
+		this.chunks = new MappedByteBuffer[numChunks];
+		for (int c = 0; c < numChunks; c++) {
+			long entries = Math.min(CHUNK_ENTRIES, this.count - (long) c * CHUNK_ENTRIES);
+			this.chunks[c] = this.channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES + (long) c * CHUNK_ENTRIES * ENTRY_BYTES, entries * ENTRY_BYTES);
+		}
+	}
+	
+	public long size() {
+		return this.count;
+	}
+	
+	/**
+	 * @return the index of the key's entry, or -1 if it has none
+	 */
+	public long find(long keyHash) {
+		int prefix = (int) (keyHash >>> (64 - FANOUT_BITS));
+		long lo = this.fanout[prefix];
+		long hi = this.fanout[prefix + 1] - 1;
+		while (lo <= hi) {
+			long mid = (lo + hi) >>> 1;
+			long midKey = keyAt(mid);
+			if (midKey == keyHash) {
+				return mid;
+			}
+			// Keys are sorted as unsigned, the same order as their prefixes
+			if (Long.compare(midKey ^ Long.MIN_VALUE, keyHash ^ Long.MIN_VALUE) < 0) {
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return -1;
+	}
+	
+	private long keyAt(long index) {
+		return this.chunks[(int) (index / CHUNK_ENTRIES)].getLong((int) (index % CHUNK_ENTRIES) * ENTRY_BYTES);
+	}
+	
+	public long contentHashAt(long index) {
+		return this.chunks[(int) (index / CHUNK_ENTRIES)].getLong((int) (index % CHUNK_ENTRIES) * ENTRY_BYTES + 8);
+	}
+	
+	public void close() throws IOException {
+		if (this.channel != null) {
+			this.channel.close();
+		}
+	}
+	
+	/**
+	 * Collects the entries of a new index. Entries are appended to bucket
+	 * files, which survive a failed run so that a resumed one can add to them.
+	 */
+	static class Builder implements AutoCloseable {
+		private final File directory;
+		private final DataOutputStream[] buckets = new DataOutputStream[1 << BUCKET_BITS];
+		
+		Builder(File directory) {
+			this.directory = directory;
+		}
+		
+		public void add(long keyHash, long contentHash) throws IOException {
+			int b = (int) (keyHash >>> (64 - BUCKET_BITS));
+			DataOutputStream bucket;
+			synchronized (this.buckets) {
+				bucket = this.buckets[b];
+				if (bucket == null) {
+					this.directory.mkdirs();
+					bucket = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(this.directory, b + ".bucket"), true), BUCKET_BUFFER_SIZE));
+					this.buckets[b] = bucket;
+				}
+			}
+			synchronized (bucket) {
+				bucket.writeLong(keyHash);
+				bucket.writeLong(contentHash);
+			}
+		}
+		
+		/**
+		 * Flushes and closes the bucket files, leaving them for a later run.
+		 */
+		public void close() throws IOException {
+			synchronized (this.buckets) {
+				for (int b = 0; b < this.buckets.length; b++) {
+					if (this.buckets[b] != null) {
+						this.buckets[b].close();
+						this.buckets[b] = null;
+					}
+				}
+			}
+		}
+		
+		/**
+		 * Sorts the buckets into an index file that replaces the target, then
+		 * deletes them. A key added more than once keeps one of its entries.
+		 */
+		public void build(File target) throws IOException {
+			close();
+			File tmp = new File(target.getPath() + ".tmp");
+			long[] fanout = new long[FANOUT_SIZE];
+			long count = 0;
+			try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+				out.position(HEADER_BYTES);
+				for (int b = 0; b < this.buckets.length; b++) {
+					File bucketFile = new File(this.directory, b + ".bucket");
+					if (!bucketFile.isFile()) {
+						continue;
+					}
+					int entries = (int) (bucketFile.length() / ENTRY_BYTES);
+					long[] keys = new long[entries];
+					long[] values = new long[entries];
+					try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(bucketFile), 1 << 16))) {
+						for (int i = 0; i < entries; i++) {
+							keys[i] = in.readLong();
+							values[i] = in.readLong();
+						}
+					}
+					sort(keys, values, 0, entries - 1);
+					for (int i = 0; i < entries; i++) {
+						if (i > 0 && keys[i] == keys[i - 1]) {
+							continue;
+						}
+						if (buffer.remaining() < ENTRY_BYTES) {
+							write(out, buffer);
+						}
+						buffer.putLong(keys[i]);
+						buffer.putLong(values[i]);
+						fanout[(int) (keys[i] >>> (64 - FANOUT_BITS)) + 1]++;
+						count++;
+					}
+				}
+				write(out, buffer);
+				
+				// Turn the counts per prefix into the index of each prefix's first entry
+				for (int i = 1; i < FANOUT_SIZE; i++) {
+					fanout[i] += fanout[i - 1];
+				}
+				ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+				header.putInt(MAGIC);
+				header.putInt(VERSION);
+				header.putLong(count);
+				for (int i = 0; i < FANOUT_SIZE; i++) {
+					header.putLong(fanout[i]);
+				}
+				header.flip();
+				out.position(0);
+				while (header.hasRemaining()) {
+					out.write(header);
+				}
+				out.force(true);
+			}
+			target.getAbsoluteFile().getParentFile().mkdirs();
+			Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			delete();
+		}
+		
+		/**
+		 * Deletes the bucket files without building an index from them.
+		 */
+		public void delete() throws IOException {
+			close();
+			File[] files = this.directory.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					file.delete();
+				}
+			}
+			this.directory.delete();
+		}
+		
+		private static void write(FileChannel out, ByteBuffer buffer) throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				out.write(buffer);
+			}
+			buffer.clear();
+		}
+		
+		/**
+		 * Sorts keys as unsigned values, moving each value with its key.
+		 */
+		private static void sort(long[] keys, long[] values, int lo, int hi) {
+			while (hi - lo > 16) {
+				long pivot = keys[(lo + hi) >>> 1] ^ Long.MIN_VALUE;
+				int i = lo;
+				int j = hi;
+				while (i <= j) {
+					while ((keys[i] ^ Long.MIN_VALUE) < pivot) {
+						i++;
+					}
+					while ((keys[j] ^ Long.MIN_VALUE) > pivot) {
+						j--;
+					}
+					if (i <= j) {
+						swap(keys, values, i++, j--);
+					}
+				}
+				// Recurse into the smaller side to bound the stack depth
+				if (j - lo < hi - i) {
+					sort(keys, values, lo, j);
+					lo = i;
+				} else {
+					sort(keys, values, i, hi);
+					hi = j;
+				}
+			}
+			for (int i = lo + 1; i <= hi; i++) {
+				for (int j = i; j > lo && (keys[j] ^ Long.MIN_VALUE) < (keys[j - 1] ^ Long.MIN_VALUE); j--) {
+					swap(keys, values, j, j - 1);
+				}
+			}
+		}
+		
+		private static void swap(long[] keys, long[] values, int a, int b) {
+			long key = keys[a];
+			keys[a] = keys[b];
+			keys[b] = key;
+			long value = values[a];
+			values[a] = values[b];
+			values[b] = value;
+		}
+	}
+}
@@ -0,0 +1,242 @@
+/**
+ * The MarkLogic hosts a job inserts into. Each insert call goes to the healthy
+ * host with the fewest calls in flight, waiting while every host is at
+ * "maxInFlightPerHost". A host that fails with a connection error is taken
+ * out of rotation for "unhealthyInterval" seconds. Each host keeps its idle
+ * sessions for the next call, so there are never more than one per call in
+ * flight, and they are all closed with the pool. Callers wait on a lock
+ * rather than the pool's monitor, which a virtual thread can wait on without
+ * holding its carrier thread.
+ */
+package com.marklogic.rowbot;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.marklogic.xcc.ContentSource;
+import com.marklogic.xcc.ContentSourceFactory;
+import com.marklogic.xcc.Session;
+
+class HostPool {
+	static final int DEFAULT_MAX_IN_FLIGHT_PER_HOST = 32;
+	static final long DEFAULT_UNHEALTHY_INTERVAL_MILLIS = 30000;
+	// Upper bound on a wait, so that hosts coming back into rotation are noticed
+	static final long MAX_WAIT_MILLIS = 1000;
+	private final List<Host> hosts = new ArrayList<>();
+	private final int maxInFlight;
+	private final long unhealthyIntervalMillis;
+	private final ConcurrentLinkedQueue<Session> sessions = new ConcurrentLinkedQueue<>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition slotFreed = this.lock.newCondition();
+	// Guarded by the lock
+	private int next = 0;
+	
+	public HostPool(JSONObject mlConfig) {
+		this(contentSources(mlConfig),
+			mlConfig.optInt("maxInFlightPerHost", DEFAULT_MAX_IN_FLIGHT_PER_HOST),
+			mlConfig.optLong("unhealthyInterval", DEFAULT_UNHEALTHY_INTERVAL_MILLIS / 1000) * 1000);
+	}
+	
+	/**
+	 * @param contentSources a ContentSource per host name
+	 */
+	public HostPool(Map<String, ContentSource> contentSources, int maxInFlight, long unhealthyIntervalMillis) {
+		for (Map.Entry<String, ContentSource> entry : contentSources.entrySet()) {
+			this.hosts.add(new Host(entry.getKey(), entry.getValue()));
+		}
+		if (this.hosts.isEmpty()) {
+			throw new IllegalArgumentException("No MarkLogic hosts configured");
+		}
+		this.maxInFlight = Math.max(1, maxInFlight);
+		this.unhealthyIntervalMillis = unhealthyIntervalMillis;
+	}
+	
+	/**
+	 * Reads "hosts", a list of host names, falling back to the single
+	 * "hostname". A host may be given as host:port to override "port".
+	 */
+	private static Map<String, ContentSource> contentSources(JSONObject mlConfig) {
+		List<String> names = new ArrayList<>();
+		if (mlConfig.has("hosts")) {
+			JSONArray hostsArray = mlConfig.getJSONArray("hosts");
+			for (int i = 0; i < hostsArray.length(); i++) {
+				names.add(hostsArray.getString(i));
+			}
+		} else {
+			names.add(mlConfig.getString("hostname"));
+		}
+		
+		int defaultPort = Integer.parseInt(mlConfig.get("port").toString());
+		Map<String, ContentSource> contentSources = new LinkedHashMap<>();
+		for (String name : names) {
+			String hostName = name;
+			int port = defaultPort;
+			int colon = name.lastIndexOf(':');
+			if (colon > 0) {
+				hostName = name.substring(0, colon);
+				port = Integer.parseInt(name.substring(colon + 1));
+			}
+			contentSources.put(name, ContentSourceFactory.newContentSource(hostName, port, mlConfig.getString("username"), mlConfig.getString("password")));
+		}
+		return contentSources;
+	}
+	
+	/**
+	 * Takes a slot on the healthy host with the fewest calls in flight. If every
+	 * host is out of rotation they are all tried anyway, rather than failing
+	 * the insert outright. The slot must be given back with release.
+	 */
+	public Host acquire() throws InterruptedException {
+		this.lock.lockInterruptibly();
+		try {
+			return this.awaitHost();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+	
+	private Host awaitHost() throws InterruptedException {
+		while (true) {
+			long now = System.currentTimeMillis();
+			boolean anyHealthy = false;
+			for (Host host : this.hosts) {
+				anyHealthy |= host.isHealthy(now);
+			}
+			
+			Host best = null;
+			for (int i = 0; i < this.hosts.size(); i++) {
+				Host host = this.hosts.get((this.next + i) % this.hosts.size());
+				if ((!anyHealthy || host.isHealthy(now)) && host.inFlight < this.maxInFlight
+						&& (best == null || host.inFlight < best.inFlight)) {
+					best = host;
+				}
+			}
+			if (best != null) {
+				best.inFlight++;
+				this.next = (this.hosts.indexOf(best) + 1) % this.hosts.size();
+				return best;
+			}
+			this.slotFreed.await(MAX_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * @param session          the session the call used, which goes back to the host
+	 * @param connectionFailed whether the call failed to reach the host, which
+	 *                         takes it out of rotation
+	 */
+	public void release(Host host, Session session, boolean connectionFailed) {
+		if (session != null) {
+			if (session.isClosed()) {
+				// Closed by a failed call, so it's dropped from the pool rather than reused
+				this.sessions.remove(session);
+			} else {
+				host.idleSessions.add(session);
+			}
+		}
+		this.lock.lock();
+		try {
+			host.inFlight--;
+			long now = System.currentTimeMillis();
+			if (connectionFailed) {
+				if (host.isHealthy(now)) {
+					System.out.println("MarkLogic host " + host.name + " is unreachable, taking it out of rotation for " + (this.unhealthyIntervalMillis / 1000) + " seconds.");
+				}
+				host.downUntil = now + this.unhealthyIntervalMillis;
+			} else if (host.downUntil != 0) {
+				System.out.println("MarkLogic host " + host.name + " is back in rotation.");
+				host.downUntil = 0;
+			}
+			this.slotFreed.signalAll();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return a new session on a healthy host, for the caller to close
+	 */
+	public Session newSession() {
+		Host chosen;
+		this.lock.lock();
+		try {
+			long now = System.currentTimeMillis();
+			chosen = this.hosts.get(this.next % this.hosts.size());
+			for (int i = 0; i < this.hosts.size(); i++) {
+				Host host = this.hosts.get((this.next + i) % this.hosts.size());
+				if (host.isHealthy(now)) {
+					chosen = host;
+					break;
+				}
+			}
+		} finally {
+			this.lock.unlock();
+		}
+		return chosen.contentSource.newSession();
+	}
+	
+	public List<String> getHostNames() {
+		List<String> names = new ArrayList<>();
+		for (Host host : this.hosts) {
+			names.add(host.name);
+		}
+		return names;
+	}
+	
+	public void close() {
+		Iterator<Session> iterator = this.sessions.iterator();
+		while (iterator.hasNext()) {
+			iterator.next().close();
+			iterator.remove();
+		}
+	}
+	
+	class Host {
+		final String name;
+		final ContentSource contentSource;
+		// Guarded by the pool's lock
+		int inFlight = 0;
+		long downUntil = 0;
+		private final ConcurrentLinkedQueue<Session> idleSessions = new ConcurrentLinkedQueue<>();
+		
+		Host(String name, ContentSource contentSource) {
+			this.name = name;
+			this.contentSource = contentSource;
+		}
+		
+		boolean isHealthy(long now) {
+			return this.downUntil <= now;
+		}
+		
+		public String getName() {
+			return this.name;
+		}
+		
+		/**
+		 * @return an idle session on this host, or a new one if there are none,
+		 * to be given back with the pool's release
+		 */
+		public Session session() {
+			Session session = this.idleSessions.poll();
+			while (session != null && session.isClosed()) {
+				sessions.remove(session);
+				session = this.idleSessions.poll();
+			}
+			if (session == null) {
+				session = this.contentSource.newSession();
+				sessions.add(session);
+			}
+			return session;
+		}
+	}
+}
@@ -5,60 +5,248 @@
  */
 package com.marklogic.rowbot;
 
-import java.io.InputStream;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
-import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 
-import com.marklogic.xcc.Session;
-
-class InsertBot implements Runnable {  
-	private Map<String, Object> row;
+class InsertBot implements Runnable {
+	static final String LANE_ROWS = "rows";
+	static final String LANE_LOBS = "lobs";
+	private List<RowDocument> rows;
+	private long batchBytes;
+	private int firstRowNum;
+	// More than firstRowNum + rows - 1 when unchanged rows were left out of the batch
+	private int lastRowNum;
+	private QuerySlice slice;
+	private SliceProgress progress;
+	private QueryBot queryBot;
 	private JSONObject queryObject;
-	private int rowNum;
 	private RowBot rowBot;
-	private Session session;
+	private String queryId;
+	private String[] collections;
+	private String uriBase;
+	// The parts of the batch still inserting: the small rows, and each row sent to the LOB lane
+	private final AtomicInteger parts = new AtomicInteger(1);
+	private final AtomicInteger inserted = new AtomicInteger(0);
+	private final AtomicInteger binariesInserted = new AtomicInteger(0);
+	private final AtomicInteger binaryCount = new AtomicInteger(0);
+	private final JSONArray failures = new JSONArray();
+	private volatile boolean failed = false;
 	
-	public InsertBot(Map<String, Object> row, JSONObject queryObject, int rowNum, RowBot rowBot){  
-		this.row = row;
-		this.queryObject = queryObject;
-		this.rowNum = rowNum;
-		this.rowBot = rowBot;
-		this.session = rowBot.contentSource.newSession();
+	public InsertBot(List<RowDocument> rows, long batchBytes, int firstRowNum, int lastRowNum, QuerySlice slice, SliceProgress progress, QueryBot queryBot){
+		this.rows = rows;
+		this.batchBytes = batchBytes;
+		this.firstRowNum = firstRowNum;
+		this.lastRowNum = lastRowNum;
+		this.slice = slice;
+		this.progress = progress;
+		this.queryBot = queryBot;
+		this.queryObject = queryBot.queryObject;
+		this.rowBot = queryBot.rowBot;
 	}
 	
+	/**
+	 * Inserts the batch's small rows, and hands rows with large LOB values to
+	 * the LOB lane. The batch is complete once every part of it is.
+	 */
 	public void run() {
-		HashMap<String, String> stringMap = new HashMap<>();
-		HashMap<String, InputStream> binaryMap = new HashMap<>();
-		for (String key : this.row.keySet()) {
-			Object value = this.row.get(key);
-			if (value instanceof String) {
-				stringMap.put(key, (String) value);
-			} else if (value instanceof InputStream) {
-				String binaryUUID = UUID.randomUUID().toString();
-				binaryMap.put(binaryUUID, (InputStream) value);
-				stringMap.put(key, "BINARY:" + binaryUUID);
+		try {
+			this.insertRows();
+		} catch (RuntimeException e) {
+			this.failed = true;
+			throw e;
+		} finally {
+			this.partComplete();
+		}
+	}
+	
+	private void partComplete() {
+		if (this.parts.decrementAndGet() > 0) {
+			return;
+		}
+		try {
+			if (!this.failed) {
+				this.report();
+				progress.completed(this.firstRowNum);
+				queryBot.checkpoint.batchComplete();
 			}
+		} finally {
+			// Make sure spilled LOBs don't outlive a failed batch
+			for (RowDocument row : this.rows) {
+				row.deleteBinaries();
+			}
+			queryBot.insertBuffer.release(this.rows.size(), this.batchBytes);
+			queryBot.batchComplete();
 		}
+	}
+	
+	private void insertRows() {
+		this.queryId = this.queryObject.getString("queryId");
+		this.collections = this.queryObject.getJSONArray("collections").toList().toArray(new String[0]);
+		this.uriBase = rowBot.uriPrefix + this.queryObject.getString("timestamp") + "/" + queryId + "/";
+		final LobLane lobLane = rowBot.lobLane;
 		
-		JSONObject json = new JSONObject(stringMap);
-		String[] collections = this.queryObject.getJSONArray("collections").toList().toArray(new String[0]);
-		String uriBase = rowBot.uriPrefix + this.queryObject.getString("timestamp") + "/" + this.queryObject.getString("queryId") + "/";
-		
-		for (String key : binaryMap.keySet()) {
-			String uri = uriBase + "binary/" + key;
-			JSONObject result = rowBot.insertBinaryDoc(session, uri, binaryMap.get(key), null, collections);
-			String message = (result.has("message")) ? result.getString("message") : null;
-			rowBot.insertComplete(session, result.getBoolean("success"), this.queryObject.getString("queryId"), uri, message);
+		List<Integer> small = new ArrayList<>(this.rows.size());
+		List<Integer> large = new ArrayList<>();
+		for (int r = 0; r < this.rows.size(); r++) {
+			if (lobLane != null && lobLane.isLarge(this.rows.get(r))) {
+				large.add(r);
+			} else {
+				small.add(r);
+			}
+		}
+		if (!large.isEmpty()) {
+			for (final int r : large) {
+				this.parts.incrementAndGet();
+				try {
+					lobLane.execute(new Runnable() {
+						public void run() {
+							try {
+								insertLargeRow(r);
+							} catch (RuntimeException e) {
+								failed = true;
+								throw e;
+							} finally {
+								partComplete();
+							}
+						}
+					});
+				} catch (RuntimeException e) {
+					this.parts.decrementAndGet();
+					throw e;
+				}
+			}
+		}
+		if (small.isEmpty()) {
+			return;
 		}
 		
-		String uri = uriBase + String.valueOf(this.rowNum) + ".json";
+		long start = System.nanoTime();
+		long[] totals = new long[2];
+		String[] uris = new String[small.size()];
+		byte[][] jsons = new byte[small.size()][];
+		boolean[] binaryFailed = new boolean[small.size()];
+		for (int i = 0; i < small.size(); i++) {
+			int r = small.get(i);
+			binaryFailed[i] = !this.insertBinaries(this.rows.get(r), false, totals);
+			uris[i] = this.uriFor(r);
+			jsons[i] = this.rows.get(r).getJson();
+		}
 		
-		JSONObject result = rowBot.insertJSONDoc(session, uri, json.toString(), null, collections);
-		String message = (result.has("message")) ? result.getString("message") : null;
-		rowBot.insertComplete(session, result.getBoolean("success"), this.queryObject.getString("queryId"), uri, message);
-		session.close();
+		int docs = 0;
+		long bytes = 0;
+		List<JSONObject> results = rowBot.insertJSONBatch(uris, jsons, null, collections);
+		for (int i = 0; i < results.size(); i++) {
+			JSONObject result = results.get(i);
+			if (result.getBoolean("success")) {
+				docs++;
+				bytes += jsons[i].length;
+				this.rowInserted(this.rows.get(small.get(i)), binaryFailed[i]);
+			} else {
+				rowBot.deadLetter.add(uris[i], collections, jsons[i], result.getString("message"));
+				this.failed(result);
+			}
+		}
+		this.inserted.addAndGet(docs);
+		rowBot.metrics.inserted(queryId, docs, bytes);
+		rowBot.metrics.laneInserted(LANE_ROWS, docs + totals[0], bytes + totals[1], System.nanoTime() - start);
+	}
+	
+	/**
+	 * Inserts a row from the LOB lane, its LOB values first and then its JSON.
+	 */
+	private void insertLargeRow(int r) {
+		long start = System.nanoTime();
+		long[] totals = new long[2];
+		RowDocument row = this.rows.get(r);
+		boolean binaryFailed = !this.insertBinaries(row, true, totals);
+		String uri = this.uriFor(r);
+		JSONObject result = rowBot.insertJSONDoc(uri, row.getJson(), null, collections);
+		if (result.getBoolean("success")) {
+			this.inserted.incrementAndGet();
+			rowBot.metrics.inserted(queryId, 1, row.getJson().length);
+			totals[0]++;
+			totals[1] += row.getJson().length;
+			this.rowInserted(row, binaryFailed);
+		} else {
+			rowBot.deadLetter.add(uri, collections, row.getJson(), result.getString("message"));
+			this.failed(result);
+		}
+		rowBot.metrics.laneInserted(LANE_LOBS, totals[0], totals[1], System.nanoTime() - start);
+	}
+	
+	/**
+	 * Inserts a row's LOB values, each as a binary document, and deletes any
+	 * that were spilled to disk.
+	 *
+	 * @param totals the documents and bytes inserted are added to its first and second elements
+	 * @return false if any of them failed
+	 */
+	private boolean insertBinaries(RowDocument row, boolean lobLane, long[] totals) {
+		Map<String, LobValue> binaries = row.getBinaries();
+		if (binaries == null) {
+			return true;
+		}
+		boolean succeeded = true;
+		// A row with a stable URI keeps its LOB values under stable URIs too
+		String binaryBase = (row.getUri() != null) ? queryBot.changes.getUriBase() : uriBase;
+		for (String key : binaries.keySet()) {
+			String uri = binaryBase + "binary/" + key;
+			LobValue binary = binaries.get(key);
+			JSONObject result = rowBot.insertBinaryDoc(uri, binary, null, collections, lobLane);
+			this.binaryCount.incrementAndGet();
+			if (result.getBoolean("success")) {
+				this.binariesInserted.incrementAndGet();
+				rowBot.metrics.inserted(queryId, 1, binary.size());
+				totals[0]++;
+				totals[1] += binary.size();
+			} else {
+				rowBot.deadLetter.addBinary(uri, collections, binary, result.getString("message"));
+				this.failed(result);
+				succeeded = false;
+			}
+			binary.delete();
+		}
+		return succeeded;
+	}
+	
+	private String uriFor(int r) {
+		RowDocument row = this.rows.get(r);
+		return (row.getUri() != null) ? row.getUri() : uriBase + slice.getRowPrefix() + String.valueOf(this.firstRowNum + r) + ".json";
+	}
+	
+	private void rowInserted(RowDocument row, boolean binaryFailed) {
+		// A row is only left out of the next run once all of it made it in
+		if (queryBot.changes != null && !binaryFailed) {
+			queryBot.changes.inserted(row);
+		}
+	}
+	
+	private void failed(JSONObject result) {
+		result.remove("success");
+		synchronized (this.failures) {
+			this.failures.put(result);
+		}
+	}
+	
+	private void report() {
+		JSONObject batchResult = new JSONObject();
+		batchResult.put("uriPrefix", (queryBot.changes != null) ? queryBot.changes.getUriBase() : uriBase + slice.getRowPrefix());
+		batchResult.put("first", this.firstRowNum);
+		batchResult.put("last", this.lastRowNum);
+		batchResult.put("inserted", this.inserted.get());
+		if (this.binaryCount.get() > 0) {
+			batchResult.put("binariesInserted", this.binariesInserted.get());
+		}
+		synchronized (this.failures) {
+			if (this.failures.length() > 0) {
+				batchResult.put("failures", this.failures);
+			}
+		}
+		rowBot.insertComplete(queryId, batchResult, this.rows.size() + this.binaryCount.get());
 	}
-} 
\ No newline at end of file
+}
@@ -0,0 +1,82 @@
+/**
+ * Bounded buffer between a QueryBot's JDBC readers and its insert threads.
+ * Limits the rows and bytes that have been read but not yet inserted, and
+ * blocks readers while the limit is reached.
+ */
+package com.marklogic.rowbot;
+
+class InsertBuffer {
+	private final int maxRows;
+	private final long maxBytes;
+	// Written under the lock, but volatile so the status can read them without it
+	private volatile int rows = 0;
+	private volatile long bytes = 0;
+	private long stallNanos = 0;
+	private long stallMark = 0;
+	private int stalledReaders = 0;
+	
+	public InsertBuffer(int maxRows, long maxBytes) {
+		this.maxRows = maxRows;
+		this.maxBytes = maxBytes;
+	}
+	
+	/**
+	 * Reserves space for a batch, waiting until enough has been released. A
+	 * batch larger than the buffer is let through once the buffer is empty.
+	 */
+	public synchronized void acquire(int batchRows, long batchBytes) throws InterruptedException {
+		if (isFull(batchRows, batchBytes)) {
+			this.markStall(1);
+			try {
+				while (isFull(batchRows, batchBytes)) {
+					this.wait();
+				}
+			} finally {
+				this.markStall(-1);
+			}
+		}
+		this.rows += batchRows;
+		this.bytes += batchBytes;
+	}
+	
+	public synchronized void release(int batchRows, long batchBytes) {
+		this.rows -= batchRows;
+		this.bytes -= batchBytes;
+		this.notifyAll();
+	}
+	
+	/**
+	 * Stall time is accumulated per reader, so two readers stalled for a
+	 * second each count as two seconds.
+	 */
+	private void markStall(int readerDelta) {
+		long now = System.nanoTime();
+		this.stallNanos += this.stalledReaders * (now - this.stallMark);
+		this.stallMark = now;
+		this.stalledReaders += readerDelta;
+	}
+	
+	private boolean isFull(int batchRows, long batchBytes) {
+		return this.rows > 0 && (this.rows + batchRows > this.maxRows || this.bytes + batchBytes > this.maxBytes);
+	}
+	
+	public int getRows() {
+		return this.rows;
+	}
+	
+	public long getBytes() {
+		return this.bytes;
+	}
+	
+	public int getMaxRows() {
+		return this.maxRows;
+	}
+	
+	public long getMaxBytes() {
+		return this.maxBytes;
+	}
+	
+	public synchronized long getStallNanos() {
+		return this.stallNanos + this.stalledReaders * (System.nanoTime() - this.stallMark);
+	}
+}
@@ -0,0 +1,112 @@
+/**
+ * Collects insert results per query without locking and writes them out as
+ * rowbot-insert-report documents on a background thread, so inserts never
+ * wait on a report write. Results are kept per batch: the range of row
+ * numbers it covered and how many were inserted, with full detail only for
+ * the documents that failed.
+ */
+package com.marklogic.rowbot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+
+class InsertReporter {
+	private final RowBot rowBot;
+	private final List<String> reportUris;
+	private final ConcurrentHashMap<String, PendingResults> pending = new ConcurrentHashMap<>();
+	private final ExecutorService writer = Executors.newSingleThreadExecutor();
+	
+	private static class PendingResults {
+		final ConcurrentLinkedQueue<JSONObject> batches = new ConcurrentLinkedQueue<>();
+		final AtomicInteger results = new AtomicInteger(0);
+		final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+	}
+	
+	public InsertReporter(RowBot rowBot, List<String> reportUris) {
+		this.rowBot = rowBot;
+		this.reportUris = reportUris;
+	}
+	
+	/**
+	 * @param batchResult the compact result of one insert batch
+	 * @param results     the number of documents the batch covered
+	 */
+	public void add(String queryId, JSONObject batchResult, int results) {
+		PendingResults queryResults = this.pending.get(queryId);
+		if (queryResults == null) {
+			this.pending.putIfAbsent(queryId, new PendingResults());
+			queryResults = this.pending.get(queryId);
+		}
+		batchResult.put("results", results);
+		queryResults.batches.add(batchResult);
+		if (queryResults.results.addAndGet(results) >= RowBot.INSERT_REPORT_BATCH_SIZE) {
+			this.scheduleFlush(queryId, queryResults);
+		}
+	}
+	
+	private void scheduleFlush(final String queryId, final PendingResults queryResults) {
+		if (queryResults.flushScheduled.compareAndSet(false, true)) {
+			this.writer.execute(new Runnable() {
+				public void run() {
+					queryResults.flushScheduled.set(false);
+					flush(queryId, queryResults);
+				}
+			});
+		}
+	}
+	
+	private void flush(String queryId, PendingResults queryResults) {
+		List<JSONObject> batches = new ArrayList<>();
+		int results = 0;
+		JSONObject batch;
+		while ((batch = queryResults.batches.poll()) != null) {
+			batches.add(batch);
+			results += batch.getInt("results");
+		}
+		queryResults.results.addAndGet(-results);
+		if (batches.isEmpty()) {
+			return;
+		}
+		
+		String insertId = UUID.randomUUID().toString();
+		JSONObject json = new JSONObject();
+		json.put("timestamp", rowBot.timestamp);
+		json.put("queryId", queryId);
+		json.put("insertId", insertId);
+		json.put("totalResults", results);
+		for (JSONObject batchResult : batches) {
+			json.append("batches", batchResult);
+		}
+		String uri = rowBot.uriPrefix + rowBot.timestamp + "/" + queryId + "/" + insertId + "/rowbot-insert-report.json";
+		long start = System.nanoTime();
+		rowBot.insertJSONDoc(uri, json.toString(), null, new String[] {"rowbot-insert-report"});
+		rowBot.metrics.reportWrite.record(System.nanoTime() - start);
+		this.reportUris.add(uri);
+	}
+	
+	/**
+	 * Writes whatever results are left and waits for all report writes to finish.
+	 */
+	public void close() throws InterruptedException {
+		for (final String queryId : this.pending.keySet()) {
+			final PendingResults queryResults = this.pending.get(queryId);
+			this.writer.execute(new Runnable() {
+				public void run() {
+					flush(queryId, queryResults);
+				}
+			});
+		}
+		this.writer.shutdown();
+		this.writer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+}
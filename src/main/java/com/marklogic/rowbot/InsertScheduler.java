@@ -0,0 +1,338 @@
+/**
+ * One pool of insert threads shared by every query in the job, so the total
+ * number of inserts in progress stays the same however many queries are
+ * running. Each query submits its batches to its own queue, and idle threads
+ * take the next batch from the highest "priority" queue that has work. Among
+ * queues of equal priority, batches are shared out in proportion to each
+ * query's "weight" using stride scheduling: each queue has a pass value
+ * that advances by 1/weight per batch taken, and the lowest pass goes next.
+ *
+ * With virtual threads, a single dispatcher takes the batches in the same
+ * order and starts a virtual thread for each one, holding a permit per batch
+ * so that no more than "maxInFlight" run at once.
+ */
+package com.marklogic.rowbot;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+
+class InsertScheduler {
+	static final int DEFAULT_PRIORITY = 0;
+	static final double DEFAULT_WEIGHT = 1.0;
+	private final List<QueryQueue> queues = new ArrayList<>();
+	private final List<Thread> workers = new ArrayList<>();
+	private double virtualTime = 0;
+	private int running = 0;
+	private boolean shutdown = false;
+	private final Semaphore inFlight;
+	
+	public InsertScheduler(int threads) {
+		this.inFlight = null;
+		for (int i = 0; i < Math.max(1, threads); i++) {
+			Thread worker = new Thread(new Runnable() {
+				public void run() {
+					work();
+				}
+			}, "rowbot-insert-" + i);
+			// The job waits for every query's inserts itself, the threads shouldn't keep a failed job alive
+			worker.setDaemon(true);
+			this.workers.add(worker);
+			worker.start();
+		}
+	}
+	
+	/**
+	 * Runs each batch on a thread of its own from taskThreads, with at most
+	 * maxInFlight of them running at once.
+	 */
+	public InsertScheduler(final int maxInFlight, final ThreadFactory taskThreads) {
+		this.inFlight = new Semaphore(Math.max(1, maxInFlight));
+		Thread dispatcher = new Thread(new Runnable() {
+			public void run() {
+				dispatch(taskThreads);
+			}
+		}, "rowbot-insert-dispatcher");
+		dispatcher.setDaemon(true);
+		this.workers.add(dispatcher);
+		dispatcher.start();
+	}
+	
+	/**
+	 * @return a thread factory for virtual threads, or null if this JVM doesn't
+	 * have them. They are created reflectively, as the build targets Java 7.
+	 */
+	static ThreadFactory virtualThreadFactory(String name) {
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name, 0L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * @return a queue for the query's batches, weighted by its "priority" and "weight"
+	 */
+	public synchronized QueryQueue newQueue(JSONObject queryObject) {
+		QueryQueue queue = new QueryQueue(queryObject.optInt("priority", DEFAULT_PRIORITY), Math.max(0.001, queryObject.optDouble("weight", DEFAULT_WEIGHT)));
+		this.queues.add(queue);
+		return queue;
+	}
+	
+	private void work() {
+		while (true) {
+			QueryQueue queue;
+			Runnable task;
+			synchronized (this) {
+				queue = this.awaitQueue();
+				if (queue == null) {
+					return;
+				}
+				task = this.take(queue);
+			}
+			this.run(queue, task);
+		}
+	}
+	
+	private void dispatch(ThreadFactory taskThreads) {
+		while (true) {
+			try {
+				this.inFlight.acquire();
+			} catch (InterruptedException e) {
+				return;
+			}
+			final QueryQueue queue;
+			final Runnable task;
+			synchronized (this) {
+				queue = this.awaitQueue();
+				if (queue == null) {
+					this.inFlight.release();
+					return;
+				}
+				task = this.take(queue);
+			}
+			try {
+				taskThreads.newThread(new Runnable() {
+					public void run() {
+						try {
+							InsertScheduler.this.run(queue, task);
+						} finally {
+							inFlight.release();
+						}
+					}
+				}).start();
+			} catch (RuntimeException | Error e) {
+				this.finished(queue);
+				this.inFlight.release();
+				throw e;
+			}
+		}
+	}
+	
+	/**
+	 * Waits for a queue with work, holding the scheduler's lock.
+	 *
+	 * @return the queue to take from, or null once the scheduler is shut down and idle
+	 */
+	private QueryQueue awaitQueue() {
+		QueryQueue queue = this.nextQueue();
+		while (queue == null) {
+			if (this.shutdown) {
+				return null;
+			}
+			try {
+				this.wait();
+			} catch (InterruptedException e) {
+				return null;
+			}
+			queue = this.nextQueue();
+		}
+		return queue;
+	}
+	
+	private Runnable take(QueryQueue queue) {
+		Runnable task = queue.tasks.poll();
+		this.virtualTime = queue.pass;
+		queue.pass += 1.0 / queue.weight;
+		queue.running++;
+		this.running++;
+		return task;
+	}
+	
+	private void run(QueryQueue queue, Runnable task) {
+		try {
+			task.run();
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		} finally {
+			this.finished(queue);
+		}
+	}
+	
+	private synchronized void finished(QueryQueue queue) {
+		queue.running--;
+		this.running--;
+		this.notifyAll();
+	}
+	
+	/**
+	 * @return the queue to take the next batch from, or null if none have work
+	 */
+	private QueryQueue nextQueue() {
+		QueryQueue best = null;
+		Iterator<QueryQueue> iterator = this.queues.iterator();
+		while (iterator.hasNext()) {
+			QueryQueue queue = iterator.next();
+			if (queue.tasks.isEmpty()) {
+				if (queue.isTerminated()) {
+					iterator.remove();
+				}
+				continue;
+			}
+			if (best == null || queue.priority > best.priority || (queue.priority == best.priority && queue.pass < best.pass)) {
+				best = queue;
+			}
+		}
+		return best;
+	}
+	
+	public synchronized int getRunning() {
+		return this.running;
+	}
+	
+	public synchronized int getQueued() {
+		int queued = 0;
+		for (QueryQueue queue : this.queues) {
+			queued += queue.tasks.size();
+		}
+		return queued;
+	}
+	
+	public int getThreads() {
+		return this.workers.size();
+	}
+	
+	/**
+	 * Stops the threads once every queue is empty and its batches have run.
+	 */
+	public void shutdown() throws InterruptedException {
+		synchronized (this) {
+			this.shutdown = true;
+			this.notifyAll();
+		}
+		for (Thread worker : this.workers) {
+			worker.join();
+		}
+		synchronized (this) {
+			while (this.running > 0) {
+				this.wait();
+			}
+		}
+	}
+	
+	/**
+	 * A query's view of the scheduler. Shutting it down stops it accepting
+	 * batches, and it terminates once its batches have all run.
+	 */
+	class QueryQueue extends AbstractExecutorService {
+		final int priority;
+		final double weight;
+		// All guarded by the scheduler
+		final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+		double pass;
+		int running = 0;
+		boolean queueShutdown = false;
+		
+		QueryQueue(int priority, double weight) {
+			this.priority = priority;
+			this.weight = weight;
+			this.pass = virtualTime;
+		}
+
+		@Override
+		public void execute(Runnable command) {
+			synchronized (InsertScheduler.this) {
+				if (this.queueShutdown || shutdown) {
+					throw new RejectedExecutionException("The insert queue is shut down");
+				}
+				// A queue that has been idle starts level with the others instead of catching up on the turns it missed
+				if (this.tasks.isEmpty() && this.running == 0) {
+					this.pass = Math.max(this.pass, virtualTime);
+				}
+				this.tasks.add(command);
+				InsertScheduler.this.notifyAll();
+			}
+		}
+
+		@Override
+		public void shutdown() {
+			synchronized (InsertScheduler.this) {
+				this.queueShutdown = true;
+				InsertScheduler.this.notifyAll();
+			}
+		}
+
+		@Override
+		public List<Runnable> shutdownNow() {
+			synchronized (InsertScheduler.this) {
+				this.queueShutdown = true;
+				List<Runnable> pending = new ArrayList<>(this.tasks);
+				this.tasks.clear();
+				InsertScheduler.this.notifyAll();
+				return pending;
+			}
+		}
+
+		@Override
+		public boolean isShutdown() {
+			synchronized (InsertScheduler.this) {
+				return this.queueShutdown;
+			}
+		}
+
+		@Override
+		public boolean isTerminated() {
+			synchronized (InsertScheduler.this) {
+				return this.queueShutdown && this.tasks.isEmpty() && this.running == 0;
+			}
+		}
+
+		@Override
+		public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+			long deadline = System.nanoTime() + unit.toNanos(timeout);
+			synchronized (InsertScheduler.this) {
+				while (!this.isTerminated()) {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						return false;
+					}
+					TimeUnit.NANOSECONDS.timedWait(InsertScheduler.this, remaining);
+				}
+				return true;
+			}
+		}
+		
+		public int getQueued() {
+			synchronized (InsertScheduler.this) {
+				return this.tasks.size();
+			}
+		}
+		
+		public int getActiveCount() {
+			synchronized (InsertScheduler.this) {
+				return this.running;
+			}
+		}
+	}
+}
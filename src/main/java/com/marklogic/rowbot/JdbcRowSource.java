@@ -0,0 +1,306 @@
+/**
+ * Rows of a SQL query, read over pooled JDBC connections. A partitioned
+ * query's slices are each read on their own connection, and an unpartitioned
+ * one is read on the connection it was planned with.
+ */
+package com.marklogic.rowbot;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.marklogic.xcc.Session;
+
+class JdbcRowSource implements RowSource {
+	private final QueryBot queryBot;
+	private final JSONObject queryObject;
+	private final RowBot rowBot;
+	private final ConnectionPool connectionPool;
+	private PooledConnection connection;
+	private JSONArray childStats;
+	
+	public JdbcRowSource(QueryBot queryBot, ConnectionPool connectionPool) {
+		this.queryBot = queryBot;
+		this.queryObject = queryBot.queryObject;
+		this.rowBot = queryBot.rowBot;
+		this.connectionPool = connectionPool;
+	}
+	
+	public List<QuerySlice> plan() throws Exception {
+		if (this.queryObject.has("children")) {
+			checkChildren();
+		}
+		List<Object> queryParams = new ArrayList<>();
+		String sql = boundQuery(queryParams);
+		this.connection = connectionPool.borrow();
+		try {
+			List<QuerySlice> slices = QueryPartitioner.plan(this.connection.getConnection(), this.queryObject, sql, queryParams);
+			// Each slice of a partitioned query borrows its own connection
+			if (slices.size() > 1) {
+				connectionPool.release(this.connection);
+				this.connection = null;
+			}
+			return slices;
+		} catch (Exception e) {
+			connectionPool.invalidate(this.connection);
+			this.connection = null;
+			throw e;
+		}
+	}
+	
+	/**
+	 * @return the query with its :lastRun bound, adding its parameters to queryParams
+	 */
+	private String boundQuery(List<Object> queryParams) throws Exception {
+		String query = this.queryObject.getString("query");
+		List<Object> params = this.queryObject.has("params") ? this.queryObject.getJSONArray("params").toList() : new ArrayList<Object>();
+		if (!query.contains(QueryBot.LAST_RUN_PARAM)) {
+			queryParams.addAll(params);
+			return query;
+		}
+		JSONObject lastRunDoc;
+		Session session = rowBot.hosts.newSession();
+		try {
+			lastRunDoc = rowBot.readJSONDoc(session, queryBot.lastRunUri());
+		} finally {
+			session.close();
+		}
+		Timestamp lastRun = new Timestamp((lastRunDoc == null) ? 0 : RowBot.parseTimestamp(lastRunDoc.getString("lastRun")).getTime());
+		return bindLastRun(query, params, lastRun, queryParams);
+	}
+	
+	/**
+	 * Asks the database how many rows the query returns: the optimizer's
+	 * estimate from an Oracle EXPLAIN PLAN, or an exact COUNT(*).
+	 */
+	public long estimateRows(String method) throws Exception {
+		if (!method.equals(QueryScheduler.ESTIMATE_EXPLAIN) && !method.equals(QueryScheduler.ESTIMATE_COUNT)) {
+			return -1;
+		}
+		List<Object> params = new ArrayList<>();
+		String sql = boundQuery(params);
+		PooledConnection estimateConnection = connectionPool.borrow();
+		try {
+			long rows;
+			Connection conn = estimateConnection.getConnection();
+			if (method.equals(QueryScheduler.ESTIMATE_COUNT)) {
+				try (PreparedStatement statement = conn.prepareStatement("SELECT COUNT(*) FROM (" + sql + ") rowbot_count")) {
+					bind(statement, params);
+					try (ResultSet rs = statement.executeQuery()) {
+						rs.next();
+						rows = rs.getLong(1);
+					}
+				}
+			} else {
+				String statementId = "rowbot-" + UUID.randomUUID().toString().substring(0, 20);
+				try (PreparedStatement statement = conn.prepareStatement("EXPLAIN PLAN SET STATEMENT_ID = '" + statementId + "' FOR " + sql)) {
+					bind(statement, params);
+					statement.execute();
+				}
+				try (PreparedStatement statement = conn.prepareStatement("SELECT CARDINALITY FROM PLAN_TABLE WHERE STATEMENT_ID = ? AND ID = 0")) {
+					statement.setString(1, statementId);
+					try (ResultSet rs = statement.executeQuery()) {
+						rows = rs.next() ? rs.getLong(1) : -1;
+					}
+				}
+				try (PreparedStatement statement = conn.prepareStatement("DELETE FROM PLAN_TABLE WHERE STATEMENT_ID = ?")) {
+					statement.setString(1, statementId);
+					statement.executeUpdate();
+				}
+			}
+			connectionPool.release(estimateConnection);
+			return rows;
+		} catch (Exception e) {
+			connectionPool.invalidate(estimateConnection);
+			throw e;
+		}
+	}
+	
+	private static void bind(PreparedStatement statement, List<Object> params) throws SQLException {
+		for (int i = 0; i < params.size(); i++) {
+			statement.setObject(i + 1, params.get(i));
+		}
+	}
+	
+	public int getThreads(int slices) {
+		return this.queryObject.has("partition") ? this.queryObject.getJSONObject("partition").optInt("threads", slices) : 1;
+	}
+	
+	public boolean resumesByKey() {
+		return queryBot.checkpoint.getKeyColumn() != null;
+	}
+	
+	/**
+	 * Child queries are merge-joined on one cursor per child, so the parent
+	 * has to be read in a single pass ordered by its join key.
+	 */
+	private void checkChildren() {
+		if (!this.queryObject.has("joinKey")) {
+			throw new IllegalArgumentException("A query with children needs a joinKey");
+		}
+		if (this.queryObject.has("partition")) {
+			throw new IllegalArgumentException("A query with children can't be partitioned");
+		}
+		String keyColumn = queryBot.checkpoint.getKeyColumn();
+		if (keyColumn != null && !keyColumn.equalsIgnoreCase(this.queryObject.getString("joinKey"))) {
+			throw new IllegalArgumentException("The checkpointKey of a query with children must be its joinKey");
+		}
+	}
+	
+	/**
+	 * Replaces each :lastRun in the query with a bind parameter for the start
+	 * of the query's last successful run, keeping the query's own parameters in
+	 * their positions.
+	 */
+	static String bindLastRun(String query, List<Object> queryParams, Timestamp lastRun, List<Object> boundParams) {
+		StringBuilder sql = new StringBuilder(query.length());
+		int nextParam = 0;
+		boolean inLiteral = false;
+		for (int i = 0; i < query.length(); i++) {
+			char c = query.charAt(i);
+			if (c == '\'') {
+				inLiteral = !inLiteral;
+			} else if (!inLiteral && c == '?') {
+				boundParams.add(queryParams.get(nextParam++));
+			} else if (!inLiteral && query.startsWith(QueryBot.LAST_RUN_PARAM, i)
+					&& (i + QueryBot.LAST_RUN_PARAM.length() == query.length() || !Character.isJavaIdentifierPart(query.charAt(i + QueryBot.LAST_RUN_PARAM.length())))) {
+				sql.append('?');
+				boundParams.add(lastRun);
+				i += QueryBot.LAST_RUN_PARAM.length() - 1;
+				continue;
+			}
+			sql.append(c);
+		}
+		return sql.toString();
+	}
+	
+	/**
+	 * Executes a slice's SQL. A slice with a checkpoint key carries on after its
+	 * last confirmed key, otherwise its rows are read from the start.
+	 */
+	public RowSource.Cursor open(QuerySlice slice, SliceProgress progress) throws Exception {
+		PooledConnection sliceConnection;
+		synchronized (this) {
+			sliceConnection = this.connection;
+			this.connection = null;
+		}
+		if (sliceConnection == null) {
+			sliceConnection = connectionPool.borrow();
+		}
+		
+		try {
+			String sql = slice.getSql();
+			List<Object> params = new ArrayList<>(slice.getParams());
+			String keyColumn = queryBot.checkpoint.getKeyColumn();
+			if (keyColumn != null) {
+				sql = "SELECT * FROM (" + sql + ") rowbot_checkpoint";
+				if (progress.getConfirmedKey() != null) {
+					sql += " WHERE " + keyColumn + " > ?";
+					params.add(progress.getConfirmedKey());
+				}
+				sql += " ORDER BY " + keyColumn;
+			}
+			
+			PreparedStatement statement = sliceConnection.prepare(sql);
+			for (int i = 0; i < params.size(); i++) {
+				statement.setObject(i + 1, params.get(i));
+			}
+			if (this.queryObject.has("fetchSize")) {
+				statement.setFetchSize(this.queryObject.getInt("fetchSize"));
+			}
+			ResultSet rs = statement.executeQuery();
+			try {
+				ColumnPlan plan = new ColumnPlan(rs.getMetaData(), keyColumn, rowBot.lobMemoryThreshold, rowBot.lobSpillDirectory);
+				// Children of rows skipped on resume are read past as orphans, unless the join key is the checkpoint key
+				MergeJoin join = this.queryObject.has("children") ? new MergeJoin(sliceConnection, this.queryObject, rs.getMetaData(), progress.getConfirmedKey(), rowBot) : null;
+				return new Cursor(sliceConnection, rs, plan, join, Math.max(1, statement.getFetchSize()));
+			} catch (Exception e) {
+				rs.close();
+				throw e;
+			}
+		} catch (Exception e) {
+			connectionPool.invalidate(sliceConnection);
+			throw e;
+		}
+	}
+	
+	public void report(JSONObject results) {
+		if (this.childStats != null) {
+			results.put("children", this.childStats);
+		}
+	}
+	
+	/**
+	 * Hands back the planning connection if no slice ended up using it.
+	 */
+	public synchronized void close() {
+		if (this.connection != null) {
+			connectionPool.release(this.connection);
+			this.connection = null;
+		}
+	}
+	
+	private class Cursor implements RowSource.Cursor {
+		private final PooledConnection connection;
+		private final ResultSet rs;
+		private final ColumnPlan plan;
+		private final MergeJoin join;
+		private final int fetchSize;
+		private boolean done = false;
+		
+		Cursor(PooledConnection connection, ResultSet rs, ColumnPlan plan, MergeJoin join, int fetchSize) {
+			this.connection = connection;
+			this.rs = rs;
+			this.plan = plan;
+			this.join = join;
+			this.fetchSize = fetchSize;
+		}
+		
+		public boolean next() throws SQLException {
+			this.done = !this.rs.next();
+			return !this.done;
+		}
+		
+		public RowDocument read() throws Exception {
+			RowDocument row = this.plan.readRow(this.rs);
+			if (this.join != null) {
+				row = this.join.nest(row, this.rs);
+			}
+			return row;
+		}
+		
+		public int getFetchSize() {
+			return this.fetchSize;
+		}
+		
+		/**
+		 * Returns the connection to the pool if every row was read, and otherwise
+		 * discards it, since it may be left in the middle of a fetch.
+		 */
+		public void close() {
+			try {
+				if (this.join != null) {
+					childStats = this.join.toJSON();
+					this.join.close();
+				}
+				this.rs.close();
+			} catch (SQLException e) {
+				this.done = false;
+			} finally {
+				if (this.done) {
+					connectionPool.release(this.connection);
+				} else {
+					connectionPool.invalidate(this.connection);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,307 @@
+/**
+ * Reports a running job's progress from a thread of its own, so that nothing
+ * the readers or inserters do waits on it. The status line is printed every
+ * STATUS_UPDATE_INTERVAL seconds, and every "interval" seconds a
+ * rowbot-progress document is written with the rows read and documents
+ * inserted for each query, their rates over the last interval, and an ETA.
+ *
+ * A query's ETA comes from an estimate of its rows: the schedule's, if the
+ * job has one, otherwise the first of the "estimate" methods that works for
+ * it, tried when the query starts. The estimates run on a thread of their own,
+ * since a COUNT(*) can take a while, and the status line and progress
+ * documents carry on without them until they're back. The job's ETA is
+ * the rows left across its unfinished queries at the current read rate, and
+ * is only given once every one of them has an estimate.
+ */
+package com.marklogic.rowbot;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.marklogic.xcc.Session;
+
+class JobProgress {
+	static final long DEFAULT_INTERVAL = 10;
+	static final String[] DEFAULT_ESTIMATES = {QueryScheduler.ESTIMATE_HISTORY};
+	static final String STATE_QUEUED = "queued";
+	static final String STATE_RUNNING = "running";
+	static final String STATE_COMPLETE = "complete";
+	static final String STATE_FAILED = "failed";
+	private final RowBot rowBot;
+	private final long intervalSeconds;
+	private final List<String> estimates = new ArrayList<>();
+	private final String uri;
+	private final ScheduledExecutorService executor;
+	private final ExecutorService estimator;
+	// Whether an estimate pass is queued or running
+	private final AtomicBoolean estimating = new AtomicBoolean(false);
+	// Set by the query threads, read by the progress thread
+	private final ConcurrentHashMap<String, String> states = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Integer> completedRows = new ConcurrentHashMap<>();
+	// Filled in the constructor, its entries are used on the progress and estimate threads
+	private final Map<String, QueryProgress> queries = new LinkedHashMap<>();
+	private final long startNanos = System.nanoTime();
+	private long lastNanos = this.startNanos;
+	private long lastRowsRead = 0;
+	private long lastDocsInserted = 0;
+	
+	private static class QueryProgress {
+		// Whether an estimate has been tried while the query was queued, and once it was running, on the estimate thread
+		boolean triedQueued = false;
+		boolean triedStarted = false;
+		volatile QueryScheduler.Estimate estimate = null;
+		// On the progress thread
+		long lastRowsRead = 0;
+		long lastDocsInserted = 0;
+	}
+	
+	/**
+	 * @param uri where the progress document is written
+	 */
+	public JobProgress(JSONObject config, JSONArray queryIds, String uri, RowBot rowBot) {
+		this.rowBot = rowBot;
+		this.uri = uri;
+		this.intervalSeconds = config.has("interval") ? Math.max(0, config.getLong("interval")) : DEFAULT_INTERVAL;
+		if (config.has("estimate")) {
+			JSONArray estimate = config.getJSONArray("estimate");
+			for (int i = 0; i < estimate.length(); i++) {
+				this.estimates.add(estimate.getString(i));
+			}
+		} else {
+			for (String method : DEFAULT_ESTIMATES) {
+				this.estimates.add(method);
+			}
+		}
+		for (int i = 0; i < queryIds.length(); i++) {
+			this.states.put(queryIds.getString(i), STATE_QUEUED);
+			this.queries.put(queryIds.getString(i), new QueryProgress());
+		}
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "rowbot-progress");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.estimator = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "rowbot-progress-estimate");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	public void start() {
+		this.executor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				System.out.println(rowBot.status().toString());
+			}
+		}, 0, RowBot.STATUS_UPDATE_INTERVAL, TimeUnit.SECONDS);
+		if (this.intervalSeconds > 0) {
+			this.executor.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					write(false);
+				}
+			}, this.intervalSeconds, this.intervalSeconds, TimeUnit.SECONDS);
+		}
+	}
+	
+	public void started(String queryId) {
+		this.states.put(queryId, STATE_RUNNING);
+	}
+	
+	public void completed(String queryId, boolean success, int rows) {
+		this.completedRows.put(queryId, rows);
+		this.states.put(queryId, success ? STATE_COMPLETE : STATE_FAILED);
+	}
+	
+	/**
+	 * Stops the updates and writes the final progress document.
+	 */
+	public void stop() throws InterruptedException {
+		// An estimate still running is of no use now, and isn't waited for
+		this.estimator.shutdownNow();
+		this.executor.shutdownNow();
+		this.executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		if (this.intervalSeconds > 0) {
+			this.write(true);
+		}
+	}
+	
+	private void write(boolean complete) {
+		try {
+			this.rowBot.insertJSONDoc(this.uri, this.toJSON(complete).toString(), null, new String[] {"rowbot-progress"});
+		} catch (RuntimeException e) {
+			// Progress is only informational, it mustn't stop the updates
+			System.out.println("Unable to write the progress document: " + e.getMessage());
+		}
+	}
+	
+	private JSONObject toJSON(boolean complete) {
+		if (!complete) {
+			this.startEstimates();
+		}
+		long now = System.nanoTime();
+		double seconds = Math.max(1, now - this.lastNanos) / RowBot.NANO_TIME_DIV;
+		this.lastNanos = now;
+		
+		JSONObject queriesJSON = new JSONObject();
+		long rowsLeft = 0;
+		boolean allEstimated = true;
+		for (Map.Entry<String, QueryProgress> entry : this.queries.entrySet()) {
+			String queryId = entry.getKey();
+			QueryProgress query = entry.getValue();
+			String state = this.states.get(queryId);
+			Throughput throughput = this.rowBot.metrics.getQuery(queryId);
+			long rowsRead = (throughput != null) ? throughput.getRowsRead() : 0;
+			long docsInserted = (throughput != null) ? throughput.getDocsInserted() : 0;
+			double rowsPerSecond = (rowsRead - query.lastRowsRead) / seconds;
+			double docsPerSecond = (docsInserted - query.lastDocsInserted) / seconds;
+			query.lastRowsRead = rowsRead;
+			query.lastDocsInserted = docsInserted;
+			
+			JSONObject json = new JSONObject();
+			json.put("state", state);
+			json.put("rowsRead", rowsRead);
+			json.put("docsInserted", docsInserted);
+			json.put("rowsPerSecond", rowsPerSecond);
+			json.put("docsPerSecond", docsPerSecond);
+			long estimatedRows = (query.estimate != null) ? query.estimate.rows : -1;
+			Integer rows = this.completedRows.get(queryId);
+			if (rows != null) {
+				json.put("totalRows", rows);
+			} else if (estimatedRows >= 0) {
+				json.put("estimatedRows", estimatedRows);
+				json.put("estimate", query.estimate.method);
+				long left = Math.max(0, estimatedRows - rowsRead);
+				json.put("percentComplete", (estimatedRows == 0) ? 100.0 : Math.min(100.0, 100.0 * rowsRead / estimatedRows));
+				if (rowsPerSecond > 0) {
+					json.put("eta", left / rowsPerSecond);
+				}
+				rowsLeft += left;
+			} else {
+				allEstimated = false;
+			}
+			queriesJSON.put(queryId, json);
+		}
+		
+		Metrics metrics = this.rowBot.metrics;
+		long rowsRead = metrics.getRowsRead();
+		long docsInserted = metrics.getDocsInserted();
+		double rowsPerSecond = (rowsRead - this.lastRowsRead) / seconds;
+		double docsPerSecond = (docsInserted - this.lastDocsInserted) / seconds;
+		this.lastRowsRead = rowsRead;
+		this.lastDocsInserted = docsInserted;
+		
+		DateFormat df = new SimpleDateFormat(RowBot.TIMESTAMP_FORMAT);
+		df.setTimeZone(TimeZone.getTimeZone("UTC"));
+		JSONObject json = new JSONObject();
+		if (this.rowBot.jobName != null) {
+			json.put("jobName", this.rowBot.jobName);
+		}
+		json.put("timestamp", this.rowBot.timestamp);
+		json.put("status", complete ? STATE_COMPLETE : STATE_RUNNING);
+		json.put("updated", df.format(new Date()));
+		json.put("elapsed", (now - this.startNanos) / RowBot.NANO_TIME_DIV);
+		json.put("rowsRead", rowsRead);
+		json.put("docsInserted", docsInserted);
+		json.put("rowsPerSecond", rowsPerSecond);
+		json.put("docsPerSecond", docsPerSecond);
+		if (!complete && allEstimated && rowsPerSecond > 0) {
+			json.put("eta", rowsLeft / rowsPerSecond);
+		}
+		json.put("queries", queriesJSON);
+		return json;
+	}
+	
+	/**
+	 * Starts a pass over the queries that need an estimate, unless one is still
+	 * running. Its estimates are in the next progress document.
+	 */
+	private void startEstimates() {
+		if (!this.estimating.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			this.estimator.execute(new Runnable() {
+				public void run() {
+					try {
+						estimate();
+					} catch (RuntimeException e) {
+						System.out.println("Unable to estimate the rows left: " + e.getMessage());
+					} finally {
+						estimating.set(false);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Stopped
+			this.estimating.set(false);
+		}
+	}
+	
+	/**
+	 * Estimates the rows of each query that has no estimate yet. A queued query
+	 * can only be estimated from its history, the other methods are tried
+	 * once it has started.
+	 */
+	private void estimate() {
+		Session session = null;
+		try {
+			for (Map.Entry<String, QueryProgress> entry : this.queries.entrySet()) {
+				String queryId = entry.getKey();
+				QueryProgress query = entry.getValue();
+				boolean queued = STATE_QUEUED.equals(this.states.get(queryId));
+				if (query.triedStarted || (queued && query.triedQueued)) {
+					continue;
+				}
+				query.triedQueued = true;
+				query.triedStarted = !queued;
+				if (this.rowBot.scheduler != null) {
+					query.estimate = this.rowBot.scheduler.getEstimate(queryId);
+					query.triedStarted = query.estimate != null;
+					continue;
+				}
+				if (session == null) {
+					session = this.rowBot.hosts.newSession();
+				}
+				QueryScheduler.Estimate estimate = QueryScheduler.estimate(this.estimates, queryId, queued ? null : this.activeQuery(queryId), session, this.rowBot);
+				if (estimate.method != null) {
+					query.estimate = estimate;
+					query.triedStarted = true;
+				}
+			}
+		} finally {
+			if (session != null) {
+				session.close();
+			}
+		}
+	}
+	
+	private QueryBot activeQuery(String queryId) {
+		for (QueryBot queryBot : this.rowBot.activeQueries) {
+			if (queryBot.queryObject.getString("queryId").equals(queryId)) {
+				return queryBot;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,118 @@
+/**
+ * Reusable, growable byte buffer that JSON is written into as UTF-8.
+ */
+package com.marklogic.rowbot;
+
+import java.util.Arrays;
+
+class JsonRowWriter {
+	private static final byte[] HEX = "0123456789abcdef".getBytes();
+	private byte[] buffer;
+	private int length = 0;
+	
+	public JsonRowWriter(int initialSize) {
+		this.buffer = new byte[initialSize];
+	}
+	
+	public void reset() {
+		this.length = 0;
+	}
+	
+	public int length() {
+		return this.length;
+	}
+	
+	public byte[] toByteArray() {
+		return Arrays.copyOf(this.buffer, this.length);
+	}
+	
+	private void ensureCapacity(int extra) {
+		if (this.length + extra > this.buffer.length) {
+			this.buffer = Arrays.copyOf(this.buffer, Math.max(this.buffer.length * 2, this.length + extra));
+		}
+	}
+	
+	public void write(byte b) {
+		ensureCapacity(1);
+		this.buffer[this.length++] = b;
+	}
+	
+	public void write(byte[] bytes) {
+		write(bytes, 0, bytes.length);
+	}
+	
+	public void write(byte[] bytes, int offset, int len) {
+		ensureCapacity(len);
+		System.arraycopy(bytes, offset, this.buffer, this.length, len);
+		this.length += len;
+	}
+	
+	/**
+	 * Writes characters that are known to need neither escaping nor encoding,
+	 * such as numbers, true, false and null.
+	 */
+	public void writeAscii(String value) {
+		int len = value.length();
+		ensureCapacity(len);
+		for (int i = 0; i < len; i++) {
+			this.buffer[this.length++] = (byte) value.charAt(i);
+		}
+	}
+	
+	/**
+	 * Writes a quoted, escaped JSON string.
+	 */
+	public void writeString(String value) {
+		int len = value.length();
+		// Worst case is 6 bytes for an escaped control character
+		ensureCapacity(len * 6 + 2);
+		byte[] buf = this.buffer;
+		int pos = this.length;
+		buf[pos++] = '"';
+		for (int i = 0; i < len; i++) {
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				if (c == '"' || c == '\\') {
+					buf[pos++] = '\\';
+					buf[pos++] = (byte) c;
+				} else if (c >= 0x20) {
+					buf[pos++] = (byte) c;
+				} else if (c == '\n') {
+					buf[pos++] = '\\';
+					buf[pos++] = 'n';
+				} else if (c == '\r') {
+					buf[pos++] = '\\';
+					buf[pos++] = 'r';
+				} else if (c == '\t') {
+					buf[pos++] = '\\';
+					buf[pos++] = 't';
+				} else {
+					buf[pos++] = '\\';
+					buf[pos++] = 'u';
+					buf[pos++] = '0';
+					buf[pos++] = '0';
+					buf[pos++] = HEX[c >> 4];
+					buf[pos++] = HEX[c & 0xf];
+				}
+			} else if (c < 0x800) {
+				buf[pos++] = (byte) (0xc0 | (c >> 6));
+				buf[pos++] = (byte) (0x80 | (c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(value.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, value.charAt(++i));
+				buf[pos++] = (byte) (0xf0 | (cp >> 18));
+				buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+				buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+				buf[pos++] = (byte) (0x80 | (cp & 0x3f));
+			} else if (Character.isSurrogate(c)) {
+				// Unpaired surrogate, replaced the same way String.getBytes does
+				buf[pos++] = '?';
+			} else {
+				buf[pos++] = (byte) (0xe0 | (c >> 12));
+				buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				buf[pos++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+		buf[pos++] = '"';
+		this.length = pos;
+	}
+}
@@ -0,0 +1,101 @@
+/**
+ * Lock-free latency histogram with log-linear buckets: eight buckets per
+ * power of two microseconds, so recorded values are accurate to within
+ * 12.5%. Recording is a few atomic increments and never blocks.
+ */
+package com.marklogic.rowbot;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.json.JSONObject;
+
+class LatencyHistogram {
+	static final int SUB_BUCKET_BITS = 3;
+	static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// Enough magnitudes to cover microseconds up to days
+	static final int MAGNITUDES = 40;
+	static final double MICROS_PER_MILLI = 1000.0;
+	private final AtomicLongArray counts = new AtomicLongArray((MAGNITUDES + 1) * SUB_BUCKETS);
+	private final AtomicLong count = new AtomicLong(0);
+	private final AtomicLong totalMicros = new AtomicLong(0);
+	private final AtomicLong maxMicros = new AtomicLong(0);
+	
+	public void record(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		this.counts.incrementAndGet(indexFor(micros));
+		this.count.incrementAndGet();
+		this.totalMicros.addAndGet(micros);
+		long max = this.maxMicros.get();
+		while (micros > max && !this.maxMicros.compareAndSet(max, micros)) {
+			max = this.maxMicros.get();
+		}
+	}
+	
+	static int indexFor(long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int) micros;
+		}
+		int msb = 63 - Long.numberOfLeadingZeros(micros);
+		int magnitude = Math.min(msb - SUB_BUCKET_BITS + 1, MAGNITUDES);
+		int subBucket = (int) (micros >>> (msb - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return magnitude * SUB_BUCKETS + subBucket;
+	}
+	
+	/**
+	 * @return the largest value that falls in the bucket
+	 */
+	static long upperBoundOf(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int magnitude = index / SUB_BUCKETS;
+		int subBucket = index % SUB_BUCKETS;
+		int shift = magnitude - 1;
+		return ((long) (SUB_BUCKETS + subBucket + 1) << shift) - 1;
+	}
+	
+	public long getCount() {
+		return this.count.get();
+	}
+	
+	/**
+	 * @param percentile between 0 and 100
+	 */
+	public double percentileMillis(double percentile) {
+		long total = this.count.get();
+		if (total == 0) {
+			return 0;
+		}
+		long target = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+		long seen = 0;
+		for (int i = 0; i < this.counts.length(); i++) {
+			seen += this.counts.get(i);
+			if (seen >= target) {
+				return Math.min(upperBoundOf(i), this.maxMicros.get()) / MICROS_PER_MILLI;
+			}
+		}
+		return this.maxMicros.get() / MICROS_PER_MILLI;
+	}
+	
+	public double meanMillis() {
+		long total = this.count.get();
+		return (total == 0) ? 0 : this.totalMicros.get() / MICROS_PER_MILLI / total;
+	}
+	
+	public double maxMillis() {
+		return this.maxMicros.get() / MICROS_PER_MILLI;
+	}
+	
+	public JSONObject toJSON() {
+		JSONObject json = new JSONObject();
+		json.put("count", this.getCount());
+		json.put("meanMillis", this.meanMillis());
+		json.put("p50Millis", this.percentileMillis(50));
+		json.put("p90Millis", this.percentileMillis(90));
+		json.put("p99Millis", this.percentileMillis(99));
+		json.put("p999Millis", this.percentileMillis(99.9));
+		json.put("maxMillis", this.maxMillis());
+		return json;
+	}
+}
@@ -0,0 +1,96 @@
+/**
+ * A separate pool of insert threads for rows whose LOB values add up to at
+ * least "threshold" bytes, so that a few huge binaries can't hold every
+ * insert thread while the small rows wait behind them. The lane has its own
+ * number of "threads", and can be held to "bytesPerSecond" by pacing the
+ * start of each LOB insert. Its inserts are left out of adaptive concurrency,
+ * whose latency signal is meant for the small rows.
+ */
+package com.marklogic.rowbot;
+
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+
+class LobLane {
+	static final long DEFAULT_THRESHOLD = 1048576;
+	static final int DEFAULT_THREADS = 2;
+	private final long threshold;
+	private final long bytesPerSecond;
+	private final ThreadPoolExecutor pool;
+	private long nextStartNanos = System.nanoTime();
+	
+	public LobLane(JSONObject laneObj) {
+		this.threshold = laneObj.has("threshold") ? Math.max(0, laneObj.getLong("threshold")) : DEFAULT_THRESHOLD;
+		this.bytesPerSecond = laneObj.has("bytesPerSecond") ? Math.max(0, laneObj.getLong("bytesPerSecond")) : 0;
+		int threads = laneObj.has("threads") ? Math.max(1, laneObj.getInt("threads")) : DEFAULT_THREADS;
+		this.pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger(0);
+			
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "rowbot-lob-insert-" + this.count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	/**
+	 * @return true if the row's LOB values are big enough for the lane
+	 */
+	public boolean isLarge(RowDocument row) {
+		Map<String, LobValue> binaries = row.getBinaries();
+		if (binaries == null || binaries.isEmpty()) {
+			return false;
+		}
+		long bytes = 0;
+		for (LobValue lob : binaries.values()) {
+			bytes += lob.size();
+		}
+		return bytes >= this.threshold;
+	}
+	
+	public void execute(Runnable task) {
+		this.pool.execute(task);
+	}
+	
+	/**
+	 * Waits for the turn to send a LOB of the given size, spacing the starts of
+	 * inserts so that on average the lane sends bytesPerSecond.
+	 */
+	public void pace(long bytes) throws InterruptedException {
+		if (this.bytesPerSecond == 0) {
+			return;
+		}
+		long start;
+		synchronized (this) {
+			start = Math.max(System.nanoTime(), this.nextStartNanos);
+			this.nextStartNanos = start + (long) (bytes * 1000000000.0 / this.bytesPerSecond);
+		}
+		long wait = start - System.nanoTime();
+		if (wait > 0) {
+			TimeUnit.NANOSECONDS.sleep(wait);
+		}
+	}
+	
+	public int getActiveCount() {
+		return this.pool.getActiveCount();
+	}
+	
+	public int getQueued() {
+		return this.pool.getQueue().size();
+	}
+	
+	/**
+	 * Lets the queued inserts finish, then stops the threads.
+	 */
+	public void shutdown() throws InterruptedException {
+		this.pool.shutdown();
+		this.pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+}
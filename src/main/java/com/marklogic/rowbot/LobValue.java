@@ -0,0 +1,169 @@
+/**
+ * BLOB or CLOB column value, read in chunks while its row is current. Values
+ * up to the memory threshold are held in memory; anything larger is spilled
+ * to a temp file that is streamed to MarkLogic and deleted after the insert.
+ */
+package com.marklogic.rowbot;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import com.marklogic.xcc.Content;
+import com.marklogic.xcc.ContentCreateOptions;
+import com.marklogic.xcc.ContentFactory;
+
+class LobValue {
+	static final int CHUNK_SIZE = 65536;
+	private ByteArrayOutputStream memory;
+	private File file;
+	private long size = 0;
+	
+	private LobValue() {}
+	
+	public static LobValue fromStream(InputStream in, int memoryThreshold, File spillDirectory) throws IOException {
+		LobValue lob = new LobValue();
+		try (OutputStream out = lob.new SpillingOutputStream(memoryThreshold, spillDirectory)) {
+			byte[] chunk = new byte[CHUNK_SIZE];
+			int read;
+			while ((read = in.read(chunk)) != -1) {
+				out.write(chunk, 0, read);
+			}
+		} catch (IOException e) {
+			lob.delete();
+			throw e;
+		} finally {
+			in.close();
+		}
+		return lob;
+	}
+	
+	/**
+	 * Reads character data, stored as UTF-8.
+	 */
+	public static LobValue fromReader(Reader in, int memoryThreshold, File spillDirectory) throws IOException {
+		LobValue lob = new LobValue();
+		try (Writer out = new OutputStreamWriter(lob.new SpillingOutputStream(memoryThreshold, spillDirectory), StandardCharsets.UTF_8)) {
+			char[] chunk = new char[CHUNK_SIZE];
+			int read;
+			while ((read = in.read(chunk)) != -1) {
+				out.write(chunk, 0, read);
+			}
+		} catch (IOException e) {
+			lob.delete();
+			throw e;
+		} finally {
+			in.close();
+		}
+		return lob;
+	}
+	
+	/**
+	 * Wraps an existing file, e.g. a binary from a dead letter file. Deleting
+	 * the value deletes the file.
+	 */
+	public static LobValue fromFile(File file) {
+		LobValue lob = new LobValue();
+		lob.file = file;
+		lob.size = file.length();
+		return lob;
+	}
+	
+	public long size() {
+		return this.size;
+	}
+	
+	public boolean isSpilled() {
+		return this.file != null;
+	}
+	
+	/**
+	 * Bytes of heap held by this value.
+	 */
+	public long memorySize() {
+		return (this.memory == null) ? 0 : this.memory.size();
+	}
+	
+	public String asString() {
+		return new String(this.memory.toByteArray(), StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Creates rewindable content, so a failed insert can be retried.
+	 */
+	public Content newContent(String uri, ContentCreateOptions options) {
+		if (this.file != null) {
+			return ContentFactory.newContent(uri, this.file, options);
+		}
+		return ContentFactory.newContent(uri, this.memory.toByteArray(), options);
+	}
+	
+	public InputStream newInputStream() throws IOException {
+		if (this.file != null) {
+			return new FileInputStream(this.file);
+		}
+		return new ByteArrayInputStream(this.memory.toByteArray());
+	}
+	
+	public void copyTo(File target) throws IOException {
+		if (this.file != null) {
+			Files.copy(this.file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} else {
+			Files.write(target.toPath(), this.memory.toByteArray());
+		}
+	}
+	
+	public void delete() {
+		this.memory = null;
+		if (this.file != null) {
+			this.file.delete();
+			this.file = null;
+		}
+	}
+	
+	private class SpillingOutputStream extends OutputStream {
+		private final int memoryThreshold;
+		private final File spillDirectory;
+		private OutputStream out;
+		
+		SpillingOutputStream(int memoryThreshold, File spillDirectory) {
+			this.memoryThreshold = memoryThreshold;
+			this.spillDirectory = spillDirectory;
+			memory = new ByteArrayOutputStream(Math.min(memoryThreshold, CHUNK_SIZE));
+			this.out = memory;
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			this.write(new byte[] {(byte) b}, 0, 1);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (file == null && size + len > this.memoryThreshold) {
+				file = File.createTempFile("rowbot-lob-", ".bin", this.spillDirectory);
+				this.out = new FileOutputStream(file);
+				memory.writeTo(this.out);
+				memory = null;
+			}
+			this.out.write(b, off, len);
+			size += len;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			this.out.close();
+		}
+	}
+}
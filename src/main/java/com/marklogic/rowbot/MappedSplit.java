@@ -0,0 +1,132 @@
+/**
+ * A byte range of a newline delimited file, read through a memory-mapped
+ * window. A split owns the records that start inside it: unless it is at
+ * the start of the file it skips ahead to the first record boundary, and
+ * it reads its last record past its end if need be. Records must fit in
+ * the window, which is moved along the file as it is read.
+ */
+package com.marklogic.rowbot;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+class MappedSplit implements AutoCloseable {
+	static final long MAX_WINDOW = 268435456;
+	private final File file;
+	private final FileChannel channel;
+	private final long fileSize;
+	private final long end;
+	private final boolean quoted;
+	private MappedByteBuffer window;
+	private long windowStart;
+	private int windowLength;
+	private long position;
+	private long recordStart;
+	private int recordLength;
+	
+	/**
+	 * @param quoted whether newlines inside double quotes are part of a record,
+	 *               as they are in CSV. Only records are quote aware, the first
+	 *               boundary of a split is always the next newline.
+	 */
+	public MappedSplit(File file, long start, long end, boolean quoted) throws IOException {
+		this.file = file;
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		this.fileSize = this.channel.size();
+		this.end = Math.min(end, this.fileSize);
+		this.quoted = quoted;
+		if (start == 0) {
+			// Skip a UTF-8 byte order mark
+			this.position = 0;
+			if (this.fileSize >= 3) {
+				map(0);
+				if (this.window.get(0) == (byte) 0xEF && this.window.get(1) == (byte) 0xBB && this.window.get(2) == (byte) 0xBF) {
+					this.position = 3;
+				}
+			}
+		} else if (start < this.fileSize) {
+			// A record starting exactly at the split's start belongs to it, so look from the byte before
+			this.position = scan(start - 1, false) + 1;
+		} else {
+			this.position = this.fileSize;
+		}
+	}
+	
+	/**
+	 * Moves to the next record of the split.
+	 */
+	public boolean next() throws IOException {
+		if (this.position >= this.end) {
+			return false;
+		}
+		this.recordStart = this.position;
+		long recordEnd = scan(this.recordStart, this.quoted);
+		this.position = recordEnd + 1;
+		int length = (int) (recordEnd - this.recordStart);
+		if (length > 0 && this.window.get((int) (recordEnd - 1 - this.windowStart)) == '\r') {
+			length--;
+		}
+		this.recordLength = length;
+		return true;
+	}
+	
+	/**
+	 * @return the length of the current record, without its line ending
+	 */
+	public int getRecordLength() {
+		return this.recordLength;
+	}
+	
+	public void getRecord(byte[] bytes) {
+		this.window.position((int) (this.recordStart - this.windowStart));
+		this.window.get(bytes, 0, this.recordLength);
+	}
+	
+	/**
+	 * Finds the newline that ends the record starting at from, keeping the
+	 * whole record inside the window.
+	 *
+	 * @return the position of the newline, or the file size for a last record without one
+	 */
+	private long scan(long from, boolean quoteAware) throws IOException {
+		if (this.window == null || from < this.windowStart || from >= this.windowStart + this.windowLength) {
+			map(from);
+		}
+		boolean inQuotes = false;
+		long pos = from;
+		while (pos < this.fileSize) {
+			if (pos == this.windowStart + this.windowLength) {
+				if (this.windowStart == from) {
+					throw new IOException("The record at byte " + from + " of " + this.file.getPath() + " is longer than " + MAX_WINDOW + " bytes");
+				}
+				map(from);
+			}
+			byte b = this.window.get((int) (pos - this.windowStart));
+			if (b == '\n' && !inQuotes) {
+				return pos;
+			}
+			if (quoteAware && b == '"') {
+				inQuotes = !inQuotes;
+			}
+			pos++;
+		}
+		return this.fileSize;
+	}
+	
+	private void map(long start) throws IOException {
+		this.windowStart = start;
+		this.windowLength = (int) Math.min(MAX_WINDOW, this.fileSize - start);
+		this.window = this.channel.map(FileChannel.MapMode.READ_ONLY, start, this.windowLength);
+	}
+	
+	/**
+	 * Closes the file. The mapping itself is released when it is garbage collected.
+	 */
+	public void close() throws IOException {
+		this.window = null;
+		this.channel.close();
+	}
+}
@@ -0,0 +1,245 @@
+/**
+ * Nests the rows of child queries into their parent rows with a streaming
+ * merge-join. The parent and every child query are sorted ascending on their
+ * join key, so each child cursor only ever moves forward and a parent row's
+ * children are the run of child rows with an equal key.
+ */
+package com.marklogic.rowbot;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+class MergeJoin implements AutoCloseable {
+	static final int INITIAL_BUFFER_SIZE = 8192;
+	private final int parentKeyIndex;
+	private final boolean timestampKey;
+	private final List<Child> children = new ArrayList<>();
+	private final JsonRowWriter writer = new JsonRowWriter(INITIAL_BUFFER_SIZE);
+	
+	/**
+	 * One child query's cursor, holding the row it has read past the last
+	 * parent key until the parent catches up to it.
+	 */
+	private static class Child {
+		final String name;
+		final byte[] fieldPrefix;
+		final ResultSet rs;
+		final ColumnPlan plan;
+		RowDocument pending;
+		boolean exhausted = false;
+		long joined = 0;
+		long orphans = 0;
+		
+		Child(String name, ResultSet rs, ColumnPlan plan) {
+			this.name = name;
+			JsonRowWriter w = new JsonRowWriter(name.length() + 4);
+			w.write((byte) ',');
+			w.writeString(name);
+			w.write((byte) ':');
+			this.fieldPrefix = w.toByteArray();
+			this.rs = rs;
+			this.plan = plan;
+		}
+		
+		/**
+		 * @return the next child row, or null once the cursor is exhausted
+		 */
+		RowDocument peek() throws SQLException, IOException {
+			if (this.pending == null && !this.exhausted) {
+				if (this.rs.next()) {
+					this.pending = this.plan.readRow(this.rs);
+				} else {
+					this.exhausted = true;
+				}
+			}
+			return this.pending;
+		}
+		
+		JSONObject toJSON() {
+			JSONObject stats = new JSONObject();
+			stats.put("name", this.name);
+			stats.put("joinedRows", this.joined);
+			stats.put("orphanRows", this.orphans);
+			return stats;
+		}
+	}
+	
+	/**
+	 * Opens a cursor for each of the query's children on the parent's connection.
+	 *
+	 * @param parentMetaData the parent query's results, which must include its joinKey
+	 * @param lowerBound when not null, children with a join key at or below it are skipped in SQL
+	 */
+	public MergeJoin(PooledConnection connection, JSONObject queryObject, ResultSetMetaData parentMetaData, Object lowerBound, RowBot rowBot) throws SQLException {
+		String parentKey = queryObject.getString("joinKey");
+		int parentKeyIndex = 0;
+		for (int i = parentMetaData.getColumnCount(); i >= 1 && parentKeyIndex == 0; i--) {
+			if (parentMetaData.getColumnName(i).equalsIgnoreCase(parentKey)) {
+				parentKeyIndex = i;
+			}
+		}
+		if (parentKeyIndex == 0) {
+			throw new SQLException("Join key column " + parentKey + " is not in the query results");
+		}
+		this.parentKeyIndex = parentKeyIndex;
+		// Read the same way as the children's keys, so the two compare
+		this.timestampKey = ColumnPlan.isTimestampType(parentMetaData.getColumnType(parentKeyIndex));
+		
+		JSONArray childArray = queryObject.getJSONArray("children");
+		try {
+			for (int c = 0; c < childArray.length(); c++) {
+				JSONObject childObject = childArray.getJSONObject(c);
+				String childKey = childObject.getString("joinKey");
+				String sql = childObject.getString("query");
+				List<Object> params = childObject.has("params") ? childObject.getJSONArray("params").toList() : new ArrayList<Object>();
+				if (lowerBound != null) {
+					sql = "SELECT * FROM (" + sql + ") rowbot_child WHERE " + childKey + " > ? ORDER BY " + childKey;
+					params.add(lowerBound);
+				}
+				PreparedStatement statement = connection.prepare(sql);
+				for (int i = 0; i < params.size(); i++) {
+					statement.setObject(i + 1, params.get(i));
+				}
+				if (childObject.has("fetchSize")) {
+					statement.setFetchSize(childObject.getInt("fetchSize"));
+				}
+				ResultSet rs = statement.executeQuery();
+				try {
+					ColumnPlan plan = new ColumnPlan(rs.getMetaData(), childKey, rowBot.lobMemoryThreshold, rowBot.lobSpillDirectory);
+					this.children.add(new Child(childObject.getString("name"), rs, plan));
+				} catch (SQLException e) {
+					rs.close();
+					throw e;
+				}
+			}
+		} catch (SQLException e) {
+			close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Adds the children of the parent row the ResultSet is on to its document,
+	 * as an array field per child query.
+	 */
+	public RowDocument nest(RowDocument parent, ResultSet rs) throws SQLException, IOException {
+		Object parentKey = ColumnPlan.readKey(rs, this.parentKeyIndex, this.timestampKey);
+		
+		JsonRowWriter w = this.writer;
+		w.reset();
+		byte[] parentJson = parent.getJson();
+		// Drop the closing brace, the parent's own fields are followed by the child arrays
+		w.write(parentJson, 0, parentJson.length - 1);
+		boolean emptyParent = parentJson.length == 2;
+		
+		Map<String, LobValue> binaries = parent.getBinaries();
+		for (Child child : this.children) {
+			if (emptyParent) {
+				w.write(child.fieldPrefix, 1, child.fieldPrefix.length - 1);
+				emptyParent = false;
+			} else {
+				w.write(child.fieldPrefix);
+			}
+			w.write((byte) '[');
+			boolean first = true;
+			RowDocument row;
+			while ((row = child.peek()) != null) {
+				int cmp = compareKeys(row.getKey(), parentKey);
+				if (cmp > 0) {
+					break;
+				}
+				child.pending = null;
+				if (cmp < 0) {
+					// A child with no parent, or one whose parent the query filtered out
+					child.orphans++;
+					row.deleteBinaries();
+					continue;
+				}
+				if (!first) {
+					w.write((byte) ',');
+				}
+				first = false;
+				w.write(row.getJson());
+				child.joined++;
+				if (row.getBinaries() != null) {
+					if (binaries == null) {
+						binaries = new HashMap<>();
+					}
+					binaries.putAll(row.getBinaries());
+				}
+			}
+			w.write((byte) ']');
+		}
+		w.write((byte) '}');
+		return new RowDocument(w.toByteArray(), binaries, parent.getKey());
+	}
+	
+	/**
+	 * Orders join keys the way the database sorts them by default, with nulls
+	 * last. A null parent key matches no children, and the null-keyed children
+	 * sorted after every parent are counted as orphans.
+	 */
+	static int compareKeys(Object childKey, Object parentKey) {
+		if (childKey == null) {
+			return (parentKey == null) ? -1 : 1;
+		}
+		if (parentKey == null) {
+			return -1;
+		}
+		if (childKey instanceof Number && parentKey instanceof Number) {
+			return toBigDecimal((Number) childKey).compareTo(toBigDecimal((Number) parentKey));
+		}
+		if (childKey.getClass() == parentKey.getClass() && childKey instanceof Comparable) {
+			@SuppressWarnings("unchecked")
+			Comparable<Object> comparable = (Comparable<Object>) childKey;
+			return comparable.compareTo(parentKey);
+		}
+		return childKey.toString().compareTo(parentKey.toString());
+	}
+	
+	private static BigDecimal toBigDecimal(Number value) {
+		if (value instanceof BigDecimal) {
+			return (BigDecimal) value;
+		}
+		if (value instanceof Double || value instanceof Float) {
+			return new BigDecimal(value.doubleValue());
+		}
+		return new BigDecimal(value.toString());
+	}
+	
+	/**
+	 * @return rows joined and orphaned per child query
+	 */
+	public JSONArray toJSON() {
+		JSONArray stats = new JSONArray();
+		for (Child child : this.children) {
+			stats.put(child.toJSON());
+		}
+		return stats;
+	}
+	
+	public void close() {
+		for (Child child : this.children) {
+			if (child.pending != null) {
+				child.pending.deleteBinaries();
+				child.pending = null;
+			}
+			try {
+				child.rs.close();
+			} catch (SQLException e) {
+				// The connection is handed back or invalidated by the caller either way
+			}
+		}
+	}
+}
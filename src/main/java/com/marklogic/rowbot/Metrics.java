@@ -0,0 +1,283 @@
+/**
+ * Per stage latency histograms and throughput counters for a RowBot job.
+ * Everything here is updated lock free from the reader and insert threads.
+ * The metrics are always available over JMX, optionally over HTTP on the
+ * loopback interface, and are summarized in the final rowbot-report.
+ */
+package com.marklogic.rowbot;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+class Metrics implements MetricsMBean {
+	static final String MBEAN_NAME = "com.marklogic.rowbot:type=Metrics";
+	// JDBC time spent in ResultSet.next() per fetchSize rows, i.e. roughly one driver round trip
+	final LatencyHistogram fetch = new LatencyHistogram();
+	// ResultSet row to JSON document, per row
+	final LatencyHistogram convert = new LatencyHistogram();
+	// One insertContent call against MarkLogic, per attempt
+	final LatencyHistogram insert = new LatencyHistogram();
+	// Writing an insert report document
+	final LatencyHistogram reportWrite = new LatencyHistogram();
+	final AtomicLong insertRetries = new AtomicLong(0);
+	// Inserting the small rows of a batch, and each row of the LOB lane
+	private final ConcurrentHashMap<String, LatencyHistogram> laneLatency = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Throughput> lanes = new ConcurrentHashMap<>();
+	private final Throughput total = new Throughput();
+	private final ConcurrentHashMap<String, Throughput> queries = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Throughput> hosts = new ConcurrentHashMap<>();
+	private final AtomicLong rowsRead = new AtomicLong(0);
+	private final AtomicLong docsInserted = new AtomicLong(0);
+	private final AtomicLong bytesSent = new AtomicLong(0);
+	private volatile RetryPolicy retryPolicy;
+	private volatile AdaptiveConcurrency concurrency;
+	private ObjectName mbeanName;
+	private HttpServer httpServer;
+	
+	public Throughput query(String queryId) {
+		return throughputFor(this.queries, queryId);
+	}
+	
+	/**
+	 * @return the query's throughput, or null if nothing has been recorded against it yet
+	 */
+	public Throughput getQuery(String queryId) {
+		return this.queries.get(queryId);
+	}
+	
+	public Throughput host(String host) {
+		return throughputFor(this.hosts, host);
+	}
+	
+	private static Throughput throughputFor(ConcurrentHashMap<String, Throughput> map, String key) {
+		Throughput throughput = map.get(key);
+		if (throughput == null) {
+			Throughput created = new Throughput();
+			throughput = map.putIfAbsent(key, created);
+			if (throughput == null) {
+				throughput = created;
+			}
+		}
+		return throughput;
+	}
+	
+	/**
+	 * Includes the retry budget and, if there is one, the adaptive insert
+	 * concurrency limit in the metrics.
+	 */
+	public void track(RetryPolicy retryPolicy, AdaptiveConcurrency concurrency) {
+		this.retryPolicy = retryPolicy;
+		this.concurrency = concurrency;
+	}
+	
+	public void rowsRead(String queryId, long rows) {
+		this.rowsRead.addAndGet(rows);
+		this.total.rowsRead(rows);
+		this.query(queryId).rowsRead(rows);
+	}
+	
+	/**
+	 * Records documents that made it into MarkLogic, against the query they came from.
+	 */
+	public void inserted(String queryId, long docs, long bytes) {
+		this.docsInserted.addAndGet(docs);
+		this.total.inserted(docs, bytes);
+		this.query(queryId).inserted(docs, bytes);
+	}
+	
+	/**
+	 * Records documents inserted by an insert lane, and how long the batch or
+	 * row took.
+	 */
+	public void laneInserted(String lane, long docs, long bytes, long nanos) {
+		throughputFor(this.lanes, lane).inserted(docs, bytes);
+		LatencyHistogram latency = this.laneLatency.get(lane);
+		if (latency == null) {
+			LatencyHistogram created = new LatencyHistogram();
+			latency = this.laneLatency.putIfAbsent(lane, created);
+			if (latency == null) {
+				latency = created;
+			}
+		}
+		latency.record(nanos);
+	}
+	
+	/**
+	 * Records bytes that made it to a MarkLogic host, including report documents.
+	 */
+	public void sent(String host, long docs, long bytes) {
+		this.bytesSent.addAndGet(bytes);
+		this.host(host).inserted(docs, bytes);
+	}
+	
+	/**
+	 * Registers the JMX bean and, if httpPort is greater than zero, serves the
+	 * metrics as JSON from http://localhost:httpPort/metrics.
+	 */
+	public void start(int httpPort) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			this.mbeanName = new ObjectName(MBEAN_NAME);
+			if (server.isRegistered(this.mbeanName)) {
+				server.unregisterMBean(this.mbeanName);
+			}
+			server.registerMBean(new StandardMBean(this, MetricsMBean.class), this.mbeanName);
+		} catch (JMException e) {
+			this.mbeanName = null;
+			System.out.println("Unable to register RowBot metrics with JMX: " + e.getMessage());
+		}
+		
+		if (httpPort > 0) {
+			try {
+				this.httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), httpPort), 0);
+				this.httpServer.createContext("/metrics", new HttpHandler() {
+					@Override
+					public void handle(HttpExchange exchange) throws IOException {
+						byte[] body = getMetricsJson().getBytes(StandardCharsets.UTF_8);
+						exchange.getResponseHeaders().set("Content-Type", "application/json");
+						exchange.sendResponseHeaders(200, body.length);
+						OutputStream out = exchange.getResponseBody();
+						try {
+							out.write(body);
+						} finally {
+							out.close();
+						}
+					}
+				});
+				this.httpServer.start();
+				System.out.println("Serving RowBot metrics at http://localhost:" + httpPort + "/metrics");
+			} catch (IOException e) {
+				this.httpServer = null;
+				System.out.println("Unable to start the RowBot metrics endpoint on port " + httpPort + ": " + e.getMessage());
+			}
+		}
+	}
+	
+	public void stop() {
+		if (this.httpServer != null) {
+			this.httpServer.stop(0);
+			this.httpServer = null;
+		}
+		if (this.mbeanName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.mbeanName);
+			} catch (JMException e) {
+				
+			}
+			this.mbeanName = null;
+		}
+	}
+	
+	public JSONObject toJSON() {
+		JSONObject latency = new JSONObject();
+		latency.put("fetch", this.fetch.toJSON());
+		latency.put("convert", this.convert.toJSON());
+		latency.put("insert", this.insert.toJSON());
+		latency.put("reportWrite", this.reportWrite.toJSON());
+		
+		JSONObject json = this.total.toJSON();
+		json.put("bytesSentToHosts", this.bytesSent.get());
+		json.put("insertRetries", this.insertRetries.get());
+		if (this.retryPolicy != null) {
+			json.put("retryBudgetExhausted", this.retryPolicy.getBudgetExhausted());
+		}
+		if (this.concurrency != null) {
+			json.put("insertConcurrencyLimit", this.concurrency.getLimit());
+		}
+		json.put("latency", latency);
+		json.put("queries", toJSON(this.queries));
+		json.put("hosts", toJSON(this.hosts));
+		if (!this.lanes.isEmpty()) {
+			JSONObject lanes = toJSON(this.lanes);
+			for (Map.Entry<String, LatencyHistogram> entry : this.laneLatency.entrySet()) {
+				JSONObject lane = lanes.optJSONObject(entry.getKey());
+				if (lane != null) {
+					lane.put("latency", entry.getValue().toJSON());
+				}
+			}
+			json.put("lanes", lanes);
+		}
+		return json;
+	}
+	
+	private static JSONObject toJSON(Map<String, Throughput> map) {
+		JSONObject json = new JSONObject();
+		for (Map.Entry<String, Throughput> entry : map.entrySet()) {
+			json.put(entry.getKey(), entry.getValue().toJSON());
+		}
+		return json;
+	}
+
+	@Override
+	public long getRowsRead() {
+		return this.rowsRead.get();
+	}
+
+	@Override
+	public long getDocsInserted() {
+		return this.docsInserted.get();
+	}
+
+	@Override
+	public long getBytesSent() {
+		return this.bytesSent.get();
+	}
+
+	@Override
+	public long getInsertRetries() {
+		return this.insertRetries.get();
+	}
+
+	@Override
+	public double getRowsPerSecond() {
+		return this.total.toJSON().getDouble("rowsPerSecond");
+	}
+
+	@Override
+	public double getMbPerSecond() {
+		return this.total.toJSON().getDouble("mbPerSecond");
+	}
+
+	@Override
+	public double getFetchP99Millis() {
+		return this.fetch.percentileMillis(99);
+	}
+
+	@Override
+	public double getConvertP99Millis() {
+		return this.convert.percentileMillis(99);
+	}
+
+	@Override
+	public double getInsertP50Millis() {
+		return this.insert.percentileMillis(50);
+	}
+
+	@Override
+	public double getInsertP99Millis() {
+		return this.insert.percentileMillis(99);
+	}
+
+	@Override
+	public String getMetricsJson() {
+		return this.toJSON().toString();
+	}
+}
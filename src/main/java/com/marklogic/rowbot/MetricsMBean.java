@@ -0,0 +1,31 @@
+/**
+ * JMX view of a running RowBot job, registered as com.marklogic.rowbot:type=Metrics.
+ */
+package com.marklogic.rowbot;
+
+public interface MetricsMBean {
+	public long getRowsRead();
+	
+	public long getDocsInserted();
+	
+	public long getBytesSent();
+	
+	public long getInsertRetries();
+	
+	public double getRowsPerSecond();
+	
+	public double getMbPerSecond();
+	
+	public double getFetchP99Millis();
+	
+	public double getConvertP99Millis();
+	
+	public double getInsertP50Millis();
+	
+	public double getInsertP99Millis();
+	
+	/**
+	 * @return everything, as the same JSON served by the HTTP endpoint
+	 */
+	public String getMetricsJson();
+}
@@ -0,0 +1,98 @@
+/**
+ * JDBC connection held by a ConnectionPool, along with a small LRU cache of
+ * the prepared statements that have been run on it.
+ */
+package com.marklogic.rowbot;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+class PooledConnection {
+	private final Connection connection;
+	private final Map<String, PreparedStatement> statements;
+	private long lastUsed;
+	
+	public PooledConnection(Connection connection, final int statementCacheSize) {
+		this.connection = connection;
+		this.lastUsed = System.currentTimeMillis();
+		this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+				if (size() > statementCacheSize) {
+					closeQuietly(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+	
+	public Connection getConnection() {
+		return this.connection;
+	}
+	
+	/**
+	 * Returns a prepared statement for the sql, reusing a cached one if the
+	 * same sql has been run on this connection before. Callers close their
+	 * ResultSets but leave the statement open for the next caller.
+	 */
+	public PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement statement = this.statements.get(sql);
+		if (statement != null && !statement.isClosed()) {
+			statement.clearParameters();
+			return statement;
+		}
+		statement = this.connection.prepareStatement(sql);
+		this.statements.put(sql, statement);
+		return statement;
+	}
+	
+	/**
+	 * A connection is trusted if it was used within the validation interval,
+	 * otherwise it is checked with Connection.isValid.
+	 */
+	public boolean isHealthy(int validationTimeout, long validationIntervalMillis) {
+		try {
+			if (this.connection.isClosed()) {
+				return false;
+			}
+			if (System.currentTimeMillis() - this.lastUsed < validationIntervalMillis) {
+				return true;
+			}
+			return this.connection.isValid(validationTimeout);
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+	
+	public void markIdle() {
+		this.lastUsed = System.currentTimeMillis();
+	}
+	
+	public long idleMillis() {
+		return System.currentTimeMillis() - this.lastUsed;
+	}
+	
+	public void close() {
+		for (PreparedStatement statement : this.statements.values()) {
+			closeQuietly(statement);
+		}
+		this.statements.clear();
+		try {
+			this.connection.close();
+		} catch (SQLException e) {
+			// swallow
+		}
+	}
+	
+	private static void closeQuietly(PreparedStatement statement) {
+		try {
+			statement.close();
+		} catch (SQLException e) {
+			// swallow
+		}
+	}
+}
@@ -1,144 +1,524 @@
 /**
- * Class for executing queries against an Oracle DB
+ * Class for executing queries against an Oracle DB, or reading flat files,
+ * and handing their rows to the insert pool
  *
  * @author  Brad Mann brad.mann@marklogic.com
  * @author  Steven Brockman steven.brockman@marklogic.com
  */
 package com.marklogic.rowbot;
 
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
-import java.sql.SQLException;
-import java.sql.Statement;
-import java.sql.Types;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Properties;
-import java.util.Iterator;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.json.JSONObject;
 
-import com.marklogic.xcc.Session;
-
 class QueryBot implements Runnable {
 	static final double NANO_TIME_DIV = 1000000000.0;
-	private JSONObject queryObject; 
-	protected ExecutorService insertPool;
-	private RowBot rowBot;
-	private Session session;
-	private Connection connection;
-	private JSONObject connectionObj;
-	protected static final int INSERT_QUEUE_SIZE = 1000000;
-	protected LinkedBlockingQueue<Runnable> insertQueue;
-	protected static final List<Runnable> activeTasks = Collections.synchronizedList(new ArrayList<Runnable>());
+	static final String LAST_RUN_PARAM = ":lastRun";
+	protected JSONObject queryObject; 
+	protected InsertScheduler.QueryQueue insertPool;
+	protected RowBot rowBot;
+	private ConnectionPool connectionPool;
+	private RowSource source;
+	protected InsertBuffer insertBuffer;
+	protected QueryCheckpoint checkpoint;
+	protected ChangeDetector changes;
+	// The lease on the unit of a distributed job this runs, or null
+	private final DistributedJob.Lease lease;
+	// The only slice to read, for a unit of a distributed job, or -1 to read them all
+	private final int unitSlice;
+	private volatile boolean success = false;
+	// Batches not yet complete, plus one held by the reader until it has submitted them all
+	private final AtomicInteger pendingBatches = new AtomicInteger(1);
+	private final CountDownLatch batchesComplete = new CountDownLatch(1);
 
-	public QueryBot(JSONObject connectionObj, JSONObject queryObject, RowBot rowBot) {
+	public QueryBot(ConnectionPool connectionPool, JSONObject queryObject, JSONObject previousCheckpoint, RowBot rowBot) {
+		this(connectionPool, queryObject, previousCheckpoint, rowBot, null);
+	}
+	
+	/**
+	 * @param lease the unit of a distributed job to run, or null to run the whole query
+	 */
+	public QueryBot(ConnectionPool connectionPool, JSONObject queryObject, JSONObject previousCheckpoint, RowBot rowBot, DistributedJob.Lease lease) {
 		this.queryObject = queryObject;
+		this.lease = lease;
+		this.unitSlice = (lease != null) ? lease.getSlice() : -1;
 		this.rowBot = rowBot;
-		this.connectionObj = connectionObj;
-		this.insertQueue = new LinkedBlockingQueue<Runnable>(INSERT_QUEUE_SIZE);
-		this.insertPool = new ThreadPoolExecutor(rowBot.numInsertThreads, rowBot.numInsertThreads, 0L, TimeUnit.MILLISECONDS, insertQueue);
+		this.connectionPool = connectionPool;
+		this.insertBuffer = new InsertBuffer(rowBot.insertBufferRows, rowBot.insertBufferBytes);
+		// The queue itself is unbounded, the insert buffer limits what the reader can put in it.
+		this.insertPool = rowBot.insertScheduler.newQueue(queryObject);
+		this.checkpoint = new QueryCheckpoint(rowBot, queryObject, lease, previousCheckpoint);
+	}
+	
+	/**
+	 * The directory of a query's reports and checkpoint. Each slice run as a
+	 * unit of a distributed job has its own.
+	 */
+	static String directoryFor(RowBot rowBot, String queryId, int unitSlice) {
+		return rowBot.uriPrefix + rowBot.timestamp + "/" + queryId + "/" + ((unitSlice >= 0) ? "slice-" + unitSlice + "/" : "");
+	}
+	
+	/**
+	 * Stops the unit of a distributed job once another process has taken it over.
+	 */
+	private void checkLease() throws DistributedJob.LeaseLostException {
+		if (this.lease != null && this.lease.isLost()) {
+			throw new DistributedJob.LeaseLostException(this.lease);
+		}
+	}
+	
+	/**
+	 * @return whether the query completed successfully
+	 */
+	boolean isSuccess() {
+		return this.success;
 	}
 
-	protected void queryComplete(boolean success, String queryId, String query, int resultCount, double queryTime, String message) {
-		String uri = rowBot.uriPrefix + rowBot.timestamp + "/" + queryId + "/rowbot-query-report.json";
+	protected void queryComplete(boolean success, String queryId, String query, int resultCount, double queryTime, String message, List<QuerySlice> slices) {
+		this.success = success;
+		String uri = directoryFor(rowBot, queryId, this.unitSlice) + "rowbot-query-report.json";
 		JSONObject results = new JSONObject();
 		results.put("success", success);
 		results.put("queryId", queryId);
+		if (this.unitSlice >= 0) {
+			results.put("slice", this.unitSlice);
+		}
 		results.put("queryTime", queryTime);
 		results.put("query", query);
 		results.put("totalRows", resultCount);
+		results.put("readerStallTime", insertBuffer.getStallNanos() / QueryBot.NANO_TIME_DIV);
 		if (message != null) {
 			results.put("message", message);
 		}
+		if (rowBot.spool != null) {
+			results.put("loaded", success && rowBot.spool.isLoad());
+		}
+		if (this.source != null) {
+			this.source.report(results);
+		}
+		if (this.changes != null) {
+			results.put("changes", this.changes.toJSON());
+		}
+		if (slices != null && slices.size() > 1) {
+			for (QuerySlice slice : slices) {
+				results.append("slices", slice.toJSON());
+			}
+		}
 
-		rowBot.insertJSONDoc(this.session, uri, results.toString(), null, new String[] {"rowbot-query-report"});
+		rowBot.insertJSONDoc(uri, results.toString(), null, new String[] {"rowbot-query-report"});
+		if (rowBot.scheduler != null) {
+			rowBot.scheduler.completed(queryId, queryTime, resultCount);
+		}
+		// A single slice of a distributed query doesn't complete the query
+		if (rowBot.progress != null && this.unitSlice < 0) {
+			rowBot.progress.completed(queryId, success, resultCount);
+		}
 
 		synchronized(rowBot.queryReportUris) {
-			rowBot.queryReportUris.add(uri);
+			// A resumed query rewrites the report it may already have from the earlier run
+			if (!rowBot.queryReportUris.contains(uri)) {
+				rowBot.queryReportUris.add(uri);
+			}
 		}
 	}
 	
-	public void run() {
-		activeTasks.add(this);
-		String connectionString = connectionObj.getString("connectionString");
-
-		this.session = rowBot.contentSource.newSession();
-
+	/**
+	 * Groups a slice's rows into insert batches of up to insertBatchSize rows
+	 * and maxBatchBytes, and hands each one to the insert pool. With change
+	 * detection, unchanged rows are left out of the batches but still counted
+	 * in the row numbers they span, so that the slice's progress covers them.
+	 */
+	private class SliceBatcher {
+		private final QuerySlice slice;
+		private final SliceProgress progress;
+		private List<RowDocument> batch = new ArrayList<>(rowBot.insertBatchSize);
+		private long batchBytes = 0;
+		private boolean spanning = false;
+		private int firstRowNum;
+		private int lastRowNum;
+		private Object lastKey;
+		
+		SliceBatcher(QuerySlice slice, SliceProgress progress) {
+			this.slice = slice;
+			this.progress = progress;
+		}
+		
+		void add(int rowNum, RowDocument row) throws Exception {
+			Object key = row.getKey();
+			if (changes != null) {
+				RowDocument changed = changes.check(row);
+				if (changed == null) {
+					row.deleteBinaries();
+				}
+				row = changed;
+			}
+			if (row != null) {
+				long rowBytes = row.memorySize();
+				if (!batch.isEmpty() && batchBytes + rowBytes > rowBot.maxBatchBytes) {
+					submit();
+				}
+				batch.add(row);
+				batchBytes += rowBytes;
+			}
+			if (!spanning) {
+				firstRowNum = rowNum;
+				spanning = true;
+			}
+			lastRowNum = rowNum;
+			lastKey = key;
+			if (batch.size() >= rowBot.insertBatchSize) {
+				submit();
+			} else if (batch.isEmpty() && lastRowNum - firstRowNum + 1 >= rowBot.insertBatchSize) {
+				skipped();
+			}
+		}
+		
+		void finish() throws InterruptedException {
+			if (!batch.isEmpty()) {
+				submit();
+			} else if (spanning) {
+				skipped();
+			}
+		}
+		
+		private void submit() throws InterruptedException {
+			insertBuffer.acquire(batch.size(), batchBytes);
+			progress.submitted(firstRowNum, lastRowNum - firstRowNum + 1, lastKey);
+			pendingBatches.incrementAndGet();
+			try {
+				insertPool.execute(new InsertBot(batch, batchBytes, firstRowNum, lastRowNum, slice, progress, QueryBot.this));
+			} catch (RuntimeException e) {
+				batchComplete();
+				throw e;
+			}
+			batch = new ArrayList<>(rowBot.insertBatchSize);
+			batchBytes = 0;
+			spanning = false;
+		}
+		
+		/**
+		 * Confirms a run of unchanged rows that has no batch to be part of.
+		 */
+		private void skipped() {
+			progress.submitted(firstRowNum, lastRowNum - firstRowNum + 1, lastKey);
+			progress.completed(firstRowNum);
+			spanning = false;
+		}
+	}
+	
+	/**
+	 * Reads every row of a slice and hands them to the insert pool in batches,
+	 * or in spool mode appends them to the slice's spool segments. A slice with
+	 * a checkpoint from an earlier run carries on after its last confirmed row,
+	 * either by key or by skipping that many rows.
+	 */
+	private void readSlice(RowSource source, QuerySlice slice) throws Exception {
+		long sliceStart = System.nanoTime();
+		SliceProgress progress = checkpoint.slice(slice.getIndex());
+		int sliceRows = progress.getConfirmedRows();
+		if (progress.isComplete()) {
+			slice.complete(true, sliceRows, 0, null);
+			return;
+		}
+		int skipRows = source.resumesByKey() ? 0 : sliceRows;
+		
 		try {
-			Properties props = new Properties();
-			JSONObject propsObj = connectionObj.getJSONObject("properties");
-			Iterator<String> itr = propsObj.keys();
-			while (itr.hasNext()) {
-				String key = itr.next();
-				props.put(key, propsObj.getString(key));
+			try (RowSource.Cursor cursor = source.open(slice, progress)) {
+				Spool.Writer spoolWriter = (rowBot.spool != null) ? rowBot.spool.newWriter(this.queryObject.getString("queryId"), slice.getIndex()) : null;
+				try {
+					SliceBatcher batcher = new SliceBatcher(slice, progress);
+					// Time spent in next() is accumulated per fetchSize rows, which is roughly one driver round trip
+					Metrics metrics = rowBot.metrics;
+					String queryId = this.queryObject.getString("queryId");
+					int fetchRows = cursor.getFetchSize();
+					int fetched = 0;
+					long fetchNanos = 0;
+					long fetchStart = System.nanoTime();
+					while (cursor.next()) {
+						checkLease();
+						long rowStart = System.nanoTime();
+						fetchNanos += rowStart - fetchStart;
+						if (++fetched == fetchRows) {
+							metrics.fetch.record(fetchNanos);
+							metrics.rowsRead(queryId, fetched);
+							fetched = 0;
+							fetchNanos = 0;
+						}
+						if (skipRows > 0) {
+							skipRows--;
+							fetchStart = System.nanoTime();
+							continue;
+						}
+						RowDocument row = cursor.read();
+						metrics.convert.record(System.nanoTime() - rowStart);
+						sliceRows++;
+						if (spoolWriter != null) {
+							try {
+								spoolWriter.append(sliceRows, row);
+							} finally {
+								row.deleteBinaries();
+							}
+						} else {
+							batcher.add(sliceRows, row);
+						}
+						fetchStart = System.nanoTime();
+					}
+					metrics.fetch.record(fetchNanos + System.nanoTime() - fetchStart);
+					metrics.rowsRead(queryId, fetched);
+					checkLease();
+					if (spoolWriter != null) {
+						spoolWriter.finish();
+					} else {
+						batcher.finish();
+					}
+				} finally {
+					if (spoolWriter != null) {
+						spoolWriter.close();
+					}
+				}
 			}
-
-			this.connection = DriverManager.getConnection(connectionString, props);
-		} catch (SQLException e) {
-			this.queryComplete(false, this.queryObject.getString("queryId"), this.queryObject.getString("query"), 0, 0, e.getMessage());
+			if (rowBot.spool == null) {
+				progress.readComplete();
+			}
+			slice.complete(true, sliceRows, (System.nanoTime() - sliceStart) / QueryBot.NANO_TIME_DIV, null);
+		} catch (Exception e) {
+			slice.complete(false, sliceRows, (System.nanoTime() - sliceStart) / QueryBot.NANO_TIME_DIV, e.toString());
+			throw e;
+		}
+	}
+	
+	/**
+	 * Hands a slice's spooled rows to the insert pool in batches, skipping the
+	 * rows an earlier load of the same spool already confirmed.
+	 */
+	private void loadSlice(QuerySlice slice) throws Exception {
+		SliceProgress progress = checkpoint.slice(slice.getIndex());
+		if (progress.isComplete()) {
+			return;
+		}
+		int confirmedRows = progress.getConfirmedRows();
+		SliceBatcher batcher = new SliceBatcher(slice, progress);
+		try (Spool.Reader reader = rowBot.spool.newReader(this.queryObject.getString("queryId"), slice.getIndex(), rowBot.lobMemoryThreshold, rowBot.lobSpillDirectory)) {
+			int rowNum;
+			while ((rowNum = reader.nextRowNum()) != -1) {
+				checkLease();
+				boolean skip = rowNum <= confirmedRows;
+				RowDocument row = reader.readRow(skip);
+				if (!skip) {
+					batcher.add(rowNum, row);
+				}
+			}
+		}
+		checkLease();
+		batcher.finish();
+		progress.readComplete();
+	}
+	
+	/**
+	 * Called once each batch is completely inserted, including any of its rows
+	 * on the LOB lane.
+	 */
+	void batchComplete() {
+		if (this.pendingBatches.decrementAndGet() == 0) {
+			this.batchesComplete.countDown();
+		}
+	}
+	
+	/**
+	 * Waits until every batch the reader submitted is complete.
+	 */
+	private void awaitBatches() throws InterruptedException {
+		batchComplete();
+		this.batchesComplete.await();
+	}
+	
+	private RowSource newSource() {
+		return this.queryObject.has("file") ? new FileRowSource(this.queryObject) : new JdbcRowSource(this, connectionPool);
+	}
+	
+	/**
+	 * @see RowSource#estimateRows(String)
+	 */
+	long estimateRows(String method) throws Exception {
+		RowSource estimateSource = newSource();
+		try {
+			return estimateSource.estimateRows(method);
+		} finally {
+			estimateSource.close();
+		}
+	}
+	
+	/**
+	 * Keeps the one slice run as a unit of a distributed job, which may not be
+	 * in the plan at all if the query splits into fewer slices than asked for.
+	 * Its rows are numbered as they would be alongside the other slices.
+	 */
+	private List<QuerySlice> unitSlices(List<QuerySlice> slices) {
+		List<QuerySlice> unit = new ArrayList<>(1);
+		for (QuerySlice slice : slices) {
+			if (slice.getIndex() == this.unitSlice) {
+				if (slices.size() > 1) {
+					slice.setRowPrefix(slice.getIndex() + "-");
+				}
+				unit.add(slice);
+			}
+		}
+		return unit;
+	}
+	
+	String lastRunUri() {
+		return rowBot.uriPrefix + "incremental/" + this.queryObject.getString("queryId") + ".json";
+	}
+	
+	/**
+	 * Reads the slices of a source, concurrently when there is more than one.
+	 */
+	private void readSlices(final RowSource source, List<QuerySlice> slices) throws Exception {
+		if (slices.size() == 1) {
+			readSlice(source, slices.get(0));
 			return;
 		}
+		
+		for (QuerySlice slice : slices) {
+			slice.setRowPrefix(slice.getIndex() + "-");
+		}
+		ExecutorService slicePool = Executors.newFixedThreadPool(Math.max(1, Math.min(source.getThreads(slices.size()), slices.size())));
+		List<Future<?>> futures = new ArrayList<>(slices.size());
+		for (final QuerySlice slice : slices) {
+			futures.add(slicePool.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					readSlice(source, slice);
+					return null;
+				}
+			}));
+		}
+		slicePool.shutdown();
+		
+		Exception failure = null;
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				if (failure == null) {
+					failure = (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+	
+	public void run() {
+		rowBot.activeQueries.add(this);
+		String queryId = this.queryObject.getString("queryId");
+		if (rowBot.scheduler != null) {
+			rowBot.scheduler.started(queryId);
+		}
+		if (rowBot.progress != null) {
+			rowBot.progress.started(queryId);
+		}
+		boolean fromFile = this.queryObject.has("file");
+		String query = fromFile ? this.queryObject.getJSONObject("file").getString("path") : this.queryObject.getString("query");
+		boolean incremental = !fromFile && query.contains(LAST_RUN_PARAM);
+		List<QuerySlice> slices = null;
+		Spool spool = rowBot.spool;
 
 		double queryTime = 0;
 		long queryStart = System.nanoTime();
-		int rowNum = 0;
 		try {
-			String query = this.queryObject.getString("query");
-			try (
-				Statement statement = connection.createStatement();
-				ResultSet rs = statement.executeQuery(query);) 
-			{
-				ResultSetMetaData rsm = rs.getMetaData();
-				int numColumns = rsm.getColumnCount();
-				while (rs.next()) {
-					rowNum++;
-					Map<String, Object> rowMap = new HashMap<>();
-					for (int i = 1; i <= numColumns; i++) {
-						if (rsm.getColumnType(i) == Types.BLOB) {
-							rowMap.put(rsm.getColumnName(i), rs.getBlob(i).getBinaryStream());
-						} else {
-							rowMap.put(rsm.getColumnName(i), rs.getString(i));
+			if (this.queryObject.has("changes")) {
+				this.changes = new ChangeDetector(this.queryObject, rowBot);
+			}
+			try {
+				// A resumed spool mode query whose rows were all spooled only has to be loaded
+				List<QuerySlice> spooledSlices = (spool != null && rowBot.resuming) ? spool.extractedSlices(queryId) : null;
+				if (spooledSlices != null) {
+					System.out.println("Query " + queryId + " was already read into the spool, loading it.");
+					slices = spooledSlices;
+				} else {
+					if (spool != null) {
+						spool.clear(queryId);
+					}
+					this.source = newSource();
+					try {
+						slices = this.source.plan();
+						if (this.unitSlice >= 0) {
+							slices = unitSlices(slices);
 						}
+						readSlices(this.source, slices);
+					} finally {
+						this.source.close();
+					}
+					if (spool != null) {
+						spool.markExtracted(queryId, slices);
+					}
+				}
+				if (spool != null && spool.isLoad()) {
+					for (QuerySlice slice : slices) {
+						loadSlice(slice);
 					}
-
-					Runnable insertThread = new InsertBot(rowMap, queryObject, rowNum, this.rowBot);
-					insertPool.execute(insertThread);
 				}
+			} finally {
+				//signals pool to not accept more tasks.
+				insertPool.shutdown();
 			}
 
-			//signals pool to not accept more tasks.
-			insertPool.shutdown();
-
-			while (!insertPool.isTerminated()) {
-				Thread.sleep(500);
+			awaitBatches();
+			checkLease();
+			checkpoint.flush();
+			
+			// Until its rows are loaded, an incremental query's next run has to start from the same point
+			boolean loaded = spool == null || spool.isLoad();
+			if (incremental && loaded) {
+				JSONObject lastRunDoc = new JSONObject();
+				lastRunDoc.put("queryId", queryId);
+				lastRunDoc.put("lastRun", rowBot.timestamp);
+				rowBot.insertJSONDoc(lastRunUri(), lastRunDoc.toString(), null, new String[] {"rowbot-incremental"});
+			}
+			if (this.changes != null && loaded) {
+				this.changes.commit();
+			}
+			if (spool != null && loaded) {
+				spool.loaded(queryId);
 			}
 
 			long queryEnd = System.nanoTime();
 			queryTime = (queryEnd - queryStart) / QueryBot.NANO_TIME_DIV;
-			this.queryComplete(true, this.queryObject.getString("queryId"), this.queryObject.getString("query"), rowNum, queryTime, null);
+			this.queryComplete(true, queryId, query, totalRows(slices), queryTime, null, slices);
+		} catch (DistributedJob.LeaseLostException e) {
+			// The process that took the unit over runs it again and writes its report
+			System.out.println("Stopped query " + queryId + ": " + e.getMessage() + ".");
 		} catch (Exception e) {
-			this.queryComplete(false, this.queryObject.getString("queryId"), this.queryObject.getString("query"), rowNum, queryTime, e.toString());
+			this.queryComplete(false, queryId, query, totalRows(slices), queryTime, e.toString(), slices);
 		} finally {
-			// NOTE: connections are now closed in RowBot at the END.
-			session.close();
-			try {
-				if (this.connection != null && this.connection.isValid(4)) {
-					this.connection.close();
+			if (this.changes != null) {
+				try {
+					this.changes.close();
+				} catch (IOException e) {
+					System.out.println("Unable to close the change index of query " + queryId + ": " + e.getMessage());
 				}
-			} catch (SQLException e) {
-				// swallow
 			}
-			activeTasks.remove(this);
+			rowBot.activeQueries.remove(this);
+		}
+	}
+	
+	private static int totalRows(List<QuerySlice> slices) {
+		int rows = 0;
+		if (slices != null) {
+			for (QuerySlice slice : slices) {
+				rows += slice.getRows();
+			}
 		}
-	} 
+		return rows;
+	}
 }
\ No newline at end of file
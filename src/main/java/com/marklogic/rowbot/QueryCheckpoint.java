@@ -0,0 +1,124 @@
+/**
+ * Tracks the progress of each slice of a query and periodically writes it to
+ * a rowbot-checkpoint document, so that a resumed job can restart the query
+ * from its last confirmed row instead of from the beginning.
+ */
+package com.marklogic.rowbot;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+class QueryCheckpoint {
+	private final RowBot rowBot;
+	private final String queryId;
+	private final String uri;
+	private final String keyColumn;
+	// The lease on the distributed job's unit this checkpoints, or null
+	private final DistributedJob.Lease lease;
+	private final Map<Integer, SliceProgress> slices = new TreeMap<>();
+	private final ReentrantLock writeLock = new ReentrantLock();
+	private volatile long lastWrite;
+	
+	/**
+	 * @param lease the unit of a distributed job checkpointed, whose slice is the
+	 *              only one, or null. Nothing is written once it is lost.
+	 */
+	public QueryCheckpoint(RowBot rowBot, JSONObject queryObject, DistributedJob.Lease lease, JSONObject previous) {
+		this.rowBot = rowBot;
+		this.lease = lease;
+		this.queryId = queryObject.getString("queryId");
+		this.uri = uriFor(rowBot, this.queryId, (lease != null) ? lease.getSlice() : -1);
+		this.keyColumn = queryObject.has("checkpointKey") ? queryObject.getString("checkpointKey") : null;
+		this.lastWrite = System.nanoTime();
+		if (previous != null) {
+			JSONArray previousSlices = previous.getJSONArray("slices");
+			for (int i = 0; i < previousSlices.length(); i++) {
+				JSONObject slice = previousSlices.getJSONObject(i);
+				this.slices.put(slice.getInt("slice"), SliceProgress.fromJSON(slice));
+			}
+		}
+	}
+	
+	public static String uriFor(RowBot rowBot, String queryId) {
+		return uriFor(rowBot, queryId, -1);
+	}
+	
+	public static String uriFor(RowBot rowBot, String queryId, int unitSlice) {
+		return QueryBot.directoryFor(rowBot, queryId, unitSlice) + "rowbot-checkpoint.json";
+	}
+	
+	/**
+	 * @return the column the query is ordered and resumed on, or null to resume by row offset
+	 */
+	public String getKeyColumn() {
+		return this.keyColumn;
+	}
+	
+	public synchronized SliceProgress slice(int index) {
+		SliceProgress progress = this.slices.get(index);
+		if (progress == null) {
+			progress = new SliceProgress();
+			this.slices.put(index, progress);
+		}
+		return progress;
+	}
+	
+	/**
+	 * Called as each insert batch finishes. Writes the checkpoint if the interval
+	 * has passed and no other thread is already writing it.
+	 */
+	public void batchComplete() {
+		if (rowBot.checkpointIntervalNanos <= 0 || System.nanoTime() - this.lastWrite < rowBot.checkpointIntervalNanos) {
+			return;
+		}
+		if (this.writeLock.tryLock()) {
+			try {
+				this.write();
+			} finally {
+				this.writeLock.unlock();
+			}
+		}
+	}
+	
+	/**
+	 * Writes the checkpoint, waiting for any write already in progress.
+	 */
+	public void flush() {
+		if (rowBot.checkpointIntervalNanos <= 0) {
+			return;
+		}
+		this.writeLock.lock();
+		try {
+			this.write();
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+	
+	private void write() {
+		// The process that took the unit over writes its checkpoint now
+		if (this.lease != null && this.lease.isLost()) {
+			return;
+		}
+		rowBot.insertJSONDoc(this.uri, this.toJSON().toString(), null, new String[] {"rowbot-checkpoint"});
+		this.lastWrite = System.nanoTime();
+	}
+	
+	private synchronized JSONObject toJSON() {
+		JSONObject json = new JSONObject();
+		json.put("timestamp", rowBot.timestamp);
+		json.put("queryId", this.queryId);
+		if (this.keyColumn != null) {
+			json.put("checkpointKey", this.keyColumn);
+		}
+		json.put("slices", new JSONArray());
+		for (Map.Entry<Integer, SliceProgress> entry : this.slices.entrySet()) {
+			json.append("slices", entry.getValue().toJSON(entry.getKey()));
+		}
+		return json;
+	}
+}
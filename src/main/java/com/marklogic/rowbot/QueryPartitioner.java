@@ -0,0 +1,226 @@
+/**
+ * Splits a query into slices that can be read concurrently on separate
+ * connections, according to the query's "partition" spec:
+ *
+ *   "partition": {"type": "range", "column": "ID", "slices": 8}
+ *   "partition": {"type": "hash", "column": "ID", "slices": 8}
+ *   "partition": {"type": "rowid", "column": "RID", "table": "FOO", "slices": 8}
+ *
+ * Range partitions split a numeric or date column between its minimum and
+ * maximum ("min" and "max" may be given to skip the lookup). Hash partitions
+ * use ORA_HASH buckets. Rowid partitions split the table's extents into
+ * ROWID ranges, and require the query to select the ROWID as "column".
+ */
+package com.marklogic.rowbot;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.json.JSONObject;
+
+class QueryPartitioner {
+	static final String EXTENTS_QUERY = "SELECT o.data_object_id, e.relative_fno, e.block_id, e.blocks"
+		+ " FROM all_extents e, all_objects o"
+		+ " WHERE e.owner = o.owner AND e.segment_name = o.object_name"
+		+ " AND NVL(e.partition_name, '-') = NVL(o.subobject_name, '-')"
+		+ " AND o.object_type LIKE 'TABLE%' AND e.segment_name = ? AND e.owner = ?"
+		+ " ORDER BY o.data_object_id, e.relative_fno, e.block_id";
+	static final String ROWID_MAX_ROW = "32767";
+	
+	private QueryPartitioner() {}
+	
+	public static List<QuerySlice> plan(Connection connection, JSONObject queryObject, String query, List<Object> queryParams) throws SQLException {
+		if (!queryObject.has("partition")) {
+			return Collections.singletonList(new QuerySlice(0, query, queryParams));
+		}
+		
+		JSONObject partition = queryObject.getJSONObject("partition");
+		String type = partition.getString("type");
+		String column = partition.getString("column");
+		int numSlices = partition.getInt("slices");
+		if (numSlices < 2) {
+			return Collections.singletonList(new QuerySlice(0, query, queryParams));
+		}
+		
+		switch (type) {
+			case "range":
+				return planRange(connection, query, queryParams, column, numSlices, partition);
+			case "hash":
+				return planHash(query, queryParams, column, numSlices);
+			case "rowid":
+				return planRowid(connection, query, queryParams, column, numSlices, partition);
+			default:
+				throw new IllegalArgumentException("Unknown partition type: " + type);
+		}
+	}
+	
+	private static String sliceSql(String query, String predicate) {
+		return "SELECT * FROM (" + query + ") rowbot_slice WHERE " + predicate;
+	}
+	
+	/**
+	 * The query's own bind parameters come first, since the slice predicate wraps it.
+	 */
+	private static List<Object> sliceParams(List<Object> queryParams, Object... predicateParams) {
+		List<Object> params = new ArrayList<>(queryParams);
+		params.addAll(Arrays.asList(predicateParams));
+		return params;
+	}
+	
+	private static List<QuerySlice> planRange(Connection connection, String query, List<Object> queryParams, String column, int numSlices, JSONObject partition) throws SQLException {
+		Object min;
+		Object max;
+		if (partition.has("min") && partition.has("max")) {
+			min = new BigDecimal(partition.get("min").toString());
+			max = new BigDecimal(partition.get("max").toString());
+		} else {
+			try (PreparedStatement statement = connection.prepareStatement("SELECT MIN(" + column + "), MAX(" + column + ") FROM (" + query + ") rowbot_bounds")) {
+				for (int i = 0; i < queryParams.size(); i++) {
+					statement.setObject(i + 1, queryParams.get(i));
+				}
+				try (ResultSet rs = statement.executeQuery()) {
+					rs.next();
+					// Drivers return their own date objects, so dates are told apart by the column type
+					if (ColumnPlan.isTimestampType(rs.getMetaData().getColumnType(1))) {
+						min = rs.getTimestamp(1);
+						max = rs.getTimestamp(2);
+					} else {
+						min = rs.getObject(1);
+						max = rs.getObject(2);
+					}
+				}
+			}
+		}
+		
+		// Nothing to split on, every key is null or the table is empty
+		if (min == null || max == null) {
+			return Collections.singletonList(new QuerySlice(0, query, queryParams));
+		}
+		
+		Object[] bounds = new Object[numSlices + 1];
+		if (min instanceof Number) {
+			BigDecimal lo = new BigDecimal(min.toString());
+			BigDecimal hi = new BigDecimal(max.toString());
+			BigDecimal step = hi.subtract(lo).divide(BigDecimal.valueOf(numSlices), MathContext.DECIMAL64);
+			for (int i = 0; i < numSlices; i++) {
+				bounds[i] = lo.add(step.multiply(BigDecimal.valueOf(i)));
+			}
+			bounds[numSlices] = hi;
+		} else if (min instanceof Timestamp) {
+			long lo = ((Timestamp) min).getTime();
+			long hi = ((Timestamp) max).getTime();
+			for (int i = 0; i < numSlices; i++) {
+				bounds[i] = new Timestamp(lo + (hi - lo) / numSlices * i);
+			}
+			bounds[0] = min;
+			bounds[numSlices] = max;
+		} else {
+			throw new IllegalArgumentException("Range partition column " + column + " must be numeric or a date");
+		}
+		
+		List<QuerySlice> slices = new ArrayList<>(numSlices);
+		for (int i = 0; i < numSlices; i++) {
+			String upper = (i == numSlices - 1) ? " <= ?" : " < ?";
+			String predicate = column + " >= ? AND " + column + upper;
+			if (i == 0) {
+				predicate = "(" + predicate + ") OR " + column + " IS NULL";
+			}
+			slices.add(new QuerySlice(i, sliceSql(query, predicate), sliceParams(queryParams, bounds[i], bounds[i + 1])));
+		}
+		return slices;
+	}
+	
+	private static List<QuerySlice> planHash(String query, List<Object> queryParams, String column, int numSlices) {
+		List<QuerySlice> slices = new ArrayList<>(numSlices);
+		for (int i = 0; i < numSlices; i++) {
+			// ORA_HASH buckets run from 0 to max_bucket inclusive
+			String predicate = "ORA_HASH(" + column + ", " + (numSlices - 1) + ") = ?";
+			if (i == 0) {
+				predicate = predicate + " OR " + column + " IS NULL";
+			}
+			slices.add(new QuerySlice(i, sliceSql(query, predicate), sliceParams(queryParams, i)));
+		}
+		return slices;
+	}
+	
+	private static List<QuerySlice> planRowid(Connection connection, String query, List<Object> queryParams, String column, int numSlices, JSONObject partition) throws SQLException {
+		String table = partition.getString("table").toUpperCase();
+		String owner = partition.has("owner") ? partition.getString("owner") : connection.getMetaData().getUserName();
+		
+		List<long[]> extents = new ArrayList<>();
+		long totalBlocks = 0;
+		try (PreparedStatement statement = connection.prepareStatement(EXTENTS_QUERY)) {
+			statement.setString(1, table);
+			statement.setString(2, owner.toUpperCase());
+			try (ResultSet rs = statement.executeQuery()) {
+				while (rs.next()) {
+					long[] extent = new long[] {rs.getLong(1), rs.getLong(2), rs.getLong(3), rs.getLong(4)};
+					extents.add(extent);
+					totalBlocks += extent[3];
+				}
+			}
+		}
+		
+		if (extents.isEmpty()) {
+			return Collections.singletonList(new QuerySlice(0, query, queryParams));
+		}
+		
+		// Walk the extents in ROWID order, cutting a new slice every totalBlocks / numSlices
+		// blocks. Each slice holds one ROWID range per data object it touches.
+		List<QuerySlice> slices = new ArrayList<>(numSlices);
+		double blocksPerSlice = (double) totalBlocks / numSlices;
+		long blocksSeen = 0;
+		StringBuilder predicate = new StringBuilder();
+		List<Object> params = new ArrayList<>(queryParams);
+		long[] rangeStart = null;
+		long[] rangeEnd = null;
+		for (long[] extent : extents) {
+			if (rangeStart != null && rangeStart[0] != extent[0]) {
+				appendRowidRange(predicate, params, column, rangeStart, rangeEnd);
+				rangeStart = null;
+			}
+			if (rangeStart == null) {
+				rangeStart = extent;
+			}
+			rangeEnd = extent;
+			blocksSeen += extent[3];
+			if (blocksSeen >= blocksPerSlice * (slices.size() + 1) && slices.size() < numSlices - 1) {
+				appendRowidRange(predicate, params, column, rangeStart, rangeEnd);
+				slices.add(new QuerySlice(slices.size(), sliceSql(query, predicate.toString()), params));
+				predicate = new StringBuilder();
+				params = new ArrayList<>(queryParams);
+				rangeStart = null;
+			}
+		}
+		if (rangeStart != null) {
+			appendRowidRange(predicate, params, column, rangeStart, rangeEnd);
+		}
+		if (predicate.length() > 0) {
+			slices.add(new QuerySlice(slices.size(), sliceSql(query, predicate.toString()), params));
+		}
+		return slices;
+	}
+	
+	private static void appendRowidRange(StringBuilder predicate, List<Object> params, String column, long[] start, long[] end) {
+		if (predicate.length() > 0) {
+			predicate.append(" OR ");
+		}
+		predicate.append(column).append(" BETWEEN DBMS_ROWID.ROWID_CREATE(1, ?, ?, ?, 0) AND DBMS_ROWID.ROWID_CREATE(1, ?, ?, ?, ")
+			.append(ROWID_MAX_ROW).append(")");
+		params.add(start[0]);
+		params.add(start[1]);
+		params.add(start[2]);
+		params.add(end[0]);
+		params.add(end[1]);
+		params.add(end[2] + end[3] - 1);
+	}
+}
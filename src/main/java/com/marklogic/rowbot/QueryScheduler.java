@@ -0,0 +1,367 @@
+/**
+ * Orders a job's queries by their estimated cost, so that a large query
+ * doesn't start last and leave the other query threads idle while it runs.
+ * A query's cost is estimated from its previous successful run's report,
+ * the optimizer's row estimate, or a COUNT(*), whichever is tried first and
+ * works, and rows are turned into time at the rate the queries with history
+ * ran at.
+ *
+ * "largestFirst" hands the queries to the query pool in descending order of
+ * cost. "binPack" assigns them to the query threads up front, each to the
+ * least loaded thread, and each thread runs its queries in turn. The plan
+ * and each query's estimated and actual times go in the rowbot-report.
+ */
+package com.marklogic.rowbot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.marklogic.xcc.AdhocQuery;
+import com.marklogic.xcc.ResultSequence;
+import com.marklogic.xcc.Session;
+import com.marklogic.xcc.exceptions.RequestException;
+
+class QueryScheduler {
+	static final String ORDER_FILE = "file";
+	static final String ORDER_LARGEST_FIRST = "largestFirst";
+	static final String ORDER_BIN_PACK = "binPack";
+	static final String ESTIMATE_HISTORY = "history";
+	static final String ESTIMATE_EXPLAIN = "explain";
+	static final String ESTIMATE_COUNT = "count";
+	static final String DEFAULT_ORDER = ORDER_LARGEST_FIRST;
+	static final String[] DEFAULT_ESTIMATES = {ESTIMATE_HISTORY, ESTIMATE_EXPLAIN};
+	static final String HISTORY_QUERY = "declare variable $queryId as xs:string external; declare variable $current as xs:string external; "
+		+ "(for $doc in cts:search(fn:collection('rowbot-query-report'), cts:json-property-value-query('queryId', $queryId), 'unfiltered') "
+		+ "let $uri := xdmp:node-uri($doc) "
+		+ "where $doc/success = fn:true() and fn:not(fn:starts-with($uri, $current)) "
+		+ "order by $uri descending return $doc)[1]";
+	private final String order;
+	private final List<String> estimates = new ArrayList<>();
+	private final int threads;
+	private final RowBot rowBot;
+	private final Map<String, Entry> entries = new LinkedHashMap<>();
+	private long startNanos;
+	
+	/**
+	 * A query's estimated rows, and time if it has run before, with the method
+	 * that gave them, or the error from the last method tried if none did.
+	 */
+	static class Estimate {
+		String method = null;
+		long rows = -1;
+		double time = -1;
+		String error = null;
+	}
+	
+	private static class Entry {
+		final QueryBot queryBot;
+		final String queryId;
+		int position;
+		int thread = -1;
+		String estimate = null;
+		long estimatedRows = -1;
+		double estimatedTime = -1;
+		String estimateError = null;
+		double started = -1;
+		double finished = -1;
+		double actualTime = -1;
+		int actualRows = -1;
+		
+		Entry(QueryBot queryBot) {
+			this.queryBot = queryBot;
+			this.queryId = queryBot.queryObject.getString("queryId");
+		}
+		
+		/**
+		 * Time when every query has one, otherwise rows. Queries without an
+		 * estimate count as the most costly, so they aren't left until last.
+		 */
+		double cost(boolean byTime) {
+			double cost = byTime ? this.estimatedTime : this.estimatedRows;
+			return (cost < 0) ? Double.MAX_VALUE : cost;
+		}
+	}
+	
+	public QueryScheduler(JSONObject config, int threads, RowBot rowBot) {
+		this.order = config.has("order") ? config.getString("order") : DEFAULT_ORDER;
+		if (!this.order.equals(ORDER_FILE) && !this.order.equals(ORDER_LARGEST_FIRST) && !this.order.equals(ORDER_BIN_PACK)) {
+			throw new IllegalArgumentException("Unknown schedule order " + this.order + ", expected file, largestFirst or binPack");
+		}
+		if (config.has("estimate")) {
+			JSONArray estimate = config.getJSONArray("estimate");
+			for (int i = 0; i < estimate.length(); i++) {
+				this.estimates.add(estimate.getString(i));
+			}
+		} else {
+			Collections.addAll(this.estimates, DEFAULT_ESTIMATES);
+		}
+		this.threads = Math.max(1, threads);
+		this.rowBot = rowBot;
+	}
+	
+	/**
+	 * Estimates each query's cost and puts them in order.
+	 *
+	 * @return the tasks to hand to the query pool, in order
+	 */
+	public List<Runnable> plan(List<QueryBot> queryBots, Session session) {
+		this.startNanos = System.nanoTime();
+		List<Entry> planned = new ArrayList<>();
+		for (QueryBot queryBot : queryBots) {
+			Entry entry = new Entry(queryBot);
+			estimate(entry, session);
+			synchronized (this) {
+				this.entries.put(entry.queryId, entry);
+			}
+			planned.add(entry);
+		}
+		
+		// Rows are turned into time at the combined rate of the queries that have run before
+		long historyRows = 0;
+		double historyTime = 0;
+		for (Entry entry : planned) {
+			if (ESTIMATE_HISTORY.equals(entry.estimate)) {
+				historyRows += entry.estimatedRows;
+				historyTime += entry.estimatedTime;
+			}
+		}
+		boolean byTime = true;
+		for (Entry entry : planned) {
+			if (entry.estimatedTime < 0 && entry.estimatedRows >= 0 && historyRows > 0 && historyTime > 0) {
+				entry.estimatedTime = entry.estimatedRows * historyTime / historyRows;
+			}
+			byTime &= entry.estimatedTime >= 0;
+		}
+		
+		if (!this.order.equals(ORDER_FILE)) {
+			final boolean compareTime = byTime;
+			// The sort is stable, so queries of equal cost keep their order in the job file
+			Collections.sort(planned, new Comparator<Entry>() {
+				public int compare(Entry a, Entry b) {
+					return Double.compare(b.cost(compareTime), a.cost(compareTime));
+				}
+			});
+		}
+		for (int i = 0; i < planned.size(); i++) {
+			planned.get(i).position = i;
+		}
+		
+		List<Runnable> tasks = new ArrayList<>();
+		if (!this.order.equals(ORDER_BIN_PACK)) {
+			for (Entry entry : planned) {
+				tasks.add(entry.queryBot);
+			}
+			return tasks;
+		}
+		
+		int bins = Math.min(this.threads, planned.size());
+		final List<List<QueryBot>> binQueries = new ArrayList<>();
+		double[] loads = new double[bins];
+		for (int b = 0; b < bins; b++) {
+			binQueries.add(new ArrayList<QueryBot>());
+		}
+		for (Entry entry : planned) {
+			int least = 0;
+			for (int b = 1; b < bins; b++) {
+				if (loads[b] < loads[least]) {
+					least = b;
+				}
+			}
+			entry.thread = least;
+			binQueries.get(least).add(entry.queryBot);
+			// An unknown cost is taken to be as large as the largest known one
+			double cost = entry.cost(byTime);
+			loads[least] += (cost == Double.MAX_VALUE) ? largestKnownCost(planned, byTime) : cost;
+		}
+		for (final List<QueryBot> bin : binQueries) {
+			tasks.add(new Runnable() {
+				public void run() {
+					for (QueryBot queryBot : bin) {
+						queryBot.run();
+					}
+				}
+			});
+		}
+		return tasks;
+	}
+	
+	private static double largestKnownCost(List<Entry> entries, boolean byTime) {
+		double largest = 0;
+		for (Entry entry : entries) {
+			double cost = entry.cost(byTime);
+			if (cost != Double.MAX_VALUE) {
+				largest = Math.max(largest, cost);
+			}
+		}
+		return largest;
+	}
+	
+	private void estimate(Entry entry, Session session) {
+		Estimate estimate = estimate(this.estimates, entry.queryId, entry.queryBot, session, this.rowBot);
+		entry.estimate = estimate.method;
+		entry.estimatedRows = estimate.rows;
+		entry.estimatedTime = estimate.time;
+		entry.estimateError = estimate.error;
+	}
+	
+	/**
+	 * Tries each estimate method in turn until one gives an answer.
+	 *
+	 * @param queryBot the query, which may be null to only use its history
+	 */
+	static Estimate estimate(List<String> methods, String queryId, QueryBot queryBot, Session session, RowBot rowBot) {
+		Estimate estimate = new Estimate();
+		for (String method : methods) {
+			try {
+				if (method.equals(ESTIMATE_HISTORY)) {
+					JSONObject report = previousReport(session, queryId, rowBot);
+					if (report != null) {
+						estimate.method = method;
+						estimate.rows = report.getLong("totalRows");
+						estimate.time = report.getDouble("queryTime");
+						return estimate;
+					}
+				} else if (queryBot != null) {
+					long rows = queryBot.estimateRows(method);
+					if (rows >= 0) {
+						estimate.method = method;
+						estimate.rows = rows;
+						return estimate;
+					}
+				}
+			} catch (Exception e) {
+				estimate.error = e.toString();
+			}
+		}
+		return estimate;
+	}
+	
+	/**
+	 * @return the report of the query's latest successful run before this one, or null if it has none
+	 */
+	private static JSONObject previousReport(Session session, String queryId, RowBot rowBot) throws RequestException {
+		AdhocQuery request = session.newAdhocQuery(HISTORY_QUERY);
+		request.setNewStringVariable("queryId", queryId);
+		request.setNewStringVariable("current", rowBot.uriPrefix + rowBot.timestamp + "/");
+		ResultSequence rs = session.submitRequest(request);
+		try {
+			return rs.hasNext() ? new JSONObject(rs.next().asString()) : null;
+		} finally {
+			rs.close();
+		}
+	}
+	
+	public synchronized void started(String queryId) {
+		Entry entry = this.entries.get(queryId);
+		if (entry != null) {
+			entry.started = (System.nanoTime() - this.startNanos) / QueryBot.NANO_TIME_DIV;
+		}
+	}
+	
+	/**
+	 * @return the query's planned estimate, or null if it wasn't planned
+	 */
+	public synchronized Estimate getEstimate(String queryId) {
+		Entry entry = this.entries.get(queryId);
+		if (entry == null) {
+			return null;
+		}
+		Estimate estimate = new Estimate();
+		estimate.method = entry.estimate;
+		estimate.rows = entry.estimatedRows;
+		estimate.time = entry.estimatedTime;
+		estimate.error = entry.estimateError;
+		return estimate;
+	}
+	
+	public synchronized void completed(String queryId, double queryTime, int rows) {
+		Entry entry = this.entries.get(queryId);
+		if (entry != null) {
+			entry.finished = (System.nanoTime() - this.startNanos) / QueryBot.NANO_TIME_DIV;
+			entry.actualTime = queryTime;
+			entry.actualRows = rows;
+		}
+	}
+	
+	/**
+	 * The makespan the plan expected, running the queries in order on the
+	 * query threads, or -1 if not every query has an estimated time.
+	 */
+	private double estimatedMakespan(List<Entry> planned) {
+		double[] loads = new double[this.threads];
+		for (Entry entry : planned) {
+			if (entry.estimatedTime < 0) {
+				return -1;
+			}
+			int thread = entry.thread;
+			if (thread == -1) {
+				thread = 0;
+				for (int t = 1; t < loads.length; t++) {
+					if (loads[t] < loads[thread]) {
+						thread = t;
+					}
+				}
+			}
+			loads[thread] += entry.estimatedTime;
+		}
+		double makespan = 0;
+		for (double load : loads) {
+			makespan = Math.max(makespan, load);
+		}
+		return makespan;
+	}
+	
+	public synchronized JSONObject toJSON() {
+		List<Entry> planned = new ArrayList<>(this.entries.values());
+		Collections.sort(planned, new Comparator<Entry>() {
+			public int compare(Entry a, Entry b) {
+				return Integer.compare(a.position, b.position);
+			}
+		});
+		JSONObject json = new JSONObject();
+		json.put("order", this.order);
+		json.put("estimate", this.estimates);
+		double estimatedMakespan = estimatedMakespan(planned);
+		if (estimatedMakespan >= 0) {
+			json.put("estimatedMakespan", estimatedMakespan);
+		}
+		double actualMakespan = 0;
+		JSONArray queries = new JSONArray();
+		for (Entry entry : planned) {
+			JSONObject query = new JSONObject();
+			query.put("queryId", entry.queryId);
+			query.put("position", entry.position);
+			if (entry.thread != -1) {
+				query.put("thread", entry.thread);
+			}
+			if (entry.estimate != null) {
+				query.put("estimate", entry.estimate);
+				query.put("estimatedRows", entry.estimatedRows);
+			}
+			if (entry.estimatedTime >= 0) {
+				query.put("estimatedTime", entry.estimatedTime);
+			}
+			if (entry.estimate == null && entry.estimateError != null) {
+				query.put("estimateError", entry.estimateError);
+			}
+			if (entry.finished >= 0) {
+				query.put("started", entry.started);
+				query.put("finished", entry.finished);
+				query.put("actualTime", entry.actualTime);
+				query.put("actualRows", entry.actualRows);
+				actualMakespan = Math.max(actualMakespan, entry.finished);
+			}
+			queries.put(query);
+		}
+		json.put("actualMakespan", actualMakespan);
+		json.put("queries", queries);
+		return json;
+	}
+}
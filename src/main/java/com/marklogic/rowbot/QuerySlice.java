@@ -0,0 +1,92 @@
+/**
+ * A single slice of a query, along with the statistics gathered while
+ * reading it. Unpartitioned queries run as one slice.
+ */
+package com.marklogic.rowbot;
+
+import java.util.List;
+
+import org.json.JSONObject;
+
+class QuerySlice {
+	private final int index;
+	private final String sql;
+	private final List<Object> params;
+	private String rowPrefix = "";
+	private int rows = 0;
+	private double readTime = 0;
+	private boolean success = false;
+	private String message = null;
+	
+	public QuerySlice(int index, String sql, List<Object> params) {
+		this.index = index;
+		this.sql = sql;
+		this.params = params;
+	}
+	
+	public int getIndex() {
+		return this.index;
+	}
+	
+	public String getSql() {
+		return this.sql;
+	}
+	
+	public List<Object> getParams() {
+		return this.params;
+	}
+	
+	/**
+	 * Prefix for the row numbers in the slice's document uris, so that the
+	 * slices of a partitioned query number their rows independently.
+	 */
+	public String getRowPrefix() {
+		return this.rowPrefix;
+	}
+	
+	public void setRowPrefix(String rowPrefix) {
+		this.rowPrefix = rowPrefix;
+	}
+	
+	public int getRows() {
+		return this.rows;
+	}
+	
+	public boolean isSuccess() {
+		return this.success;
+	}
+	
+	public String getMessage() {
+		return this.message;
+	}
+	
+	public void complete(boolean success, int rows, double readTime, String message) {
+		this.success = success;
+		this.rows = rows;
+		this.readTime = readTime;
+		this.message = message;
+	}
+	
+	public JSONObject toJSON() {
+		JSONObject json = new JSONObject();
+		json.put("slice", this.index);
+		json.put("sql", this.sql);
+		json.put("success", this.success);
+		json.put("rows", this.rows);
+		json.put("readTime", this.readTime);
+		if (this.message != null) {
+			json.put("message", this.message);
+		}
+		return json;
+	}
+	
+	/**
+	 * Restores a slice that has already been read, e.g. from a spool manifest.
+	 */
+	public static QuerySlice fromJSON(JSONObject json) {
+		QuerySlice slice = new QuerySlice(json.getInt("slice"), json.optString("sql", null), null);
+		slice.setRowPrefix(json.optString("rowPrefix", ""));
+		slice.complete(json.getBoolean("success"), json.getInt("rows"), json.getDouble("readTime"), json.optString("message", null));
+		return slice;
+	}
+}
@@ -0,0 +1,102 @@
+/**
+ * How failed insert calls are retried. Delays grow exponentially from
+ * "baseDelay" up to "maxDelay" with full jitter, so threads that failed
+ * together don't all retry together. Retries also come out of a job-wide
+ * budget: every insert call earns "budgetRatio" of a retry, up to a balance
+ * of "budgetReserve" retries, so a struggling cluster sees at most that
+ * fraction of extra calls instead of a retry storm.
+ */
+package com.marklogic.rowbot;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+
+import com.marklogic.xcc.exceptions.QueryException;
+import com.marklogic.xcc.exceptions.RetryableQueryException;
+import com.marklogic.xcc.exceptions.ServerConnectionException;
+
+class RetryPolicy {
+	static final int DEFAULT_MAX_ATTEMPTS = 5;
+	static final long DEFAULT_BASE_DELAY_MILLIS = 250;
+	static final long DEFAULT_MAX_DELAY_MILLIS = 30000;
+	static final double DEFAULT_BUDGET_RATIO = 0.2;
+	static final int DEFAULT_BUDGET_RESERVE = 100;
+	// The budget is kept in thousandths of a retry
+	static final long RETRY_COST = 1000;
+	private final int maxAttempts;
+	private final long baseDelayMillis;
+	private final long maxDelayMillis;
+	private final long deposit;
+	private final long maxBalance;
+	private final AtomicLong balance;
+	private final AtomicLong budgetExhausted = new AtomicLong(0);
+	
+	public RetryPolicy(JSONObject retryObj) {
+		this.maxAttempts = Math.max(1, retryObj.optInt("maxAttempts", DEFAULT_MAX_ATTEMPTS));
+		this.baseDelayMillis = Math.max(1, retryObj.optLong("baseDelay", DEFAULT_BASE_DELAY_MILLIS));
+		this.maxDelayMillis = Math.max(this.baseDelayMillis, retryObj.optLong("maxDelay", DEFAULT_MAX_DELAY_MILLIS));
+		this.deposit = (long) (retryObj.optDouble("budgetRatio", DEFAULT_BUDGET_RATIO) * RETRY_COST);
+		this.maxBalance = Math.max(1, retryObj.optInt("budgetReserve", DEFAULT_BUDGET_RESERVE)) * RETRY_COST;
+		this.balance = new AtomicLong(this.maxBalance);
+	}
+	
+	/**
+	 * Called once for each insert call, before its first attempt.
+	 */
+	public void callStarted() {
+		long current;
+		do {
+			current = this.balance.get();
+			if (current >= this.maxBalance) {
+				return;
+			}
+		} while (!this.balance.compareAndSet(current, Math.min(this.maxBalance, current + this.deposit)));
+	}
+	
+	/**
+	 * Waits before the next attempt of a failed call.
+	 *
+	 * @param attempts the number of attempts made so far
+	 * @return false if the call should not be retried: it is out of attempts,
+	 *         the retry budget is spent, or the thread was interrupted
+	 */
+	public boolean backoff(int attempts) {
+		if (attempts >= this.maxAttempts) {
+			return false;
+		}
+		long current;
+		do {
+			current = this.balance.get();
+			if (current < RETRY_COST) {
+				this.budgetExhausted.incrementAndGet();
+				return false;
+			}
+		} while (!this.balance.compareAndSet(current, current - RETRY_COST));
+		
+		long ceiling = Math.min(this.maxDelayMillis, this.baseDelayMillis << Math.min(attempts - 1, 30));
+		try {
+			Thread.sleep(1 + ThreadLocalRandom.current().nextLong(ceiling));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * @return the number of retries refused because the budget was spent
+	 */
+	public long getBudgetExhausted() {
+		return this.budgetExhausted.get();
+	}
+	
+	/**
+	 * @return whether the failure is worth retrying, i.e. it isn't down to the document itself
+	 */
+	static boolean isTransient(Exception e) {
+		return e instanceof ServerConnectionException || e instanceof RetryableQueryException
+				|| (e instanceof QueryException && ((QueryException) e).isRetryable());
+	}
+}
@@ -6,13 +6,15 @@
  */
 package com.marklogic.rowbot;
 
+import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.File;
 import java.nio.file.FileSystems;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.text.DateFormat;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -20,11 +22,13 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 import java.util.TimeZone;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -32,53 +36,103 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import com.marklogic.xcc.AdhocQuery;
 import com.marklogic.xcc.Content;
 import com.marklogic.xcc.ContentCreateOptions;
 import com.marklogic.xcc.ContentFactory;
-import com.marklogic.xcc.ContentSource;
-import com.marklogic.xcc.ContentSourceFactory;
+import com.marklogic.xcc.ResultSequence;
 import com.marklogic.xcc.Session;
+import com.marklogic.xcc.exceptions.RequestException;
+import com.marklogic.xcc.exceptions.ServerConnectionException;
 
 public class RowBot implements Runnable {
 	static final double NANO_TIME_DIV = 1000000000.0;
 	static final int QUERY_QUEUE_SIZE = 100000;
-	static final int INSERT_QUEUE_SIZE = 5000000;
 	static final int INSERT_REPORT_BATCH_SIZE = 10000;
-	static final int STATUS_UPDATE_INTERVAL = 20;
-	static final int MAX_INSERT_RETRIES = 5;
-	static final int INSERT_RETRY_SLEEP_MILLIS = 1000;
-	//private Session session;
-	protected ContentSource contentSource;
+	static final int STATUS_UPDATE_INTERVAL = 5;
+	static final int DEFAULT_INSERT_BATCH_SIZE = 1;
+	static final long DEFAULT_MAX_BATCH_BYTES = 10485760;
+	static final int DEFAULT_INSERT_BUFFER_ROWS = 10000;
+	static final int DEFAULT_VIRTUAL_MAX_IN_FLIGHT = 1024;
+	static final long DEFAULT_INSERT_BUFFER_BYTES = 67108864;
+	static final int DEFAULT_LOB_MEMORY_THRESHOLD = 1048576;
+	static final int DEFAULT_CHECKPOINT_INTERVAL = 60;
+	static final String TIMESTAMP_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'";
+	protected HostPool hosts;
 	protected String timestamp;
 	String jobName;
 	protected String uriPrefix;
 	String type;
 	protected List<String> queryReportUris;
 	private List<String> insertReportUris;
-	private ConcurrentHashMap<String, List<JSONObject>> insertResults;
+	InsertReporter insertReporter;
 	private JSONArray queries;
 	private JSONObject mlConfig;
 	private ExecutorService queryPool;
 	private LinkedBlockingQueue<Runnable> queryQueue;
-	private HashMap<String, JSONObject> connHM;
+	private HashMap<String, ConnectionPool> connectionPools;
 	private String rowbotReportUri;
 	protected int numInsertThreads = 1;
 	protected int numQueryThreads = 1;
+	protected int totalInsertThreads;
+	// The most inserts running at once on virtual threads, or 0 to use totalInsertThreads platform threads
+	protected int virtualMaxInFlight = 0;
+	protected InsertScheduler insertScheduler;
+	protected int insertBatchSize = DEFAULT_INSERT_BATCH_SIZE;
+	protected long maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+	protected int insertBufferRows = DEFAULT_INSERT_BUFFER_ROWS;
+	protected long insertBufferBytes = DEFAULT_INSERT_BUFFER_BYTES;
+	protected int lobMemoryThreshold = DEFAULT_LOB_MEMORY_THRESHOLD;
+	protected File lobSpillDirectory = null;
+	protected long checkpointIntervalNanos;
+	protected boolean resuming = false;
+	protected Metrics metrics = new Metrics();
+	protected RetryPolicy retryPolicy;
+	protected AdaptiveConcurrency concurrency = null;
+	protected DeadLetter deadLetter;
+	protected Spool spool = null;
+	protected QueryScheduler scheduler = null;
+	protected LobLane lobLane = null;
+	protected DistributedJob distributed = null;
+	protected JobProgress progress = null;
+	private JSONObject progressConfig;
+	protected final Set<QueryBot> activeQueries = Collections.newSetFromMap(new ConcurrentHashMap<QueryBot, Boolean>());
+	private int metricsPort = 0;
 		
-	private HashMap<String, JSONObject> parseConnections(JSONArray connArray) {
-		HashMap<String, JSONObject> hm = new HashMap<String, JSONObject>();
+	private HashMap<String, ConnectionPool> parseConnections(JSONArray connArray) throws ClassNotFoundException {
+		HashMap<String, ConnectionPool> hm = new HashMap<String, ConnectionPool>();
 		
 		Iterator<?> itr = connArray.iterator();
 		while (itr.hasNext()) {
 			JSONObject connectionObj = (JSONObject) itr.next();
 			String key = connectionObj.getString("key");
-			hm.put(key, connectionObj);
+			// JDBC 4 drivers register themselves, older ones can be named explicitly
+			if (connectionObj.has("driver")) {
+				Class.forName(connectionObj.getString("driver"));
+			}
+			hm.put(key, new ConnectionPool(connectionObj));
 		}
 
 		return hm;
 	}
 	
 	public RowBot(String configString) {
+		this(configString, null);
+	}
+	
+	/**
+	 * @param resumeTimestamp the timestamp of an earlier, unfinished run of the job
+	 *                        to resume, or null to start a new run
+	 */
+	public RowBot(String configString, String resumeTimestamp) {
+		this(configString, resumeTimestamp, null);
+	}
+	
+	/**
+	 * @param worker the name of this process in a distributed job, or null for
+	 *               its pid and host
+	 */
+	public RowBot(String configString, String resumeTimestamp, String worker) {
 		System.out.println("Hi. I'm RowBot.");
 		
 		JSONObject config = new JSONObject(configString);
@@ -89,127 +143,261 @@ public class RowBot implements Runnable {
 		this.jobName = config.has("jobName") ? config.getString("jobName") : null;
 		this.uriPrefix = config.has("uriPrefix") ? config.getString("uriPrefix") : "/rowbot/";
 		this.type = config.has("type") ? config.getString("type") : null;
+		this.insertBatchSize = config.has("insertBatchSize") ? Math.max(1, config.getInt("insertBatchSize")) : DEFAULT_INSERT_BATCH_SIZE;
+		this.maxBatchBytes = config.has("maxBatchBytes") ? Math.max(1, config.getLong("maxBatchBytes")) : DEFAULT_MAX_BATCH_BYTES;
+		this.insertBufferRows = config.has("insertBufferRows") ? Math.max(1, config.getInt("insertBufferRows")) : DEFAULT_INSERT_BUFFER_ROWS;
+		this.insertBufferBytes = config.has("insertBufferBytes") ? Math.max(1, config.getLong("insertBufferBytes")) : DEFAULT_INSERT_BUFFER_BYTES;
+		this.lobMemoryThreshold = config.has("lobMemoryThreshold") ? Math.max(0, config.getInt("lobMemoryThreshold")) : DEFAULT_LOB_MEMORY_THRESHOLD;
+		this.lobSpillDirectory = config.has("lobSpillDirectory") ? new File(config.getString("lobSpillDirectory")) : null;
+		File deadLetterDirectory = new File(config.has("deadLetterDirectory") ? config.getString("deadLetterDirectory") : DeadLetter.DEFAULT_DIRECTORY);
+		this.retryPolicy = new RetryPolicy(config.has("retry") ? config.getJSONObject("retry") : new JSONObject());
+		this.concurrency = config.has("adaptiveConcurrency") ? new AdaptiveConcurrency(config.getJSONObject("adaptiveConcurrency"), this.numInsertThreads) : null;
+		this.metrics.track(this.retryPolicy, this.concurrency);
+		this.lobLane = config.has("lobLane") ? new LobLane(config.getJSONObject("lobLane")) : null;
+		this.totalInsertThreads = config.has("totalInsertThreads") ? Math.max(1, config.getInt("totalInsertThreads")) : this.numQueryThreads * this.numInsertThreads;
+		// With adaptive concurrency there are enough threads for its maximum, and its limit decides how many are inserting
+		if (this.concurrency != null) {
+			this.totalInsertThreads = Math.max(this.totalInsertThreads, this.concurrency.getMax());
+		}
+		if (config.has("virtualThreads")) {
+			JSONObject virtualObj = config.getJSONObject("virtualThreads");
+			this.virtualMaxInFlight = virtualObj.has("maxInFlight") ? Math.max(1, virtualObj.getInt("maxInFlight")) : DEFAULT_VIRTUAL_MAX_IN_FLIGHT;
+		}
+		this.metricsPort = config.has("metricsPort") ? config.getInt("metricsPort") : 0;
+		this.progressConfig = config.has("progress") ? config.getJSONObject("progress") : new JSONObject();
+		this.checkpointIntervalNanos = (config.has("checkpointInterval") ? config.getLong("checkpointInterval") : DEFAULT_CHECKPOINT_INTERVAL) * 1000000000L;
 		
-		System.out.println("Parsed RowBot job. Found " + String.valueOf(this.queries.length()) + " SQL queries to execute.");
+		System.out.println("Parsed RowBot job. Found " + String.valueOf(this.queries.length()) + " queries to execute.");
 
-		TimeZone tz = TimeZone.getTimeZone("UTC");
-		DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
-		df.setTimeZone(tz);
-		this.timestamp = df.format(new Date());
+		if (resumeTimestamp != null) {
+			this.timestamp = resumeTimestamp;
+			this.resuming = true;
+		} else {
+			TimeZone tz = TimeZone.getTimeZone("UTC");
+			DateFormat df = new SimpleDateFormat(TIMESTAMP_FORMAT);
+			df.setTimeZone(tz);
+			this.timestamp = df.format(new Date());
+		}
+		// The processes of a distributed job all take the timestamp of the one that started it
+		String localName = this.timestamp;
+		if (config.has("distributed")) {
+			try {
+				this.distributed = new DistributedJob(config.getJSONObject("distributed"), this.queries, config.has("spool"), this.timestamp, worker);
+			} catch (IOException e) {
+				throw new IllegalStateException("Unable to join the distributed job: " + e.getMessage(), e);
+			}
+			this.timestamp = this.distributed.getTimestamp();
+			localName = this.timestamp + "-" + this.distributed.getWorker();
+			System.out.println("Joined distributed job " + this.timestamp + " as " + this.distributed.getWorker() + ".");
+		}
+		this.deadLetter = new DeadLetter(deadLetterDirectory, localName);
+		this.spool = config.has("spool") ? new Spool(config.getJSONObject("spool"), localName) : null;
+		// The processes of a distributed job claim its queries in the order of the job file
+		this.scheduler = (config.has("schedule") && this.distributed == null) ? new QueryScheduler(config.getJSONObject("schedule"), this.numQueryThreads, this) : null;
 		
 		this.queryQueue = new LinkedBlockingQueue<Runnable>(QUERY_QUEUE_SIZE);
 		
 		this.queryPool = new ThreadPoolExecutor(numQueryThreads, numQueryThreads, 0L, TimeUnit.MILLISECONDS, queryQueue);
 		
 		
-		contentSource = ContentSourceFactory.newContentSource(mlConfig.getString("hostname"), Integer.parseInt(mlConfig.getString("port")), mlConfig.getString("username"), mlConfig.getString("password"));
-		//this.session = contentSource.newSession();
-		this.insertResults = new ConcurrentHashMap<String, List<JSONObject>>();
+		this.hosts = new HostPool(mlConfig);
 		this.queryReportUris = Collections.synchronizedList(new ArrayList<String>());
 		this.insertReportUris = Collections.synchronizedList(new ArrayList<String>());
+		this.insertReporter = new InsertReporter(this, this.insertReportUris);
 		this.rowbotReportUri = this.uriPrefix + this.timestamp + "/rowbot-report.json";
 
 		try {
-			// Register jdbc driver
-			DriverManager.registerDriver(new oracle.jdbc.driver.OracleDriver());
-			this.connHM = parseConnections(config.getJSONArray("connections"));
+			// A job that only reads files doesn't need any connections
+			this.connectionPools = parseConnections(config.has("connections") ? config.getJSONArray("connections") : new JSONArray());
 
 		} catch (JSONException e) {
 			System.out.println("Error parsing JSON in connections array." + e.getMessage());
+			throw e;
 
-		} catch (SQLException e) {
+		} catch (ClassNotFoundException e) {
 			JSONObject json = new JSONObject();
 			json.put("timestamp", timestamp);
 			json.put("status", "error");
 			json.put("errorMessage", e.getMessage());
 			json.put("type", this.type);
-			Session session = contentSource.newSession();
-			insertJSONDoc(session, this.rowbotReportUri, json.toString(), null, new String[] {"rowbot-report"});
-			session.close();
-			System.out.println("Error registering driver:" + e.getMessage());
+			insertJSONDoc(this.rowbotReportUri, json.toString(), null, new String[] {"rowbot-report"});
+			System.out.println("Error loading driver:" + e.getMessage());
+			// The job can't run without its connections, and its report already says why
+			throw new IllegalStateException("Unable to load the JDBC driver " + e.getMessage(), e);
 		}
 	}
 	
-	protected void insertComplete(Session session, boolean success, String queryId, String uri, String message) {
-		JSONObject resultObject = new JSONObject();
-		resultObject.put("success", success);
-		resultObject.put("uri", uri);
-		if (message != null) {
-			resultObject.put("message", message);
-		}
-
-		synchronized(insertResults) {
-			insertResults.putIfAbsent(queryId, Collections.synchronizedList(new ArrayList<JSONObject>()));
-			List<JSONObject> resultList = insertResults.get(queryId);
-			synchronized(resultList) {
-				resultList.add(resultObject);
-				if (resultList.size() >= RowBot.INSERT_REPORT_BATCH_SIZE) {
-					this.writeInsertionReport(session, queryId);
+	protected void insertComplete(String queryId, JSONObject batchResult, int results) {
+		this.insertReporter.add(queryId, batchResult, results);
+	}
+	
+	protected JSONObject insertJSONDoc(String uri, String json, JSONObject permissions, String[] collections) {
+		return this.insertContent(uri, createJSONContent(uri, collections, json));
+	}
+	
+	protected JSONObject insertJSONDoc(String uri, byte[] json, JSONObject permissions, String[] collections) {
+		return this.insertContent(uri, createJSONContent(uri, collections, json));
+	}
+	
+	private JSONObject insertContent(String uri, Content content) {
+		Exception exception = null;
+		this.retryPolicy.callStarted();
+		for (int attempts = 1; ; attempts++) {
+			try {
+				this.insertContent(new Content[] {content}, content.size(), true);
+				return new JSONObject("{\"success\": true, \"uri\": \"" + uri + "\"}");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				exception = e;
+				break;
+			} catch (Exception e) {
+				exception = e;
+				if (!RetryPolicy.isTransient(e) || !this.retryPolicy.backoff(attempts)) {
+					break;
 				}
+				this.metrics.insertRetries.incrementAndGet();
 			}
 		}
+		JSONObject result = new JSONObject("{\"success\": false, \"uri\": \"" + uri + "\"}");
+		result.put("message", exception.toString());
+		return result;
 	}
 	
-	protected void writeInsertionReport(Session session, String queryId) {
-		JSONObject json = new JSONObject();
-		String insertId = UUID.randomUUID().toString();
-		List<JSONObject> batchResults = this.insertResults.get(queryId);
-		if (batchResults.isEmpty()) {
-			return;
-		}
-		json.put("timestamp", this.timestamp);
-		json.put("queryId", queryId);
-		json.put("insertId", insertId);
-		for (JSONObject insertResult : batchResults) {
-			json.append("results", insertResult);
+	/**
+	 * Makes a single insert call on the least busy healthy host, with an idle
+	 * session for that host. A connection failure takes the host out
+	 * of rotation, so a retry goes elsewhere.
+	 *
+	 * @param adaptive whether the call counts against adaptive concurrency
+	 */
+	private void insertContent(Content[] contents, long bytes, boolean adaptive) throws RequestException, InterruptedException {
+		AdaptiveConcurrency concurrency = adaptive ? this.concurrency : null;
+		if (concurrency != null) {
+			concurrency.acquire();
 		}
-		String uri = this.uriPrefix + this.timestamp + "/" + queryId + "/" + insertId + "/rowbot-insert-report.json";
-		this.insertJSONDoc(session, uri, json.toString(), null, new String[] {"rowbot-insert-report"});
-		synchronized(insertReportUris) {
-			this.insertReportUris.add(uri);
+		boolean overloaded = false;
+		long start = System.nanoTime();
+		try {
+			HostPool.Host host = this.hosts.acquire();
+			Session session = null;
+			boolean connectionFailed = false;
+			try {
+				session = host.session();
+				session.insertContent(contents);
+				this.metrics.sent(host.getName(), contents.length, bytes);
+			} catch (RequestException e) {
+				connectionFailed = e instanceof ServerConnectionException;
+				overloaded = RetryPolicy.isTransient(e);
+				throw e;
+			} finally {
+				this.hosts.release(host, session, connectionFailed);
+			}
+		} finally {
+			long latency = System.nanoTime() - start;
+			this.metrics.insert.record(latency);
+			if (concurrency != null) {
+				concurrency.release(latency, overloaded);
+			}
 		}
-		this.insertResults.put(queryId, Collections.synchronizedList(new ArrayList<JSONObject>()));
 	}
 	
-	protected JSONObject insertJSONDoc(Session session, String uri, String json, JSONObject permissions, String[] collections) {
-		ContentCreateOptions options = ContentCreateOptions.newJsonInstance();
-		options.setCollections(collections);
-		Content content = ContentFactory.newContent(uri, json, options);
+	/**
+	 * Inserts a batch of JSON documents in a single transaction. Connection level
+	 * failures are retried against the whole batch. Any other failure splits the
+	 * batch in half so the offending documents can be isolated, down to a single
+	 * document which falls back to insertJSONDoc.
+	 *
+	 * @return one result object per uri, in the same order as the uris
+	 */
+	protected List<JSONObject> insertJSONBatch(String[] uris, byte[][] jsons, JSONObject permissions, String[] collections) {
+		List<JSONObject> results = new ArrayList<JSONObject>(uris.length);
+		this.insertJSONBatch(uris, jsons, 0, uris.length, permissions, collections, results);
+		return results;
+	}
+	
+	private void insertJSONBatch(String[] uris, byte[][] jsons, int from, int to, JSONObject permissions, String[] collections, List<JSONObject> results) {
+		if (to - from == 1) {
+			results.add(insertJSONDoc(uris[from], jsons[from], permissions, collections));
+			return;
+		}
+		
+		Content[] contents = new Content[to - from];
+		long bytes = 0;
+		for (int i = from; i < to; i++) {
+			contents[i - from] = createJSONContent(uris[i], collections, jsons[i]);
+			bytes += jsons[i].length;
+		}
 		Exception exception = null;
-		for (int i = 0; i < MAX_INSERT_RETRIES; i++) {
+		this.retryPolicy.callStarted();
+		for (int attempts = 1; ; attempts++) {
 			try {
-				session.insertContent(content);
-				return new JSONObject("{\"success\": true, \"uri\": \"" + uri + "\"}");
+				this.insertContent(contents, bytes, true);
+				for (int j = from; j < to; j++) {
+					results.add(new JSONObject("{\"success\": true, \"uri\": \"" + uris[j] + "\"}"));
+				}
+				return;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				exception = e;
+				break;
 			} catch (Exception e) {
-				try {
-					Thread.sleep(INSERT_RETRY_SLEEP_MILLIS);
-				} catch (InterruptedException e1) {
-					
+				if (!RetryPolicy.isTransient(e)) {
+					exception = null;
+					break;
 				}
 				exception = e;
+				if (!this.retryPolicy.backoff(attempts)) {
+					break;
+				}
+				this.metrics.insertRetries.incrementAndGet();
 			}
 		}
-		JSONObject result = new JSONObject("{\"success\": false, \"uri\": \"" + uri + "\"}");
-		result.put("message", exception.toString());
-		return result;
+		
+		// Retries exhausted on a connection problem, splitting won't help.
+		if (exception != null) {
+			for (int j = from; j < to; j++) {
+				JSONObject result = new JSONObject("{\"success\": false, \"uri\": \"" + uris[j] + "\"}");
+				result.put("message", exception.toString());
+				results.add(result);
+			}
+			return;
+		}
+		
+		int mid = from + (to - from) / 2;
+		this.insertJSONBatch(uris, jsons, from, mid, permissions, collections, results);
+		this.insertJSONBatch(uris, jsons, mid, to, permissions, collections, results);
+	}
+	
+	protected JSONObject insertBinaryDoc(String uri, LobValue binary, JSONObject permissions, String[] collections) {
+		return this.insertBinaryDoc(uri, binary, permissions, collections, false);
 	}
 	
-	protected JSONObject insertBinaryDoc(Session session, String uri, InputStream binary, JSONObject permissions, String[] collections) {
+	/**
+	 * @param lobLane whether the insert is made from the LOB lane, which paces
+	 *                it and leaves it out of adaptive concurrency
+	 */
+	protected JSONObject insertBinaryDoc(String uri, LobValue binary, JSONObject permissions, String[] collections, boolean lobLane) {
 		ContentCreateOptions options = ContentCreateOptions.newBinaryInstance();
 		options.setCollections(collections);
 		Exception exception = null;
-		for (int i = 0; i < MAX_INSERT_RETRIES; i++) {
+		this.retryPolicy.callStarted();
+		for (int attempts = 1; ; attempts++) {
 			try {
-				Content content = ContentFactory.newContent(uri, binary, options);
-				session.insertContent(content);
+				if (lobLane) {
+					this.lobLane.pace(binary.size());
+				}
+				this.insertContent(new Content[] {binary.newContent(uri, options)}, binary.size(), !lobLane);
 				return new JSONObject("{\"success\": true, \"uri\": \"" + uri + "\"}");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				exception = e;
+				break;
 			} catch (Exception e) {
-				try {
-					Thread.sleep(INSERT_RETRY_SLEEP_MILLIS);
-				} catch (InterruptedException e1) {
-					
-				}
 				exception = e;
+				if (!RetryPolicy.isTransient(e) || !this.retryPolicy.backoff(attempts)) {
+					break;
+				}
+				this.metrics.insertRetries.incrementAndGet();
 			}
 		}
 		JSONObject result = new JSONObject("{\"success\": false, \"uri\": \"" + uri + "\"}");
@@ -217,12 +405,60 @@ public class RowBot implements Runnable {
 		return result;
 	}
 	
+	/**
+	 * @return the JSON document at the uri, or null if there isn't one
+	 */
+	protected JSONObject readJSONDoc(Session session, String uri) throws RequestException {
+		AdhocQuery request = session.newAdhocQuery("declare variable $uri as xs:string external; fn:doc($uri)");
+		request.setNewStringVariable("uri", uri);
+		ResultSequence rs = session.submitRequest(request);
+		try {
+			return rs.hasNext() ? new JSONObject(rs.next().asString()) : null;
+		} finally {
+			rs.close();
+		}
+	}
+	
+	/**
+	 * @return the uris of the documents in a collection that belong to this run of the job
+	 */
+	private List<String> listReportUris(Session session, String collection) throws RequestException {
+		AdhocQuery request = session.newAdhocQuery(
+			"declare variable $dir as xs:string external; declare variable $collection as xs:string external; "
+			+ "for $doc in cts:search(fn:collection($collection), cts:directory-query($dir, 'infinity'), 'unfiltered') "
+			+ "return xdmp:node-uri($doc)");
+		request.setNewStringVariable("dir", this.uriPrefix + this.timestamp + "/");
+		request.setNewStringVariable("collection", collection);
+		ResultSequence rs = session.submitRequest(request);
+		List<String> uris = new ArrayList<String>();
+		try {
+			while (rs.hasNext()) {
+				uris.add(rs.next().asString());
+			}
+		} finally {
+			rs.close();
+		}
+		return uris;
+	}
+	
+	static Date parseTimestamp(String timestamp) throws ParseException {
+		DateFormat df = new SimpleDateFormat(TIMESTAMP_FORMAT);
+		df.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return df.parse(timestamp);
+	}
+	
 	private static Content createJSONContent(String uri, String[] collections, String content) {
 		ContentCreateOptions options = ContentCreateOptions.newJsonInstance();
 		options.setCollections(collections);
 		return ContentFactory.newContent(uri, content, options);
 	}
 	
+	private static Content createJSONContent(String uri, String[] collections, byte[] content) {
+		ContentCreateOptions options = ContentCreateOptions.newJsonInstance();
+		options.setCollections(collections);
+		return ContentFactory.newContent(uri, content, options);
+	}
+	
 	public static void main(String[] args) {
 		HashMap<String, String> argsMap = new HashMap<String, String>();
 		for (String argument : args) {
@@ -239,8 +475,19 @@ public class RowBot implements Runnable {
 
 		try {
 			String configString = new String(Files.readAllBytes(FileSystems.getDefault().getPath(argsMap.get("__arguments"))));
-			RowBot rowBot = new RowBot(configString);
-			rowBot.runRowBotJob();
+			// --load resumes a spool mode run, loading what it spooled whatever the job file says
+			boolean load = argsMap.containsKey("load");
+			RowBot rowBot = new RowBot(configString, load ? argsMap.get("load") : argsMap.get("resume"), argsMap.get("worker"));
+			if (load && rowBot.spool == null) {
+				System.out.println("The job has no spool to load. Exiting.");
+			} else if (argsMap.containsKey("replay")) {
+				rowBot.replayDeadLetters(new File(argsMap.get("replay")));
+			} else {
+				if (load) {
+					rowBot.spool.setLoad(true);
+				}
+				rowBot.runRowBotJob();
+			}
 		} catch (IOException e1) {
 			System.out.println("Unable to read RowBot config document. Exiting.");
 		} catch (InterruptedException e) {
@@ -250,71 +497,149 @@ public class RowBot implements Runnable {
 		}
 	}
 	
+	/**
+	 * Inserts the documents in the dead letter file of an earlier run. Any that
+	 * fail again are written to this run's dead letter file.
+	 */
+	public void replayDeadLetters(File file) throws IOException {
+		System.out.println("Replaying the documents in " + file.getPath() + ".");
+		int replayed = 0;
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.trim().isEmpty()) {
+					continue;
+				}
+				JSONObject entry = new JSONObject(line);
+				String uri = entry.getString("uri");
+				String[] collections = entry.getJSONArray("collections").toList().toArray(new String[0]);
+				if (entry.has("json")) {
+					byte[] json = entry.getString("json").getBytes(StandardCharsets.UTF_8);
+					JSONObject result = insertJSONDoc(uri, json, null, collections);
+					if (!result.getBoolean("success")) {
+						this.deadLetter.add(uri, collections, json, result.getString("message"));
+					}
+				} else if (entry.has("file")) {
+					LobValue binary = LobValue.fromFile(new File(file.getAbsoluteFile().getParentFile(), entry.getString("file")));
+					JSONObject result = insertBinaryDoc(uri, binary, null, collections);
+					if (!result.getBoolean("success")) {
+						this.deadLetter.addBinary(uri, collections, binary, result.getString("message"));
+					}
+				} else {
+					System.out.println("The dead letter entry for " + uri + " has no document, skipping it.");
+					continue;
+				}
+				replayed++;
+			}
+		} finally {
+			this.deadLetter.close();
+			this.hosts.close();
+		}
+		
+		int failed = this.deadLetter.getCount();
+		System.out.println("Replayed " + replayed + " documents, " + (replayed - failed) + " inserted."
+				+ ((failed > 0) ? " The " + failed + " that failed again were written to " + this.deadLetter.getFile().getPath() + "." : ""));
+	}
+	
 	public void runRowBotJob() throws InterruptedException, JSONException {
 		long startTime = System.nanoTime();
 		
 		// Insert an initial RowBot report document with a status of "started"
 		
-		Session session = contentSource.newSession();
+		Session session = this.hosts.newSession();
+		JSONArray previousQueryIds = null;
+		if (this.resuming) {
+			try {
+				JSONObject previousReport = readJSONDoc(session, rowbotReportUri);
+				if (previousReport == null || !previousReport.has("queryIds")) {
+					System.out.println("No resumable RowBot job found at " + rowbotReportUri + ". Exiting.");
+					session.close();
+					return;
+				}
+				previousQueryIds = previousReport.getJSONArray("queryIds");
+				this.insertReportUris.addAll(listReportUris(session, "rowbot-insert-report"));
+				this.queryReportUris.addAll(listReportUris(session, "rowbot-query-report"));
+			} catch (RequestException e) {
+				System.out.println("Unable to read the RowBot job to resume: " + e.getMessage());
+				session.close();
+				return;
+			}
+			System.out.println("Resuming RowBot job " + this.timestamp + ".");
+		} else if (this.distributed != null) {
+			previousQueryIds = this.distributed.getQueryIds();
+		}
+		
+		// Query ids are recorded in the started report so that a resumed run can find each query's checkpoint
+		JSONArray queryIds = new JSONArray();
+		for (int i = 0; i < this.queries.length(); i++) {
+			JSONObject queryObject = this.queries.getJSONObject(i);
+			String queryId;
+			if (previousQueryIds != null && i < previousQueryIds.length()) {
+				queryId = previousQueryIds.getString(i);
+			} else {
+				queryId = (queryObject.has("queryId")) ? queryObject.getString("queryId")  : UUID.randomUUID().toString();
+			}
+			queryObject.put("queryId", queryId);
+			queryObject.put("timestamp", this.timestamp);
+			queryIds.put(queryId);
+		}
+		
 		JSONObject json = new JSONObject();
 		json.put("timestamp", timestamp);
 		json.put("status", "started");
 		json.put("type", this.type);
-		insertJSONDoc(session, rowbotReportUri, json.toString(), null, new String[] {"rowbot-report"});
+		json.put("queryIds", queryIds);
 		session.close();
+		if (this.distributed == null || this.distributed.isCreated()) {
+			insertJSONDoc(rowbotReportUri, json.toString(), null, new String[] {"rowbot-report"});
+		}
 		
+		this.metrics.start(this.metricsPort);
+		// A pool that can't connect yet is left to fail its queries
+		for (ConnectionPool pool : this.connectionPools.values()) {
+			try {
+				pool.fill();
+			} catch (SQLException e) {
+				System.out.println("Unable to open the minimum connections for " + pool.getKey() + ": " + e.getMessage());
+			}
+		}
+		ThreadFactory virtualThreads = (this.virtualMaxInFlight > 0) ? InsertScheduler.virtualThreadFactory("rowbot-insert-") : null;
+		if (virtualThreads != null) {
+			System.out.println("Inserting on virtual threads, up to " + this.virtualMaxInFlight + " at once.");
+			this.insertScheduler = new InsertScheduler(this.virtualMaxInFlight, virtualThreads);
+		} else {
+			if (this.virtualMaxInFlight > 0) {
+				System.out.println("Virtual threads need Java 21 or later, inserting on " + this.totalInsertThreads + " platform threads instead.");
+			}
+			this.insertScheduler = new InsertScheduler(this.totalInsertThreads);
+		}
+		// Each process of a distributed job has its own progress document
+		String progressUri = this.uriPrefix + this.timestamp + "/rowbot-progress" + ((this.distributed != null) ? "-" + this.distributed.getWorker().replaceAll("[^A-Za-z0-9._-]", "-") : "") + ".json";
+		this.progress = new JobProgress(this.progressConfig, queryIds, progressUri, this);
 		try {
+			this.progress.start();
 			Thread rowBotThread = new Thread(this);
 			rowBotThread.start();
 			
-			JSONObject status = new JSONObject();
-			JSONObject queryStatus = new JSONObject();
-			JSONObject insertStatus = new JSONObject();
-			
-			int statusCounter = STATUS_UPDATE_INTERVAL;
-			while (rowBotThread.isAlive() || !queryPool.isTerminated()) {
-				if (!rowBotThread.isAlive() && !queryPool.isShutdown()) {
-					queryPool.shutdown();
-				}
-				
-				if (statusCounter % STATUS_UPDATE_INTERVAL == 0) {
-					queryStatus.put("running", ((ThreadPoolExecutor) queryPool).getActiveCount());
-					queryStatus.put("queued", (QUERY_QUEUE_SIZE - queryQueue.remainingCapacity()));
-					status.put("queries", queryStatus);
-					
-					int insertQueuedCount = 0;
-					int insertActiveCount = 0;
-					synchronized(QueryBot.activeTasks) {
-						Iterator<Runnable> iterator = QueryBot.activeTasks.iterator();
-						while (iterator.hasNext()) {
-							QueryBot qb = (QueryBot)iterator.next();
-							
-							insertQueuedCount += (qb.INSERT_QUEUE_SIZE - qb.insertQueue.remainingCapacity());
-							insertActiveCount += ((ThreadPoolExecutor) qb.insertPool).getActiveCount();
-						}
-					}
-					
-					insertStatus.put("running", insertActiveCount);
-					insertStatus.put("queued", insertQueuedCount);
-					status.put("inserts", insertStatus);
-					
-					System.out.println(status.toString());
-				}
-				statusCounter = (statusCounter == 1) ? STATUS_UPDATE_INTERVAL : statusCounter - 1;
-				
-				if (rowBotThread.isAlive() || !queryPool.isTerminated()) {
-					Thread.sleep(250);
-				}
-			}
+			// The queries are all in the pool once the thread that adds them is done
+			rowBotThread.join();
+			queryPool.shutdown();
+			queryPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			this.progress.stop();
 			
 			System.out.println("Job complete. Writing remaining insertion reports.");
 			
-			session = contentSource.newSession();
-			// Gather up all the insertion results and write documents out for them.
-			for (String queryId : insertResults.keySet()) {
-				writeInsertionReport(session, queryId);
+			insertScheduler.shutdown();
+			if (this.lobLane != null) {
+				this.lobLane.shutdown();
+			}
+			for (ConnectionPool pool : connectionPools.values()) {
+				pool.close();
 			}
 			
+			// Write out whatever insertion results are left.
+			insertReporter.close();
+			
 			long endTime = System.nanoTime();
 			
 			// Insert the final RowBot report document with a status of "complete"
@@ -324,29 +649,194 @@ public class RowBot implements Runnable {
 			json.put("totalRuntime", (endTime - startTime) / NANO_TIME_DIV);
 			json.put("insertReportUris", insertReportUris);
 			json.put("queryReportUris", queryReportUris);
+			json.put("metrics", this.metrics.toJSON());
+			if (this.spool != null && this.spool.getDirectory().exists()) {
+				json.put("spoolDirectory", this.spool.getDirectory().getPath());
+			}
+			if (this.scheduler != null) {
+				json.put("schedule", this.scheduler.toJSON());
+			}
+			if (this.deadLetter.getCount() > 0) {
+				json.put("deadLetterFile", this.deadLetter.getFile().getPath());
+				json.put("deadLetterCount", this.deadLetter.getCount());
+			}
 			if (type != null) { json.put("type", type); }
 			json.put("status", "complete");
-			insertJSONDoc(session, rowbotReportUri, json.toString(), null, new String[] {"rowbot-report"});
+			if (this.distributed != null) {
+				this.writeDistributedReport(json);
+			} else {
+				insertJSONDoc(rowbotReportUri, json.toString(), null, new String[] {"rowbot-report"});
+			}
 
 			System.out.println("RowBot is complete. Bye.");
 
 		} finally {
-			session.close();
+			this.metrics.stop();
+			this.deadLetter.close();
+			this.hosts.close();
+		}
+	}
+
+	/**
+	 * @return the queries running and queued, the inserts running and queued,
+	 * and how full the insert buffers are
+	 */
+	JSONObject status() {
+		JSONObject status = new JSONObject();
+		JSONObject queryStatus = new JSONObject();
+		JSONObject insertStatus = new JSONObject();
+		JSONObject bufferStatus = new JSONObject();
+		
+		queryStatus.put("running", ((ThreadPoolExecutor) queryPool).getActiveCount());
+		queryStatus.put("queued", (QUERY_QUEUE_SIZE - queryQueue.remainingCapacity()));
+		status.put("queries", queryStatus);
+		
+		int insertQueuedCount = 0;
+		int insertActiveCount = 0;
+		int bufferedRows = 0;
+		long bufferedBytes = 0;
+		int bufferRowCapacity = 0;
+		long bufferByteCapacity = 0;
+		long readerStallNanos = 0;
+		for (QueryBot qb : this.activeQueries) {
+			insertQueuedCount += qb.insertPool.getQueued();
+			insertActiveCount += qb.insertPool.getActiveCount();
+			bufferedRows += qb.insertBuffer.getRows();
+			bufferedBytes += qb.insertBuffer.getBytes();
+			bufferRowCapacity += qb.insertBuffer.getMaxRows();
+			bufferByteCapacity += qb.insertBuffer.getMaxBytes();
+			readerStallNanos += qb.insertBuffer.getStallNanos();
+		}
+		
+		insertStatus.put("running", insertActiveCount);
+		insertStatus.put("queued", insertQueuedCount);
+		if (this.lobLane != null) {
+			insertStatus.put("lobRunning", this.lobLane.getActiveCount());
+			insertStatus.put("lobQueued", this.lobLane.getQueued());
+		}
+		if (this.concurrency != null) {
+			insertStatus.put("limit", this.concurrency.getLimit());
+		}
+		status.put("inserts", insertStatus);
+		
+		bufferStatus.put("rows", bufferedRows);
+		bufferStatus.put("bytes", bufferedBytes);
+		bufferStatus.put("rowsFull", (bufferRowCapacity == 0) ? 0 : (double) bufferedRows / bufferRowCapacity);
+		bufferStatus.put("bytesFull", (bufferByteCapacity == 0) ? 0 : (double) bufferedBytes / bufferByteCapacity);
+		bufferStatus.put("readerStallTime", readerStallNanos / NANO_TIME_DIV);
+		status.put("buffer", bufferStatus);
+		return status;
+	}
+	
+	/**
+	 * Merges this process's part of a distributed job into the job's report,
+	 * which the last process to finish leaves covering every process.
+	 */
+	private void writeDistributedReport(JSONObject summary) throws InterruptedException {
+		try {
+			JSONObject report = this.distributed.mergeReport(summary);
+			try {
+				insertJSONDoc(rowbotReportUri, report.toString(), null, new String[] {"rowbot-report"});
+			} finally {
+				this.distributed.unlockReport();
+			}
+		} catch (IOException e) {
+			System.out.println("Unable to merge the distributed job's report: " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Claims units of a distributed job and runs them, one at a time, until
+	 * every unit of the job is done.
+	 */
+	private void runUnits() {
+		try {
+			DistributedJob.Lease lease;
+			while ((lease = this.distributed.claim()) != null) {
+				boolean success = false;
+				try {
+					JSONObject queryObject = this.queries.getJSONObject(lease.getQuery());
+					String queryId = queryObject.getString("queryId");
+					String dbKey = queryObject.has("file") ? null : queryObject.getString("database");
+					// A unit taken over from another process carries on from its checkpoint
+					JSONObject checkpoint = null;
+					Session session = this.hosts.newSession();
+					try {
+						checkpoint = readJSONDoc(session, QueryCheckpoint.uriFor(this, queryId, lease.getSlice()));
+					} catch (RequestException e) {
+						System.out.println("Unable to read the checkpoint for query " + queryId + ", restarting it from the beginning: " + e.getMessage());
+					} finally {
+						session.close();
+					}
+					QueryBot queryBot = new QueryBot(this.connectionPools.get(dbKey), queryObject, checkpoint, this, lease);
+					queryBot.run();
+					success = queryBot.isSuccess();
+				} finally {
+					this.distributed.complete(lease, success);
+				}
+			}
+		} catch (IOException e) {
+			System.out.println("Unable to claim work for the distributed job: " + e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
 	}
 
 	@Override
 	public void run() {
-		for (int i = 0; i < this.queries.length(); i++) {
-			JSONObject queryObject = this.queries.getJSONObject(i);
-			String queryId = (queryObject.has("queryId")) ? queryObject.getString("queryId")  : UUID.randomUUID().toString();
-			queryObject.put("queryId", queryId);
-			queryObject.put("timestamp", this.timestamp);
-			String dbKey = queryObject.getString("database");
-			Runnable queryThread;
-
-			queryThread = new QueryBot((JSONObject) this.connHM.get(dbKey), queryObject, this);
-			queryPool.execute(queryThread);
+		if (this.distributed != null) {
+			for (int i = 0; i < this.numQueryThreads; i++) {
+				queryPool.execute(new Runnable() {
+					public void run() {
+						runUnits();
+					}
+				});
+			}
+			return;
+		}
+		Session session = this.hosts.newSession();
+		List<QueryBot> queryBots = new ArrayList<QueryBot>();
+		try {
+			for (int i = 0; i < this.queries.length(); i++) {
+				JSONObject queryObject = this.queries.getJSONObject(i);
+				String queryId = queryObject.getString("queryId");
+				String dbKey = queryObject.has("file") ? null : queryObject.getString("database");
+				JSONObject checkpoint = null;
+				
+				if (this.resuming) {
+					try {
+						JSONObject queryReport = readJSONDoc(session, this.uriPrefix + this.timestamp + "/" + queryId + "/rowbot-query-report.json");
+						// A query that was only spooled still has to be loaded
+						if (queryReport != null && queryReport.getBoolean("success") && queryReport.optBoolean("loaded", true)) {
+							System.out.println("Query " + queryId + " already completed, skipping it.");
+							if (this.progress != null) {
+								this.progress.completed(queryId, true, queryReport.optInt("totalRows"));
+							}
+							continue;
+						}
+						checkpoint = readJSONDoc(session, QueryCheckpoint.uriFor(this, queryId));
+					} catch (RequestException e) {
+						System.out.println("Unable to read the checkpoint for query " + queryId + ", restarting it from the beginning: " + e.getMessage());
+					}
+				}
+				
+				QueryBot queryBot = new QueryBot(this.connectionPools.get(dbKey), queryObject, checkpoint, this);
+				if (this.scheduler != null) {
+					queryBots.add(queryBot);
+				} else {
+					queryPool.execute(queryBot);
+				}
+			}
+			
+			// With a schedule the queries are only started once they have all been estimated
+			if (this.scheduler != null) {
+				System.out.println("Estimating the cost of " + queryBots.size() + " queries.");
+				for (Runnable task : this.scheduler.plan(queryBots, session)) {
+					queryPool.execute(task);
+				}
+			}
+		} finally {
+			session.close();
 		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,87 @@
+/**
+ * A row serialized as a JSON document, along with the LOB values it
+ * references by uuid.
+ */
+package com.marklogic.rowbot;
+
+import java.util.Map;
+
+class RowDocument {
+	private final byte[] json;
+	private final Map<String, LobValue> binaries;
+	private final Object key;
+	private final String uri;
+	private final long keyHash;
+	private final long contentHash;
+	
+	public RowDocument(byte[] json, Map<String, LobValue> binaries, Object key) {
+		this(json, binaries, key, null, 0, 0);
+	}
+	
+	/**
+	 * A row with a stable URI, and the hashes of its key and content, from
+	 * change detection.
+	 */
+	public RowDocument(byte[] json, Map<String, LobValue> binaries, Object key, String uri, long keyHash, long contentHash) {
+		this.json = json;
+		this.binaries = binaries;
+		this.key = key;
+		this.uri = uri;
+		this.keyHash = keyHash;
+		this.contentHash = contentHash;
+	}
+	
+	public byte[] getJson() {
+		return this.json;
+	}
+	
+	/**
+	 * @return the value of the query's checkpoint key column, or null if it has none
+	 */
+	public Object getKey() {
+		return this.key;
+	}
+	
+	/**
+	 * @return the row's stable URI, or null if it is named by its row number
+	 */
+	public String getUri() {
+		return this.uri;
+	}
+	
+	public long getKeyHash() {
+		return this.keyHash;
+	}
+	
+	public long getContentHash() {
+		return this.contentHash;
+	}
+	
+	/**
+	 * @return the LOB values keyed by uuid, or null if the row has none
+	 */
+	public Map<String, LobValue> getBinaries() {
+		return this.binaries;
+	}
+	
+	/**
+	 * Approximate heap held by the row.
+	 */
+	public long memorySize() {
+		long bytes = this.json.length;
+		if (this.binaries != null) {
+			for (LobValue lob : this.binaries.values()) {
+				bytes += lob.memorySize();
+			}
+		}
+		return bytes;
+	}
+	
+	public void deleteBinaries() {
+		if (this.binaries != null) {
+			for (LobValue lob : this.binaries.values()) {
+				lob.delete();
+			}
+		}
+	}
+}
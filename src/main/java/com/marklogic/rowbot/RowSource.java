@@ -0,0 +1,65 @@
+/**
+ * Where a query's rows come from: a SQL query over JDBC, or flat files. A
+ * source splits itself into slices that QueryBot reads concurrently, and
+ * opens a cursor over each slice that turns its rows into documents.
+ */
+package com.marklogic.rowbot;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.json.JSONObject;
+
+interface RowSource extends AutoCloseable {
+	/**
+	 * @return the slices of the source, which can be read independently
+	 */
+	List<QuerySlice> plan() throws Exception;
+	
+	/**
+	 * Estimates the number of rows in the source, for scheduling.
+	 *
+	 * @param method one of the QueryScheduler estimate methods
+	 * @return the estimate, or -1 if the source can't give one that way
+	 */
+	long estimateRows(String method) throws Exception;
+	
+	/**
+	 * @return how many of the given number of slices to read at once
+	 */
+	int getThreads(int slices);
+	
+	/**
+	 * @return true if a cursor opened on a slice with confirmed rows starts after
+	 *         them, false if the confirmed rows are read again and skipped
+	 */
+	boolean resumesByKey();
+	
+	Cursor open(QuerySlice slice, SliceProgress progress) throws Exception;
+	
+	/**
+	 * Adds anything particular to the source to its query's report.
+	 */
+	void report(JSONObject results);
+	
+	/**
+	 * Releases whatever the source holds once every slice has been read.
+	 */
+	void close();
+	
+	interface Cursor extends AutoCloseable {
+		/**
+		 * Moves to the next row, which may then be read or skipped.
+		 */
+		boolean next() throws Exception;
+		
+		RowDocument read() throws Exception;
+		
+		/**
+		 * @return roughly the number of rows fetched at a time, for timing fetches
+		 */
+		int getFetchSize();
+		
+		void close() throws IOException;
+	}
+}
@@ -0,0 +1,101 @@
+/**
+ * High-water mark of a query slice: the number of rows, and the checkpoint key
+ * of the last row, for which every batch up to and including it has finished
+ * inserting. Batches can finish out of order, so the mark only advances over
+ * a contiguous run of finished batches.
+ */
+package com.marklogic.rowbot;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.json.JSONObject;
+
+class SliceProgress {
+	private int confirmedRows = 0;
+	private Object confirmedKey = null;
+	private boolean readComplete = false;
+	private final TreeMap<Integer, Batch> pending = new TreeMap<>();
+	
+	private static class Batch {
+		final int count;
+		final Object lastKey;
+		boolean done = false;
+		
+		Batch(int count, Object lastKey) {
+			this.count = count;
+			this.lastKey = lastKey;
+		}
+	}
+	
+	public synchronized int getConfirmedRows() {
+		return this.confirmedRows;
+	}
+	
+	public synchronized Object getConfirmedKey() {
+		return this.confirmedKey;
+	}
+	
+	public synchronized void submitted(int firstRowNum, int count, Object lastKey) {
+		this.pending.put(firstRowNum, new Batch(count, lastKey));
+	}
+	
+	public synchronized void completed(int firstRowNum) {
+		Batch batch = this.pending.get(firstRowNum);
+		if (batch == null) {
+			return;
+		}
+		batch.done = true;
+		while (!this.pending.isEmpty() && this.pending.firstEntry().getValue().done) {
+			Map.Entry<Integer, Batch> first = this.pending.pollFirstEntry();
+			this.confirmedRows = first.getKey() + first.getValue().count - 1;
+			this.confirmedKey = first.getValue().lastKey;
+		}
+	}
+	
+	public synchronized void readComplete() {
+		this.readComplete = true;
+	}
+	
+	public synchronized boolean isComplete() {
+		return this.readComplete && this.pending.isEmpty();
+	}
+	
+	public synchronized JSONObject toJSON(int index) {
+		JSONObject json = new JSONObject();
+		json.put("slice", index);
+		json.put("rows", this.confirmedRows);
+		json.put("complete", this.readComplete && this.pending.isEmpty());
+		if (this.confirmedKey instanceof Timestamp) {
+			json.put("keyType", "timestamp");
+			json.put("key", this.confirmedKey.toString());
+		} else if (this.confirmedKey instanceof Number) {
+			json.put("keyType", "number");
+			json.put("key", this.confirmedKey.toString());
+		} else if (this.confirmedKey != null) {
+			json.put("keyType", "string");
+			json.put("key", this.confirmedKey.toString());
+		}
+		return json;
+	}
+	
+	public static SliceProgress fromJSON(JSONObject json) {
+		SliceProgress progress = new SliceProgress();
+		progress.confirmedRows = json.getInt("rows");
+		progress.readComplete = json.getBoolean("complete");
+		if (json.has("key")) {
+			String keyType = json.getString("keyType");
+			String key = json.getString("key");
+			if (keyType.equals("timestamp")) {
+				progress.confirmedKey = Timestamp.valueOf(key);
+			} else if (keyType.equals("number")) {
+				progress.confirmedKey = new BigDecimal(key);
+			} else {
+				progress.confirmedKey = key;
+			}
+		}
+		return progress;
+	}
+}
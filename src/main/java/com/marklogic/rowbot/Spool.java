@@ -0,0 +1,503 @@
+/**
+ * Local spool that decouples reading a query from inserting its rows. In
+ * spool mode each slice's rows are appended at full JDBC speed to segment
+ * files in a compact binary format, and the query's connection is released
+ * as soon as they are all written. The segments are then loaded into
+ * MarkLogic, by the same run or by a later one started with --load.
+ *
+ * A segment is written to a .tmp file and renamed once it is full or its
+ * slice is done, so only whole segments are ever loaded. Each record is the
+ * row number, the row's JSON, its key and its LOB values:
+ * <pre>
+ * int rowNum, int jsonLength, byte[] json, byte keyType, key,
+ * int binaryCount, { short idLength, byte[] id, long size, byte[] content }...
+ * </pre>
+ */
+package com.marklogic.rowbot;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+class Spool {
+	static final String DEFAULT_DIRECTORY = "rowbot-spool";
+	static final long DEFAULT_SEGMENT_BYTES = 268435456;
+	static final int BUFFER_SIZE = 1048576;
+	static final int MAGIC = 0x52425350; // "RBSP"
+	static final int VERSION = 1;
+	static final String SEGMENT_SUFFIX = ".seg";
+	static final String MANIFEST = "extracted.json";
+	static final byte KEY_NULL = 0;
+	static final byte KEY_LONG = 1;
+	static final byte KEY_DECIMAL = 2;
+	static final byte KEY_STRING = 3;
+	static final byte KEY_TIMESTAMP = 4;
+	static final byte KEY_DOUBLE = 5;
+	private final File directory;
+	private final long segmentBytes;
+	private boolean load;
+	private final boolean keep;
+	
+	/**
+	 * @param name distinguishes this run's spool from others in the directory
+	 */
+	public Spool(JSONObject config, String name) {
+		// Timestamps contain colons, which aren't allowed in file names everywhere
+		String safeName = name.replaceAll("[^A-Za-z0-9._-]", "-");
+		this.directory = new File(config.has("directory") ? config.getString("directory") : DEFAULT_DIRECTORY, safeName);
+		this.segmentBytes = Math.max(BUFFER_SIZE, config.has("segmentBytes") ? config.getLong("segmentBytes") : DEFAULT_SEGMENT_BYTES);
+		this.load = config.has("load") ? config.getBoolean("load") : true;
+		this.keep = config.has("keep") ? config.getBoolean("keep") : false;
+	}
+	
+	public File getDirectory() {
+		return this.directory;
+	}
+	
+	/**
+	 * @return whether spooled rows are loaded into MarkLogic by this run
+	 */
+	public boolean isLoad() {
+		return this.load;
+	}
+	
+	public void setLoad(boolean load) {
+		this.load = load;
+	}
+	
+	private File queryDirectory(String queryId) {
+		return new File(this.directory, queryId.replaceAll("[^A-Za-z0-9._-]", "-"));
+	}
+	
+	/**
+	 * @return the slices of a query whose rows were all spooled, or null if it wasn't
+	 */
+	public List<QuerySlice> extractedSlices(String queryId) throws IOException {
+		File manifest = new File(queryDirectory(queryId), MANIFEST);
+		if (!manifest.isFile()) {
+			return null;
+		}
+		JSONArray sliceArray = new JSONObject(new String(Files.readAllBytes(manifest.toPath()), StandardCharsets.UTF_8)).getJSONArray("slices");
+		List<QuerySlice> slices = new ArrayList<>(sliceArray.length());
+		for (int i = 0; i < sliceArray.length(); i++) {
+			slices.add(QuerySlice.fromJSON(sliceArray.getJSONObject(i)));
+		}
+		return slices;
+	}
+	
+	/**
+	 * Records that every slice of the query has been spooled, which makes its
+	 * segments loadable by a later run.
+	 */
+	public void markExtracted(String queryId, List<QuerySlice> slices) throws IOException {
+		JSONObject manifest = new JSONObject();
+		for (QuerySlice slice : slices) {
+			JSONObject sliceObject = slice.toJSON();
+			sliceObject.put("rowPrefix", slice.getRowPrefix());
+			manifest.append("slices", sliceObject);
+		}
+		File file = new File(queryDirectory(queryId), MANIFEST);
+		File tmp = new File(file.getPath() + ".tmp");
+		Files.write(tmp.toPath(), manifest.toString().getBytes(StandardCharsets.UTF_8));
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/**
+	 * Removes whatever an earlier, unfinished extract of the query left behind.
+	 */
+	public void clear(String queryId) {
+		delete(queryDirectory(queryId));
+	}
+	
+	/**
+	 * Removes a query's segments once they are loaded, unless the spool is kept.
+	 */
+	public void loaded(String queryId) {
+		if (!this.keep) {
+			delete(queryDirectory(queryId));
+			// Only succeeds once the last query is loaded
+			this.directory.delete();
+		}
+	}
+	
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+	
+	public Writer newWriter(String queryId, int sliceIndex) {
+		return new Writer(queryDirectory(queryId), sliceIndex);
+	}
+	
+	public Reader newReader(String queryId, int sliceIndex, int lobMemoryThreshold, File lobSpillDirectory) {
+		final String prefix = sliceIndex + "-";
+		File[] files = queryDirectory(queryId).listFiles();
+		List<File> segments = new ArrayList<>();
+		if (files != null) {
+			for (File file : files) {
+				if (file.getName().startsWith(prefix) && file.getName().endsWith(SEGMENT_SUFFIX)) {
+					segments.add(file);
+				}
+			}
+		}
+		// Segment numbers are zero padded, so names sort in the order they were written
+		File[] sorted = segments.toArray(new File[0]);
+		Arrays.sort(sorted);
+		return new Reader(Arrays.asList(sorted), lobMemoryThreshold, lobSpillDirectory);
+	}
+	
+	/**
+	 * Appends one slice's rows to its segments through a direct buffer.
+	 */
+	class Writer implements AutoCloseable {
+		private final File queryDirectory;
+		private final int sliceIndex;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		private final byte[] chunk = new byte[LobValue.CHUNK_SIZE];
+		private int segment = 0;
+		private File tmpFile;
+		private FileChannel channel;
+		private long segmentSize;
+		private long bytesWritten = 0;
+		
+		Writer(File queryDirectory, int sliceIndex) {
+			this.queryDirectory = queryDirectory;
+			this.sliceIndex = sliceIndex;
+		}
+		
+		public long getBytesWritten() {
+			return this.bytesWritten;
+		}
+		
+		public void append(int rowNum, RowDocument row) throws IOException {
+			if (this.channel == null) {
+				openSegment();
+			}
+			ensure(8);
+			this.buffer.putInt(rowNum);
+			byte[] json = row.getJson();
+			this.buffer.putInt(json.length);
+			put(json, 0, json.length);
+			putKey(row.getKey());
+			Map<String, LobValue> binaries = row.getBinaries();
+			ensure(4);
+			this.buffer.putInt((binaries == null) ? 0 : binaries.size());
+			if (binaries != null) {
+				for (Map.Entry<String, LobValue> binary : binaries.entrySet()) {
+					byte[] id = binary.getKey().getBytes(StandardCharsets.UTF_8);
+					ensure(2 + id.length + 8);
+					this.buffer.putShort((short) id.length);
+					this.buffer.put(id);
+					this.buffer.putLong(binary.getValue().size());
+					try (InputStream in = binary.getValue().newInputStream()) {
+						int read;
+						while ((read = in.read(this.chunk)) != -1) {
+							put(this.chunk, 0, read);
+						}
+					}
+				}
+			}
+			if (this.segmentSize + this.buffer.position() >= segmentBytes) {
+				sealSegment();
+			}
+		}
+		
+		private void putKey(Object key) throws IOException {
+			// Each value is a type byte followed by the value
+			if (key == null) {
+				ensure(1);
+				this.buffer.put(KEY_NULL);
+			} else if (key instanceof Long || key instanceof Integer || key instanceof Short || key instanceof Byte) {
+				ensure(9);
+				this.buffer.put(KEY_LONG);
+				this.buffer.putLong(((Number) key).longValue());
+			} else if (key instanceof Double || key instanceof Float) {
+				ensure(9);
+				this.buffer.put(KEY_DOUBLE);
+				this.buffer.putDouble(((Number) key).doubleValue());
+			} else if (key instanceof Timestamp) {
+				ensure(13);
+				this.buffer.put(KEY_TIMESTAMP);
+				this.buffer.putLong(((Timestamp) key).getTime());
+				this.buffer.putInt(((Timestamp) key).getNanos());
+			} else {
+				byte[] value = key.toString().getBytes(StandardCharsets.UTF_8);
+				ensure(5);
+				this.buffer.put((key instanceof BigDecimal) ? KEY_DECIMAL : KEY_STRING);
+				this.buffer.putInt(value.length);
+				put(value, 0, value.length);
+			}
+		}
+		
+		private void ensure(int bytes) throws IOException {
+			if (this.buffer.remaining() < bytes) {
+				flush();
+			}
+		}
+		
+		private void put(byte[] bytes, int offset, int length) throws IOException {
+			if (length > this.buffer.remaining()) {
+				flush();
+				if (length > this.buffer.capacity()) {
+					write(ByteBuffer.wrap(bytes, offset, length));
+					return;
+				}
+			}
+			this.buffer.put(bytes, offset, length);
+		}
+		
+		private void flush() throws IOException {
+			this.buffer.flip();
+			write(this.buffer);
+			this.buffer.clear();
+		}
+		
+		private void write(ByteBuffer source) throws IOException {
+			while (source.hasRemaining()) {
+				int written = this.channel.write(source);
+				this.segmentSize += written;
+				this.bytesWritten += written;
+			}
+		}
+		
+		private void openSegment() throws IOException {
+			this.queryDirectory.mkdirs();
+			this.tmpFile = new File(this.queryDirectory, String.format("%d-%06d%s.tmp", this.sliceIndex, this.segment, SEGMENT_SUFFIX));
+			this.channel = FileChannel.open(this.tmpFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			this.segmentSize = 0;
+			this.buffer.putInt(MAGIC);
+			this.buffer.putInt(VERSION);
+		}
+		
+		private void sealSegment() throws IOException {
+			flush();
+			this.channel.close();
+			this.channel = null;
+			String name = this.tmpFile.getName();
+			File segmentFile = new File(this.queryDirectory, name.substring(0, name.length() - ".tmp".length()));
+			Files.move(this.tmpFile.toPath(), segmentFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			this.segment++;
+		}
+		
+		/**
+		 * Seals the last segment. Only call this once every row has been appended.
+		 */
+		public void finish() throws IOException {
+			if (this.channel != null) {
+				sealSegment();
+			}
+		}
+		
+		/**
+		 * Drops a segment that wasn't finished.
+		 */
+		public void close() {
+			if (this.channel != null) {
+				try {
+					this.channel.close();
+				} catch (IOException e) {
+					// The segment is unusable either way
+				}
+				this.channel = null;
+				this.tmpFile.delete();
+			}
+		}
+	}
+	
+	/**
+	 * Reads one slice's rows back from its segments, in the order they were written.
+	 */
+	static class Reader implements AutoCloseable {
+		private final List<File> segments;
+		private final int lobMemoryThreshold;
+		private final File lobSpillDirectory;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		private int segment = 0;
+		private FileChannel channel;
+		
+		Reader(List<File> segments, int lobMemoryThreshold, File lobSpillDirectory) {
+			this.segments = segments;
+			this.lobMemoryThreshold = lobMemoryThreshold;
+			this.lobSpillDirectory = lobSpillDirectory;
+			this.buffer.limit(0);
+		}
+		
+		/**
+		 * Moves to the next record, which must then be read or skipped.
+		 *
+		 * @return the record's row number, or -1 after the last record
+		 */
+		public int nextRowNum() throws IOException {
+			while (this.channel == null || !fill(1)) {
+				if (this.channel != null) {
+					this.channel.close();
+					this.channel = null;
+				}
+				if (this.segment == this.segments.size()) {
+					return -1;
+				}
+				File file = this.segments.get(this.segment++);
+				this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+				this.buffer.clear().limit(0);
+				require(8);
+				if (this.buffer.getInt() != MAGIC || this.buffer.getInt() != VERSION) {
+					throw new IOException(file.getPath() + " is not a RowBot spool segment");
+				}
+			}
+			require(4);
+			return this.buffer.getInt();
+		}
+		
+		/**
+		 * @param skip when true, the record is passed over without reading its LOB values
+		 * @return the row, or null when skipped
+		 */
+		public RowDocument readRow(boolean skip) throws IOException {
+			require(4);
+			byte[] json = new byte[this.buffer.getInt()];
+			get(json, 0, json.length);
+			Object key = readKey();
+			require(4);
+			int binaryCount = this.buffer.getInt();
+			Map<String, LobValue> binaries = (binaryCount == 0 || skip) ? null : new HashMap<String, LobValue>();
+			for (int b = 0; b < binaryCount; b++) {
+				require(2);
+				byte[] id = new byte[this.buffer.getShort()];
+				require(id.length + 8);
+				this.buffer.get(id);
+				final long size = this.buffer.getLong();
+				InputStream content = new InputStream() {
+					private long remaining = size;
+					
+					@Override
+					public int read() throws IOException {
+						byte[] one = new byte[1];
+						return (read(one, 0, 1) == -1) ? -1 : one[0] & 0xff;
+					}
+					
+					@Override
+					public int read(byte[] b, int off, int len) throws IOException {
+						if (this.remaining == 0) {
+							return -1;
+						}
+						int n = (int) Math.min(len, this.remaining);
+						get(b, off, n);
+						this.remaining -= n;
+						return n;
+					}
+					
+					@Override
+					public void close() throws IOException {
+						// Leaves the reader past the value even if it wasn't read to the end
+						byte[] discard = new byte[LobValue.CHUNK_SIZE];
+						while (read(discard, 0, discard.length) != -1) {
+							// skip
+						}
+					}
+				};
+				if (skip) {
+					content.close();
+				} else {
+					binaries.put(new String(id, StandardCharsets.UTF_8), LobValue.fromStream(content, this.lobMemoryThreshold, this.lobSpillDirectory));
+				}
+			}
+			return skip ? null : new RowDocument(json, binaries, key);
+		}
+		
+		private Object readKey() throws IOException {
+			require(1);
+			byte type = this.buffer.get();
+			switch (type) {
+				case KEY_NULL:
+					return null;
+				case KEY_LONG:
+					require(8);
+					return this.buffer.getLong();
+				case KEY_DOUBLE:
+					require(8);
+					return this.buffer.getDouble();
+				case KEY_TIMESTAMP:
+					require(12);
+					Timestamp timestamp = new Timestamp(this.buffer.getLong());
+					timestamp.setNanos(this.buffer.getInt());
+					return timestamp;
+				case KEY_DECIMAL:
+				case KEY_STRING:
+					require(4);
+					byte[] value = new byte[this.buffer.getInt()];
+					get(value, 0, value.length);
+					String string = new String(value, StandardCharsets.UTF_8);
+					return (type == KEY_DECIMAL) ? new BigDecimal(string) : string;
+				default:
+					throw new IOException("Unknown key type " + type + " in spool segment " + this.segments.get(this.segment - 1).getPath());
+			}
+		}
+		
+		/**
+		 * Reads until at least the given number of bytes are buffered.
+		 *
+		 * @return false if the segment ends first
+		 */
+		private boolean fill(int bytes) throws IOException {
+			if (this.buffer.remaining() >= bytes) {
+				return true;
+			}
+			this.buffer.compact();
+			try {
+				while (this.buffer.position() < bytes) {
+					if (this.channel.read(this.buffer) == -1) {
+						return false;
+					}
+				}
+			} finally {
+				this.buffer.flip();
+			}
+			return true;
+		}
+		
+		private void require(int bytes) throws IOException {
+			if (!fill(bytes)) {
+				throw new EOFException("Spool segment " + this.segments.get(this.segment - 1).getPath() + " is truncated");
+			}
+		}
+		
+		private void get(byte[] bytes, int offset, int length) throws IOException {
+			while (length > 0) {
+				require(1);
+				int n = Math.min(length, this.buffer.remaining());
+				this.buffer.get(bytes, offset, n);
+				offset += n;
+				length -= n;
+			}
+		}
+		
+		public void close() throws IOException {
+			if (this.channel != null) {
+				this.channel.close();
+				this.channel = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,64 @@
+/**
+ * Running totals of rows, documents and bytes for one query or one host,
+ * with the rates over the time between the first and the last thing recorded
+ * against it, so a query that finished early keeps the rates it ran at.
+ */
+package com.marklogic.rowbot;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+
+class Throughput {
+	static final double NANOS_PER_SECOND = 1000000000.0;
+	static final double BYTES_PER_MB = 1048576.0;
+	static final long MIN_NANOS = 1000000;
+	// When the first thing was recorded, or 0 if nothing has been yet
+	private final AtomicLong startNanos = new AtomicLong(0);
+	// When the last thing was recorded
+	private final AtomicLong lastNanos = new AtomicLong(0);
+	private final AtomicLong rowsRead = new AtomicLong(0);
+	private final AtomicLong docsInserted = new AtomicLong(0);
+	private final AtomicLong bytesSent = new AtomicLong(0);
+	
+	public void rowsRead(long rows) {
+		this.rowsRead.addAndGet(rows);
+		this.recorded();
+	}
+	
+	public void inserted(long docs, long bytes) {
+		this.docsInserted.addAndGet(docs);
+		this.bytesSent.addAndGet(bytes);
+		this.recorded();
+	}
+	
+	private void recorded() {
+		long now = System.nanoTime();
+		if (this.startNanos.get() == 0) {
+			this.startNanos.compareAndSet(0, now);
+		}
+		this.lastNanos.set(now);
+	}
+	
+	public long getRowsRead() {
+		return this.rowsRead.get();
+	}
+	
+	public long getDocsInserted() {
+		return this.docsInserted.get();
+	}
+	
+	public JSONObject toJSON() {
+		long start = this.startNanos.get();
+		// Everything recorded at once is rated over a millisecond rather than no time at all
+		double seconds = (start == 0) ? 1 : Math.max(MIN_NANOS, this.lastNanos.get() - start) / NANOS_PER_SECOND;
+		JSONObject json = new JSONObject();
+		json.put("rowsRead", this.rowsRead.get());
+		json.put("docsInserted", this.docsInserted.get());
+		json.put("bytesSent", this.bytesSent.get());
+		json.put("rowsPerSecond", this.rowsRead.get() / seconds);
+		json.put("docsPerSecond", this.docsInserted.get() / seconds);
+		json.put("mbPerSecond", this.bytesSent.get() / BYTES_PER_MB / seconds);
+		return json;
+	}
+}
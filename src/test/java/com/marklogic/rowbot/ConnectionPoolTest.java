@@ -0,0 +1,188 @@
+/**
+ * Exercises ConnectionPool and PooledConnection against an in-memory H2
+ * database.
+ */
+package com.marklogic.rowbot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConnectionPoolTest {
+	private static final AtomicInteger databases = new AtomicInteger();
+	private String url;
+	// Keeps the in-memory database open between the pool's connections
+	private Connection keeper;
+	private ConnectionPool pool;
+	
+	@Before
+	public void openDatabase() throws SQLException {
+		this.url = "jdbc:h2:mem:pool" + databases.incrementAndGet();
+		this.keeper = DriverManager.getConnection(this.url);
+	}
+	
+	@After
+	public void closeDatabase() throws SQLException {
+		if (this.pool != null) {
+			this.pool.close();
+		}
+		this.keeper.close();
+	}
+	
+	@Test
+	public void releasedConnectionIsBorrowedAgain() throws Exception {
+		this.pool = newPool(new JSONObject().put("maxSize", 2));
+		PooledConnection first = this.pool.borrow();
+		this.pool.release(first);
+		assertSame(first, this.pool.borrow());
+		
+		PooledConnection second = this.pool.borrow();
+		assertNotSame(first, second);
+		assertEquals(1, count(second, "SELECT 1"));
+	}
+	
+	@Test
+	public void borrowWaitsAtMaxSize() throws Exception {
+		this.pool = newPool(new JSONObject().put("maxSize", 1));
+		PooledConnection connection = this.pool.borrow();
+		final AtomicReference<Object> borrowed = new AtomicReference<>();
+		Thread waiter = new Thread(new Runnable() {
+			public void run() {
+				try {
+					borrowed.set(pool.borrow());
+				} catch (Exception e) {
+					borrowed.set(e);
+				}
+			}
+		});
+		waiter.start();
+		waiter.join(200);
+		assertTrue("borrow didn't wait for a connection", waiter.isAlive());
+		
+		this.pool.release(connection);
+		waiter.join(TimeUnit.SECONDS.toMillis(10));
+		assertFalse(waiter.isAlive());
+		assertSame(connection, borrowed.get());
+	}
+	
+	@Test
+	public void idleConnectionsAboveMinSizeExpire() throws Exception {
+		this.pool = newPool(new JSONObject().put("minSize", 1).put("idleTimeout", 1));
+		PooledConnection older = this.pool.borrow();
+		PooledConnection newer = this.pool.borrow();
+		this.pool.release(older);
+		this.pool.release(newer);
+		Thread.sleep(1200);
+		
+		// The least recently used goes, and minSize keeps the other
+		assertSame(newer, this.pool.borrow());
+		assertTrue(older.getConnection().isClosed());
+		assertFalse(newer.getConnection().isClosed());
+	}
+	
+	@Test
+	public void fillOpensMinSize() throws Exception {
+		this.pool = newPool(new JSONObject().put("minSize", 2).put("maxSize", 3));
+		int sessions = sessions();
+		this.pool.fill();
+		assertEquals(sessions + 2, sessions());
+		this.pool.fill();
+		assertEquals(sessions + 2, sessions());
+		
+		// Both are idle, so borrowing them opens nothing
+		this.pool.borrow();
+		this.pool.borrow();
+		assertEquals(sessions + 2, sessions());
+		this.pool.borrow();
+		assertEquals(sessions + 3, sessions());
+	}
+	
+	@Test
+	public void invalidatedConnectionIsClosedAndReplaced() throws Exception {
+		this.pool = newPool(new JSONObject().put("maxSize", 1));
+		PooledConnection connection = this.pool.borrow();
+		this.pool.invalidate(connection);
+		assertTrue(connection.getConnection().isClosed());
+		
+		// The pool has room again, so this doesn't wait
+		PooledConnection replacement = this.pool.borrow();
+		assertNotSame(connection, replacement);
+		assertFalse(replacement.getConnection().isClosed());
+	}
+	
+	@Test
+	public void brokenIdleConnectionIsReplaced() throws Exception {
+		this.pool = newPool(new JSONObject().put("validationInterval", 0));
+		PooledConnection connection = this.pool.borrow();
+		this.pool.release(connection);
+		connection.getConnection().close();
+		
+		PooledConnection replacement = this.pool.borrow();
+		assertNotSame(connection, replacement);
+		assertEquals(1, count(replacement, "SELECT 1"));
+	}
+	
+	@Test
+	public void statementsAreReusedOnTheirConnection() throws Exception {
+		this.pool = newPool(new JSONObject().put("statementCacheSize", 1));
+		PooledConnection connection = this.pool.borrow();
+		PreparedStatement statement = connection.prepare("SELECT 1");
+		assertSame(statement, connection.prepare("SELECT 1"));
+		
+		// A cache of one closes the older statement to make room
+		PreparedStatement other = connection.prepare("SELECT 2");
+		assertNotSame(statement, other);
+		assertTrue(statement.isClosed());
+		PreparedStatement again = connection.prepare("SELECT 1");
+		assertNotSame(statement, again);
+		assertEquals(1, count(connection, "SELECT 1"));
+		
+		// Closing the connection closes its cached statements
+		connection.close();
+		assertTrue(again.isClosed());
+	}
+	
+	private ConnectionPool newPool(JSONObject poolObj) {
+		return new ConnectionPool(new JSONObject()
+			.put("key", "h2")
+			.put("connectionString", this.url)
+			.put("properties", new JSONObject())
+			.put("pool", poolObj));
+	}
+	
+	private static int count(PooledConnection connection, String sql) throws SQLException {
+		try (ResultSet rs = connection.prepare(sql).executeQuery()) {
+			int rows = 0;
+			while (rs.next()) {
+				rows++;
+			}
+			return rows;
+		}
+	}
+	
+	/**
+	 * @return the number of connections open to the database
+	 */
+	private int sessions() throws SQLException {
+		try (ResultSet rs = this.keeper.createStatement().executeQuery("SELECT COUNT(*) FROM INFORMATION_SCHEMA.SESSIONS")) {
+			rs.next();
+			return rs.getInt(1);
+		}
+	}
+}
@@ -0,0 +1,296 @@
+/**
+ * Runs several workers of one distributed job against a temporary directory:
+ * DistributedJobs claiming units from threads of their own, and whole RowBots
+ * reading an in-memory H2 database, with inserts kept in a map.
+ */
+package com.marklogic.rowbot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.marklogic.xcc.Session;
+
+public class DistributedJobTest {
+	private static final String TIMESTAMP = "2016-01-24T20:09:41.130Z";
+	private static final int ROWS = 500;
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	@Test
+	public void eachUnitIsClaimedByOneWorker() throws Exception {
+		File directory = this.folder.newFolder("job");
+		final int slices = 12;
+		final List<Integer> claimed = Collections.synchronizedList(new ArrayList<Integer>());
+		final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+		List<DistributedJob> workers = new ArrayList<>();
+		List<Thread> threads = new ArrayList<>();
+		for (String name : new String[] {"A", "B", "C"}) {
+			final DistributedJob worker = join(directory, name, 60, 1, slices);
+			workers.add(worker);
+			// Two threads per worker, like queryThreads
+			for (int t = 0; t < 2; t++) {
+				threads.add(new Thread(new Runnable() {
+					public void run() {
+						try {
+							DistributedJob.Lease lease;
+							while ((lease = worker.claim()) != null) {
+								claimed.add(lease.unit);
+								worker.complete(lease, true);
+							}
+						} catch (Throwable e) {
+							failures.add(e);
+						}
+					}
+				}));
+			}
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join(TimeUnit.SECONDS.toMillis(30));
+			assertFalse("a worker is still claiming", thread.isAlive());
+		}
+		
+		assertEquals(Collections.emptyList(), failures);
+		assertEquals(slices, claimed.size());
+		assertEquals(slices, new HashSet<>(claimed).size());
+		for (int u = 0; u < slices; u++) {
+			assertTrue(new File(directory, "units/" + u + DistributedJob.DONE_SUFFIX).isFile());
+		}
+		for (DistributedJob worker : workers) {
+			assertNull(worker.claim());
+		}
+	}
+	
+	@Test
+	public void expiredLeaseIsTakenOver() throws Exception {
+		File directory = this.folder.newFolder("job");
+		// A never renews its lease on its own, so B sees it expire
+		DistributedJob a = join(directory, "A", 60, 3600, 1);
+		DistributedJob.Lease leaseA = a.claim();
+		assertEquals(0, leaseA.unit);
+		assertEquals(0, leaseA.epoch);
+		
+		DistributedJob b = join(directory, "B", 1, 1, 1);
+		DistributedJob.Lease leaseB = b.claim();
+		assertEquals(0, leaseB.unit);
+		assertEquals(1, leaseB.epoch);
+		
+		assertFalse(leaseA.isLost());
+		a.renewLeases();
+		assertTrue(leaseA.isLost());
+		
+		File done = new File(directory, "units/0" + DistributedJob.DONE_SUFFIX);
+		a.complete(leaseA, true);
+		assertFalse("the worker that lost the unit marked it done", done.exists());
+		b.complete(leaseB, true);
+		assertEquals("B", readJSON(done).getString("worker"));
+		assertNull(a.claim());
+		assertNull(b.claim());
+	}
+	
+	@Test
+	public void workerThatLosesItsUnitStopsAndTheReportsMerge() throws Exception {
+		String url = "jdbc:h2:mem:" + getClass().getSimpleName() + ";DB_CLOSE_DELAY=-1";
+		try (Connection connection = DriverManager.getConnection(url)) {
+			createItems(connection);
+			File directory = this.folder.newFolder("job");
+			Map<String, String> docs = new ConcurrentHashMap<>();
+			
+			// A stalls on its inserts, and never renews its lease on its own
+			final RecordingRowBot a = new RecordingRowBot(job(url, directory, 60, 3600), "A", docs);
+			a.gate = new CountDownLatch(1);
+			final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+			Thread threadA = new Thread(new Runnable() {
+				public void run() {
+					try {
+						a.runRowBotJob();
+					} catch (Throwable e) {
+						failures.add(e);
+					}
+				}
+			});
+			threadA.start();
+			assertTrue("A never started inserting", a.blocked.await(30, TimeUnit.SECONDS));
+			
+			RecordingRowBot b = new RecordingRowBot(job(url, directory, 1, 1), "B", docs);
+			b.runRowBotJob();
+			
+			// A finds out it lost the unit and carries on
+			a.distributed.renewLeases();
+			a.lost = true;
+			a.gate.countDown();
+			threadA.join(TimeUnit.SECONDS.toMillis(30));
+			assertFalse("A is still running", threadA.isAlive());
+			assertEquals(Collections.emptyList(), failures);
+			
+			// Both ran under the timestamp of the job in the directory
+			String jobUri = "/rowbot/" + a.timestamp + "/";
+			assertEquals(a.timestamp, b.timestamp);
+			Set<String> rows = new HashSet<>(a.rows);
+			rows.addAll(b.rows);
+			assertEquals(ROWS, rows.size());
+			for (String[] insert : a.afterLost) {
+				assertFalse("A wrote " + insert[0] + " after it lost the unit", insert[1].equals("rowbot-checkpoint") || insert[1].equals("rowbot-query-report"));
+			}
+			JSONObject queryReport = new JSONObject(docs.get(jobUri + "items/rowbot-query-report.json"));
+			assertTrue(queryReport.getBoolean("success"));
+			assertEquals("B", readJSON(new File(directory, "units/0" + DistributedJob.DONE_SUFFIX)).getString("worker"));
+			
+			// A finished last, so its merge covers both workers
+			JSONObject report = new JSONObject(docs.get(jobUri + "rowbot-report.json"));
+			assertEquals("complete", report.getString("status"));
+			JSONObject workers = report.getJSONObject("workers");
+			assertEquals(2, workers.length());
+			JSONObject unitA = workers.getJSONObject("A").getJSONArray("units").getJSONObject(0);
+			assertTrue(unitA.getBoolean("leaseLost"));
+			assertFalse(unitA.getBoolean("success"));
+			JSONObject unitB = workers.getJSONObject("B").getJSONArray("units").getJSONObject(0);
+			assertFalse(unitB.getBoolean("leaseLost"));
+			assertTrue(unitB.getBoolean("success"));
+			for (String name : DistributedJob.SUMMED_METRICS) {
+				long sum = workers.getJSONObject("A").getJSONObject("metrics").optLong(name) + workers.getJSONObject("B").getJSONObject("metrics").optLong(name);
+				assertEquals(name, sum, report.getJSONObject("metrics").optLong(name));
+			}
+			assertTrue(report.getJSONObject("metrics").getLong("docsInserted") >= ROWS);
+			assertTrue(report.getJSONArray("queryReportUris").toList().contains(jobUri + "items/rowbot-query-report.json"));
+			assertFalse(new File(directory, DistributedJob.REPORT_LOCK).exists());
+		}
+	}
+	
+	/**
+	 * RowBot that keeps the documents it inserts in a map shared with the
+	 * other workers, and can hold its row inserts until it's let go.
+	 */
+	private static class RecordingRowBot extends RowBot {
+		private final Map<String, String> docs;
+		final List<String> rows = Collections.synchronizedList(new ArrayList<String>());
+		final List<String[]> afterLost = Collections.synchronizedList(new ArrayList<String[]>());
+		final CountDownLatch blocked = new CountDownLatch(1);
+		volatile CountDownLatch gate = null;
+		volatile boolean lost = false;
+		
+		RecordingRowBot(String config, String worker, Map<String, String> docs) {
+			super(config, null, worker);
+			this.docs = docs;
+		}
+		
+		@Override
+		protected JSONObject insertJSONDoc(String uri, String json, JSONObject permissions, String[] collections) {
+			this.docs.put(uri, json);
+			if (this.lost) {
+				this.afterLost.add(new String[] {uri, collections[0]});
+			}
+			return new JSONObject().put("success", true).put("uri", uri);
+		}
+		
+		@Override
+		protected JSONObject insertJSONDoc(String uri, byte[] json, JSONObject permissions, String[] collections) {
+			return insertJSONDoc(uri, new String(json, StandardCharsets.UTF_8), permissions, collections);
+		}
+		
+		@Override
+		protected List<JSONObject> insertJSONBatch(String[] uris, byte[][] jsons, JSONObject permissions, String[] collections) {
+			if (this.gate != null) {
+				this.blocked.countDown();
+				try {
+					this.gate.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			List<JSONObject> results = new ArrayList<>();
+			for (int i = 0; i < uris.length; i++) {
+				results.add(insertJSONDoc(uris[i], jsons[i], permissions, collections));
+				this.rows.add(uris[i]);
+			}
+			return results;
+		}
+		
+		@Override
+		protected JSONObject readJSONDoc(Session session, String uri) {
+			String json = this.docs.get(uri);
+			return (json != null) ? new JSONObject(json) : null;
+		}
+	}
+	
+	private static void createItems(Connection connection) throws Exception {
+		try (Statement statement = connection.createStatement()) {
+			statement.execute("CREATE TABLE ITEMS (ID INT PRIMARY KEY, NAME VARCHAR(40))");
+		}
+		try (PreparedStatement statement = connection.prepareStatement("INSERT INTO ITEMS VALUES (?, ?)")) {
+			for (int i = 1; i <= ROWS; i++) {
+				statement.setInt(1, i);
+				statement.setString(2, "item " + i);
+				statement.addBatch();
+			}
+			statement.executeBatch();
+		}
+	}
+	
+	/**
+	 * @return a job with one query that reads every item, in small batches so
+	 *         a stalled insert soon stops the reader
+	 */
+	private static String job(String url, File directory, long leaseTimeout, long heartbeatInterval) {
+		JSONObject job = new JSONObject();
+		job.put("queryThreads", 1);
+		job.put("insertThreads", 1);
+		job.put("insertBatchSize", 10);
+		job.put("insertBufferRows", 20);
+		job.put("checkpointInterval", 1);
+		job.put("progress", new JSONObject().put("interval", 0));
+		job.put("marklogic", new JSONObject().put("hostname", "localhost").put("port", 8000).put("username", "admin").put("password", "admin"));
+		job.put("connections", new JSONArray().put(new JSONObject().put("key", "h2").put("connectionString", url).put("properties", new JSONObject())));
+		job.put("queries", new JSONArray().put(new JSONObject()
+			.put("queryId", "items")
+			.put("database", "h2")
+			.put("query", "SELECT ID, NAME FROM ITEMS ORDER BY ID")
+			.put("collections", new JSONArray().put("items"))));
+		job.put("distributed", distributedConfig(directory, leaseTimeout, heartbeatInterval));
+		return job.toString();
+	}
+	
+	private static JSONObject distributedConfig(File directory, long leaseTimeout, long heartbeatInterval) {
+		return new JSONObject().put("directory", directory.getPath()).put("leaseTimeout", leaseTimeout).put("heartbeatInterval", heartbeatInterval);
+	}
+	
+	private static DistributedJob join(File directory, String worker, long leaseTimeout, long heartbeatInterval, int slices) throws Exception {
+		JSONObject query = new JSONObject().put("queryId", "items").put("query", "SELECT ID, NAME FROM ITEMS");
+		if (slices > 1) {
+			query.put("partition", new JSONObject().put("type", "hash").put("column", "ID").put("slices", slices));
+		}
+		return new DistributedJob(distributedConfig(directory, leaseTimeout, heartbeatInterval), new JSONArray().put(query), false, TIMESTAMP, worker);
+	}
+	
+	private static JSONObject readJSON(File file) throws Exception {
+		return new JSONObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+	}
+}